@@ -3,6 +3,8 @@ import java.awt.event.*;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
 import javax.swing.*;
 
 public class BTD2 {
@@ -86,7 +88,8 @@ class GradientPanel extends JPanel {
     }
 }
 
-// Main game screen.
+// Main game screen. The game world runs on its own simulation thread in fixed steps,
+// and the EDT only draws immutable snapshots of it and queues player actions.
 class GameScreen extends JPanel implements KeyListener, MouseListener, MouseMotionListener, ActionListener {
     public static final int WINDOW_WIDTH = BTD2.WINDOW_WIDTH;
     public static final int WINDOW_HEIGHT = BTD2.WINDOW_HEIGHT;
@@ -108,7 +111,15 @@ class GameScreen extends JPanel implements KeyListener, MouseListener, MouseMoti
     private static final int RAPID_TOWER_COST = 150;
     private static final int SHOTGUN_TOWER_COST = 200;
     
-    // Game state.
+    // Simulation timing: 60 fixed steps per second of game time, whatever the frame rate.
+    // After a long stall at most MAX_STEPS_PER_UPDATE steps are caught up and the rest is
+    // dropped, so the world slows down instead of falling further and further behind.
+    private static final int STEPS_PER_SECOND = 60;
+    private static final long STEP_NANOS = 1_000_000_000L / STEPS_PER_SECOND;
+    private static final int MAX_STEPS_PER_UPDATE = 10;
+    
+    // Game state. The fields from here down to lastSnapshot belong to the simulation
+    // thread: only step() and the queued commands touch them once it has started.
     private int money = 100000;
     private int lives = 15;
     private int round = 1;
@@ -121,29 +132,43 @@ class GameScreen extends JPanel implements KeyListener, MouseListener, MouseMoti
     private int enemiesToSpawn = 0;
     private static final int SPAWN_DELAY_FRAMES = 10;
     private int spawnDelayCounter = SPAWN_DELAY_FRAMES;
-    private Timer gameTimer;
     private Random random = new Random();
     
+    // Game over flag.
+    private boolean gameOver = false;
+    
+    // Ids let the renderer match an entity in two snapshots.
+    private int nextEntityId = 0;
+    private Snapshot lastSnapshot;
+    
+    // Player actions from the EDT, run by the simulation thread before its next step.
+    private final ConcurrentLinkedQueue<Runnable> commands = new ConcurrentLinkedQueue<>();
+    // The last two snapshots, replaced as a pair after every step.
+    private volatile Frame latestFrame;
+    private Thread simulationThread;
+    
+    // Pause flag.
+    private volatile boolean isPaused = false;
+    
+    // Speed multiplier: normally 1, 2 when speed toggle is active. It sets how fast game
+    // time passes, so the world takes more steps rather than bigger ones.
+    private volatile int speedMultiplier = 1;
+    
+    // Repaints at about 60 frames per second; drawing never advances the world.
+    private Timer repaintTimer;
+    
     // Currently selected tower type.
     // Options: "BASIC", "SNIPER", "RAPID", "SHOTGUN"
     private String selectedTowerType = "BASIC";
     
-    // Pause flag.
-    private boolean isPaused = false;
-    
     // Minimum distance between towers.
     private static final int MIN_TOWER_DISTANCE = 50;
     
-    // Upgrade UI fields.
-    private Tower selectedTowerForUpgrade = null;
+    // Upgrade UI fields. The selected tower is known by id, as the EDT only sees snapshots.
+    private int selectedTowerId = -1;
     private UpgradePanel upgradePanel = null;
     
-    // Speed multiplier: normally 1, 2 when speed toggle is active.
-    private int speedMultiplier = 1;
     private JToggleButton speedToggleButton;
-    
-    // Game over flag.
-    private boolean gameOver = false;
     private Rectangle restartButtonBounds = new Rectangle(WINDOW_WIDTH/2 - 100, WINDOW_HEIGHT/2 + 50, 200, 50);
     
     public GameScreen() {
@@ -167,9 +192,14 @@ class GameScreen extends JPanel implements KeyListener, MouseListener, MouseMoti
         // Request focus for the panel so key events (like pause) are processed.
         requestFocusInWindow();
         
-        gameTimer = new Timer(16, this); // ~60 FPS
-        gameTimer.start();
         startNewRound();
+        publishSnapshot();
+        simulationThread = new Thread(this::runSimulation, "simulation");
+        simulationThread.setDaemon(true);
+        simulationThread.start();
+        
+        repaintTimer = new Timer(16, this); // ~60 FPS
+        repaintTimer.start();
     }
     
     private void startNewRound() {
@@ -191,19 +221,71 @@ class GameScreen extends JPanel implements KeyListener, MouseListener, MouseMoti
         }
     }
     
-    @Override
-    public void actionPerformed(ActionEvent e) {
-        if (gameOver) {
-            repaint();
-            return;
+    // The simulation loop: real time, scaled by the speed multiplier, fills an
+    // accumulator that is drained in fixed steps. A snapshot is published after each
+    // step, and the thread sleeps until the next step is due.
+    private void runSimulation() {
+        long previous = System.nanoTime();
+        long accumulator = 0;
+        while (true) {
+            boolean changed = runCommands();
+            long now = System.nanoTime();
+            int speed = speedMultiplier;
+            if (isPaused || gameOver) {
+                accumulator = 0;
+            } else {
+                accumulator += (now - previous) * speed;
+            }
+            previous = now;
+            int steps = 0;
+            // Once a step ends the game, the steps still owed are dropped.
+            while (accumulator >= STEP_NANOS && steps < MAX_STEPS_PER_UPDATE && !gameOver) {
+                try {
+                    step();
+                } catch (RuntimeException e) {
+                    report(e);
+                }
+                publishSnapshot();
+                accumulator -= STEP_NANOS;
+                steps++;
+            }
+            if (steps == MAX_STEPS_PER_UPDATE) {
+                accumulator = Math.min(accumulator, STEP_NANOS);
+            }
+            if (changed && steps == 0) {
+                publishSnapshot();
+            }
+            long untilNextStep = Math.max(0, STEP_NANOS - accumulator) / speed;
+            LockSupport.parkNanos(Math.max(untilNextStep, 1_000_000L));
         }
-        if (isPaused) {
-            repaint();
-            return;
+    }
+    
+    private boolean runCommands() {
+        boolean ran = false;
+        Runnable command;
+        while ((command = commands.poll()) != null) {
+            try {
+                command.run();
+            } catch (RuntimeException e) {
+                report(e);
+            }
+            ran = true;
         }
-        // Spawn enemies with speed multiplier.
+        return ran;
+    }
+    
+    // Reports a failed step or command the way an exception on the EDT is reported,
+    // and lets the simulation carry on with the next one, as the Swing timer did.
+    private static void report(RuntimeException e) {
+        Thread thread = Thread.currentThread();
+        thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+    }
+    
+    // Advances the world by one fixed step.
+    private void step() {
+        // Spawn enemies.
         if (enemiesToSpawn > 0) {
-            spawnDelayCounter -= speedMultiplier;
+            spawnDelayCounter--;
             if (spawnDelayCounter <= 0) {
                 spawnOneEnemy();
                 enemiesToSpawn--;
@@ -236,7 +318,6 @@ class GameScreen extends JPanel implements KeyListener, MouseListener, MouseMoti
                 enemyIter.remove();
                 if (lives <= 0) {
                     gameOver = true;
-                    gameTimer.stop();
                 }
             }
         }
@@ -267,45 +348,113 @@ class GameScreen extends JPanel implements KeyListener, MouseListener, MouseMoti
             round++;
             startNewRound();
         }
+    }
+    
+    private void publishSnapshot() {
+        TowerView[] towerViews = new TowerView[towers.size()];
+        for (int i = 0; i < towerViews.length; i++) {
+            Tower t = towers.get(i);
+            towerViews[i] = new TowerView(t.id, t.x, t.y, t.range, t.level, t.size,
+                t.damageUpgradeLevel, t.rangeUpgradeLevel, t.fireRateUpgradeLevel);
+        }
+        EntityView[] enemyViews = new EntityView[enemies.size()];
+        for (int i = 0; i < enemyViews.length; i++) {
+            Enemy e = enemies.get(i);
+            enemyViews[i] = new EntityView(e.id, e.x, e.y, e.size, e.color(), (double) e.health / e.maxHealth());
+        }
+        EntityView[] projectileViews = new EntityView[projectiles.size()];
+        for (int i = 0; i < projectileViews.length; i++) {
+            Projectile p = projectiles.get(i);
+            projectileViews[i] = new EntityView(p.id, p.x, p.y, p.size, Color.BLACK, 0);
+        }
+        Snapshot snapshot = new Snapshot(System.nanoTime(), money, lives, round, gameOver,
+            towerViews, enemyViews, projectileViews);
+        latestFrame = new Frame(lastSnapshot == null ? snapshot : lastSnapshot, snapshot);
+        lastSnapshot = snapshot;
+    }
+    
+    // Runs once per frame on the EDT.
+    @Override
+    public void actionPerformed(ActionEvent e) {
+        if (upgradePanel != null) {
+            TowerView tower = latestFrame.current.findTower(selectedTowerId);
+            if (tower != null) {
+                upgradePanel.updateButtons(tower);
+            }
+        }
         repaint();
     }
     
     @Override
     protected void paintComponent(Graphics g) {
         super.paintComponent(g);
+        Frame frame = latestFrame;
+        Snapshot snapshot = frame.current;
+        // How far the game has moved on since the newest snapshot, in steps of real time.
+        double alpha = (System.nanoTime() - snapshot.time) / ((double) STEP_NANOS / speedMultiplier);
+        alpha = Math.max(0, Math.min(1, alpha));
         // Draw background.
         g.setColor(new Color(34, 139, 34));
         g.fillRect(0, 0, WINDOW_WIDTH, WINDOW_HEIGHT);
         // Draw enemy path.
         track.draw((Graphics2D) g);
         // Draw towers.
-        for (Tower t : towers) {
-            t.draw(g);
-        }
-        // Draw enemies.
-        for (Enemy enemy : enemies) {
-            enemy.draw(g);
-        }
-        // Draw projectiles.
-        for (Projectile p : projectiles) {
-            p.draw(g);
+        for (TowerView t : snapshot.towers) {
+            drawTower(g, t);
         }
+        // Draw enemies and projectiles between their last two positions.
+        drawEntities(g, frame.previous.enemies, snapshot.enemies, alpha, true);
+        drawEntities(g, frame.previous.projectiles, snapshot.projectiles, alpha, false);
         // Draw HUD.
         g.setColor(Color.WHITE);
         g.setFont(new Font("Arial", Font.BOLD, 18));
-        g.drawString("Round: " + round, 10, 20);
-        g.drawString("Money: $" + money, 10, 40);
-        g.drawString("Lives: " + lives, 10, 60);
+        g.drawString("Round: " + snapshot.round, 10, 20);
+        g.drawString("Money: $" + snapshot.money, 10, 40);
+        g.drawString("Lives: " + snapshot.lives, 10, 60);
         g.drawString("Press 'P' to Pause/Resume", 10, 80);
         // Draw shop area.
         drawShop(g);
         
         // If game over, draw game over overlay.
-        if (gameOver) {
+        if (snapshot.gameOver) {
             drawGameOverScreen(g);
         }
     }
     
+    private void drawTower(Graphics g, TowerView t) {
+        g.setColor(Color.GRAY);
+        g.fillOval(t.x - t.size/2, t.y - t.size/2, t.size, t.size);
+        g.setColor(Color.BLACK);
+        g.setFont(new Font("Arial", Font.BOLD, 12));
+        g.drawString("Lv" + t.level, t.x - t.size/4, t.y);
+        if (selectedTowerId == t.id) {
+            g.setColor(new Color(0, 255, 0, 50));
+            g.drawOval(t.x - t.range, t.y - t.range, t.range * 2, t.range * 2);
+        }
+    }
+    
+    // Both arrays are in ascending id order, as entities are only ever appended or
+    // removed, so one pass finds where each entity was in the previous snapshot.
+    private void drawEntities(Graphics g, EntityView[] previous, EntityView[] current, double alpha, boolean healthBar) {
+        int j = 0;
+        for (EntityView e : current) {
+            while (j < previous.length && previous[j].id < e.id) {
+                j++;
+            }
+            double x = e.x, y = e.y;
+            if (j < previous.length && previous[j].id == e.id) {
+                x = previous[j].x + (e.x - previous[j].x) * alpha;
+                y = previous[j].y + (e.y - previous[j].y) * alpha;
+            }
+            g.setColor(e.color);
+            g.fillOval((int)x - e.size/2, (int)y - e.size/2, e.size, e.size);
+            if (healthBar) {
+                g.setColor(Color.RED);
+                g.fillRect((int)x - e.size/2, (int)y - e.size/2 - 10, (int)(e.health * e.size), 5);
+            }
+        }
+    }
+    
     private void drawShop(Graphics g) {
         g.setColor(Color.DARK_GRAY);
         g.fillRect(0, WINDOW_HEIGHT - SHOP_AREA_HEIGHT, WINDOW_WIDTH, SHOP_AREA_HEIGHT);
@@ -353,18 +502,20 @@ class GameScreen extends JPanel implements KeyListener, MouseListener, MouseMoti
         g2d.drawString(restartText, restartButtonBounds.x + (restartButtonBounds.width - rTextWidth) / 2, restartButtonBounds.y + 33);
     }
     
+    // Queued like any other player action, so the reset happens between two steps.
     private void restartGame() {
-        money = 400;
-        lives = 15;
-        round = 1;
-        towers.clear();
-        enemies.clear();
-        projectiles.clear();
         removeUpgradePanel();
-        gameOver = false;
         speedMultiplier = speedToggleButton.isSelected() ? 2 : 1;
-        startNewRound();
-        gameTimer.start();
+        commands.add(() -> {
+            money = 400;
+            lives = 15;
+            round = 1;
+            towers.clear();
+            enemies.clear();
+            projectiles.clear();
+            gameOver = false;
+            startNewRound();
+        });
     }
     
     private boolean canPlaceTower(int x, int y) {
@@ -381,7 +532,8 @@ class GameScreen extends JPanel implements KeyListener, MouseListener, MouseMoti
     @Override
     public void mouseClicked(MouseEvent e) {
         int mx = e.getX(), my = e.getY();
-        if (gameOver) {
+        Snapshot snapshot = latestFrame.current;
+        if (snapshot.gameOver) {
             if (restartButtonBounds.contains(mx, my)) {
                 restartGame();
             }
@@ -401,48 +553,55 @@ class GameScreen extends JPanel implements KeyListener, MouseListener, MouseMoti
             return;
         }
         if (SwingUtilities.isLeftMouseButton(e)) {
-            for (Tower t : towers) {
+            for (TowerView t : snapshot.towers) {
                 if (t.contains(mx, my)) {
-                    selectedTowerForUpgrade = t;
                     openUpgradePanel(t);
                     return;
                 }
             }
         } else if (SwingUtilities.isRightMouseButton(e)) {
             // If the click is not near the path and towers are not overlapping,
-            // then place the tower. Otherwise, silently do nothing.
-            if (!track.isNearPath(mx, my) && canPlaceTower(mx, my)) {
-                int cost = 0;
-                Tower newTower = null;
-                switch (selectedTowerType) {
-                    case "BASIC":
-                        cost = BASIC_TOWER_COST;
-                        newTower = new Tower(mx, my);
-                        break;
-                    case "SNIPER":
-                        cost = SNIPER_TOWER_COST;
-                        newTower = new SniperTower(mx, my);
-                        break;
-                    case "RAPID":
-                        cost = RAPID_TOWER_COST;
-                        newTower = new RapidFireTower(mx, my);
-                        break;
-                    case "SHOTGUN":
-                        cost = SHOTGUN_TOWER_COST;
-                        newTower = new ShotgunTower(mx, my);
-                        break;
-                }
-                if (money >= cost) {
-                    money -= cost;
-                    towers.add(newTower);
-                }
-            }
+            // then place the tower. Otherwise, silently do nothing. The simulation
+            // thread checks and pays, since it owns the towers and the money.
+            String type = selectedTowerType;
+            commands.add(() -> placeTower(type, mx, my));
             // No pop-up is shown if the placement is invalid.
         }
     }
     
-    private void openUpgradePanel(Tower tower) {
+    private void placeTower(String type, int mx, int my) {
+        if (track.isNearPath(mx, my) || !canPlaceTower(mx, my)) {
+            return;
+        }
+        int cost = 0;
+        Tower newTower = null;
+        switch (type) {
+            case "BASIC":
+                cost = BASIC_TOWER_COST;
+                newTower = new Tower(mx, my);
+                break;
+            case "SNIPER":
+                cost = SNIPER_TOWER_COST;
+                newTower = new SniperTower(mx, my);
+                break;
+            case "RAPID":
+                cost = RAPID_TOWER_COST;
+                newTower = new RapidFireTower(mx, my);
+                break;
+            case "SHOTGUN":
+                cost = SHOTGUN_TOWER_COST;
+                newTower = new ShotgunTower(mx, my);
+                break;
+        }
+        if (money >= cost) {
+            money -= cost;
+            towers.add(newTower);
+        }
+    }
+    
+    private void openUpgradePanel(TowerView tower) {
         removeUpgradePanel();
+        selectedTowerId = tower.id;
         upgradePanel = new UpgradePanel(tower);
         // Position the panel below the HUD (y = 100).
         upgradePanel.setBounds(10, 100, 280, 150);
@@ -455,7 +614,7 @@ class GameScreen extends JPanel implements KeyListener, MouseListener, MouseMoti
         if (upgradePanel != null) {
             remove(upgradePanel);
             upgradePanel = null;
-            selectedTowerForUpgrade = null;
+            selectedTowerId = -1;
             revalidate();
             repaint();
         }
@@ -478,11 +637,13 @@ class GameScreen extends JPanel implements KeyListener, MouseListener, MouseMoti
     @Override public void keyReleased(KeyEvent e) { }
     
     // --- Upgrade Panel Inner Class ---
+    // Upgrades are queued for the simulation thread; the buttons follow the tower's
+    // levels in the latest snapshot.
     class UpgradePanel extends JPanel implements ActionListener {
-        private Tower tower;
+        private int towerId;
         private JButton damageButton, rangeButton, fireRateButton, closeButton;
-        public UpgradePanel(Tower tower) {
-            this.tower = tower;
+        public UpgradePanel(TowerView tower) {
+            this.towerId = tower.id;
             setBackground(new Color(220, 220, 220, 230));
             setBorder(BorderFactory.createLineBorder(Color.BLACK));
             setLayout(new GridLayout(4, 1, 5, 5));
@@ -494,7 +655,7 @@ class GameScreen extends JPanel implements KeyListener, MouseListener, MouseMoti
             rangeButton.addActionListener(this);
             fireRateButton.addActionListener(this);
             closeButton.addActionListener(this);
-            updateButtons();
+            updateButtons(tower);
             add(damageButton);
             add(rangeButton);
             add(fireRateButton);
@@ -503,7 +664,7 @@ class GameScreen extends JPanel implements KeyListener, MouseListener, MouseMoti
         private int getUpgradeCost(int currentLevel) {
             return 50 + currentLevel * 25;
         }
-        private void updateButtons() {
+        private void updateButtons(TowerView tower) {
             damageButton.setText("Upgrade Damage (Lv " + tower.damageUpgradeLevel +
                 ") Cost: $" + getUpgradeCost(tower.damageUpgradeLevel));
             rangeButton.setText("Upgrade Range (Lv " + tower.rangeUpgradeLevel +
@@ -513,38 +674,110 @@ class GameScreen extends JPanel implements KeyListener, MouseListener, MouseMoti
         }
         @Override
         public void actionPerformed(ActionEvent e) {
-            if (e.getSource() == damageButton) {
+            Object source = e.getSource();
+            if (source == closeButton) {
+                removeUpgradePanel();
+                return;
+            }
+            commands.add(() -> upgrade(source));
+        }
+        // Runs on the simulation thread.
+        private void upgrade(Object source) {
+            Tower tower = null;
+            for (Tower t : towers) {
+                if (t.id == towerId) {
+                    tower = t;
+                }
+            }
+            if (tower == null) {
+                return;
+            }
+            if (source == damageButton) {
                 if (tower.damageUpgradeLevel < 5 && money >= getUpgradeCost(tower.damageUpgradeLevel)) {
                     money -= getUpgradeCost(tower.damageUpgradeLevel);
                     tower.damage += 10;
                     tower.damageUpgradeLevel++;
-                    updateButtons();
                 }
-            } else if (e.getSource() == rangeButton) {
+            } else if (source == rangeButton) {
                 if (tower.rangeUpgradeLevel < 5 && money >= getUpgradeCost(tower.rangeUpgradeLevel)) {
                     money -= getUpgradeCost(tower.rangeUpgradeLevel);
                     tower.range += 15;
                     tower.rangeUpgradeLevel++;
-                    updateButtons();
                 }
-            } else if (e.getSource() == fireRateButton) {
+            } else if (source == fireRateButton) {
                 if (tower.fireRateUpgradeLevel < 5 && money >= getUpgradeCost(tower.fireRateUpgradeLevel)) {
                     money -= getUpgradeCost(tower.fireRateUpgradeLevel);
                     if (tower.fireRate > 20) { tower.fireRate -= 5; }
                     tower.fireRateUpgradeLevel++;
-                    updateButtons();
                 }
-            } else if (e.getSource() == closeButton) {
-                removeUpgradePanel();
             }
         }
     }
     
+    // --- Snapshot Classes ---
+    // Immutable copies of the world that the simulation thread hands to the renderer.
+    static final class Snapshot {
+        final long time;
+        final int money, lives, round;
+        final boolean gameOver;
+        final TowerView[] towers;
+        final EntityView[] enemies, projectiles;
+        Snapshot(long time, int money, int lives, int round, boolean gameOver,
+                TowerView[] towers, EntityView[] enemies, EntityView[] projectiles) {
+            this.time = time; this.money = money; this.lives = lives; this.round = round;
+            this.gameOver = gameOver; this.towers = towers;
+            this.enemies = enemies; this.projectiles = projectiles;
+        }
+        TowerView findTower(int id) {
+            for (TowerView t : towers) {
+                if (t.id == id) {
+                    return t;
+                }
+            }
+            return null;
+        }
+    }
+    
+    // The two newest snapshots; the renderer draws moving things between them.
+    static final class Frame {
+        final Snapshot previous, current;
+        Frame(Snapshot previous, Snapshot current) {
+            this.previous = previous; this.current = current;
+        }
+    }
+    
+    static final class TowerView {
+        final int id, x, y, range, level, size;
+        final int damageUpgradeLevel, rangeUpgradeLevel, fireRateUpgradeLevel;
+        TowerView(int id, int x, int y, int range, int level, int size,
+                int damageUpgradeLevel, int rangeUpgradeLevel, int fireRateUpgradeLevel) {
+            this.id = id; this.x = x; this.y = y; this.range = range; this.level = level; this.size = size;
+            this.damageUpgradeLevel = damageUpgradeLevel;
+            this.rangeUpgradeLevel = rangeUpgradeLevel;
+            this.fireRateUpgradeLevel = fireRateUpgradeLevel;
+        }
+        boolean contains(int mx, int my) {
+            int dx = mx - x, dy = my - y;
+            return dx * dx + dy * dy <= (size/2) * (size/2);
+        }
+    }
+    
+    // An enemy or a projectile; health is the fraction left, for the health bar.
+    static final class EntityView {
+        final int id, size;
+        final double x, y, health;
+        final Color color;
+        EntityView(int id, double x, double y, int size, Color color, double health) {
+            this.id = id; this.x = x; this.y = y; this.size = size; this.color = color; this.health = health;
+        }
+    }
+    
     // --- Tower and Derived Classes ---
     class Tower {
-        int x, y, range, damage, fireRate, cooldownCounter, level, size;
+        int id, x, y, range, damage, fireRate, cooldownCounter, level, size;
         int damageUpgradeLevel, rangeUpgradeLevel, fireRateUpgradeLevel;
         public Tower(int x, int y) {
+            this.id = nextEntityId++;
             this.x = x; this.y = y;
             level = 1; range = 100; damage = 20; fireRate = 60;
             cooldownCounter = 0; size = 40;
@@ -554,7 +787,7 @@ class GameScreen extends JPanel implements KeyListener, MouseListener, MouseMoti
         }
         public Projectile update() {
             if (cooldownCounter > 0) {
-                cooldownCounter -= speedMultiplier;
+                cooldownCounter--;
             } else {
                 Enemy target = null;
                 double minDistance = Double.MAX_VALUE;
@@ -577,21 +810,6 @@ class GameScreen extends JPanel implements KeyListener, MouseListener, MouseMoti
             }
             return null;
         }
-        public void draw(Graphics g) {
-            g.setColor(Color.GRAY);
-            g.fillOval(x - size/2, y - size/2, size, size);
-            g.setColor(Color.BLACK);
-            g.setFont(new Font("Arial", Font.BOLD, 12));
-            g.drawString("Lv" + level, x - size/4, y);
-            if (GameScreen.this.selectedTowerForUpgrade == this) {
-                g.setColor(new Color(0, 255, 0, 50));
-                g.drawOval(x - range, y - range, range * 2, range * 2);
-            }
-        }
-        public boolean contains(int mx, int my) {
-            int dx = mx - x, dy = my - y;
-            return dx * dx + dy * dy <= (size/2) * (size/2);
-        }
         public boolean isWellPositioned(Track track) {
             int threshold = 60;
             for (Point wp : track.getPoints()) {
@@ -625,7 +843,7 @@ class GameScreen extends JPanel implements KeyListener, MouseListener, MouseMoti
         @Override
         public Projectile update() {
             if (cooldownCounter > 0) {
-                cooldownCounter -= speedMultiplier;
+                cooldownCounter--;
             } else {
                 Enemy target = null;
                 double minDistance = Double.MAX_VALUE;
@@ -655,8 +873,9 @@ class GameScreen extends JPanel implements KeyListener, MouseListener, MouseMoti
     
     // --- Enemy Classes ---
     class Enemy {
-        double x, y; int health; double speed; int size; int waypointIndex;
+        int id; double x, y; int health; double speed; int size; int waypointIndex;
         public Enemy(double x, double y, int health, double speed) {
+            this.id = nextEntityId++;
             this.x = x; this.y = y; this.health = health; this.speed = speed;
             size = 30; waypointIndex = 0;
         }
@@ -665,24 +884,18 @@ class GameScreen extends JPanel implements KeyListener, MouseListener, MouseMoti
                 Point target = track.getPoints().get(waypointIndex);
                 double dx = target.x - x, dy = target.y - y;
                 double distance = Math.hypot(dx, dy);
-                if (distance < speed * speedMultiplier) {
+                if (distance < speed) {
                     x = target.x; y = target.y; waypointIndex++;
                 } else {
-                    x += speed * speedMultiplier * dx / distance;
-                    y += speed * speedMultiplier * dy / distance;
+                    x += speed * dx / distance;
+                    y += speed * dy / distance;
                 }
             }
         }
         public void takeDamage(int dmg) { health -= dmg; }
         public boolean reachedEnd(Track track) { return waypointIndex >= track.getPoints().size(); }
-        public void draw(Graphics g) {
-            g.setColor(Color.MAGENTA);
-            g.fillOval((int)x - size/2, (int)y - size/2, size, size);
-            g.setColor(Color.RED);
-            int maxHealth = 50 + round * 15;
-            int barWidth = (int)((double)health / maxHealth * size);
-            g.fillRect((int)x - size/2, (int)y - size/2 - 10, barWidth, 5);
-        }
+        public Color color() { return Color.MAGENTA; }
+        public int maxHealth() { return 50 + round * 15; }
     }
     
     class BossEnemy extends Enemy {
@@ -691,14 +904,9 @@ class GameScreen extends JPanel implements KeyListener, MouseListener, MouseMoti
             size = 50;
         }
         @Override
-        public void draw(Graphics g) {
-            g.setColor(Color.ORANGE);
-            g.fillOval((int)x - size/2, (int)y - size/2, size, size);
-            g.setColor(Color.RED);
-            int maxHealth = (50 + round * 15) * 3;
-            int barWidth = (int)((double)health / maxHealth * size);
-            g.fillRect((int)x - size/2, (int)y - size/2 - 10, barWidth, 5);
-        }
+        public Color color() { return Color.ORANGE; }
+        @Override
+        public int maxHealth() { return (50 + round * 15) * 3; }
     }
     
     class FastEnemy extends Enemy {
@@ -707,37 +915,29 @@ class GameScreen extends JPanel implements KeyListener, MouseListener, MouseMoti
             size = 25;
         }
         @Override
-        public void draw(Graphics g) {
-            g.setColor(Color.CYAN);
-            g.fillOval((int)x - size/2, (int)y - size/2, size, size);
-            g.setColor(Color.RED);
-            int maxHealth = (50 + round * 15) / 2;
-            int barWidth = (int)((double)health / maxHealth * size);
-            g.fillRect((int)x - size/2, (int)y - size/2 - 10, barWidth, 5);
-        }
+        public Color color() { return Color.CYAN; }
+        @Override
+        public int maxHealth() { return (50 + round * 15) / 2; }
     }
     
     // --- Projectile Class ---
     class Projectile {
-        double x, y, dx, dy; int damage, size; Tower sourceTower;
+        int id; double x, y, dx, dy; int damage, size; Tower sourceTower;
         public Projectile(double x, double y, double dx, double dy, int damage, Tower sourceTower) {
+            this.id = nextEntityId++;
             this.x = x; this.y = y; this.dx = dx; this.dy = dy;
             this.damage = damage; this.sourceTower = sourceTower;
             size = 8;
         }
         public void update() { 
-            x += dx * speedMultiplier; 
-            y += dy * speedMultiplier; 
+            x += dx; 
+            y += dy; 
         }
         public boolean isOffScreen() { return x < 0 || x > WINDOW_WIDTH || y < 0 || y > WINDOW_HEIGHT; }
         public boolean hits(Enemy enemy) {
             double dx = x - enemy.x, dy = y - enemy.y;
             return dx * dx + dy * dy <= Math.pow(enemy.size / 2, 2);
         }
-        public void draw(Graphics g) {
-            g.setColor(Color.BLACK);
-            g.fillOval((int)x - size/2, (int)y - size/2, size, size);
-        }
     }
 }
 
@@ -1,7 +1,43 @@
 import java.awt.*;
+import java.awt.datatransfer.StringSelection;
 import java.awt.event.*;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+import javax.management.JMException;
+import javax.management.ObjectName;
 import javax.swing.*;
 
 public class ChessGame extends JFrame {
@@ -9,11 +45,35 @@ public class ChessGame extends JFrame {
     private Board board;
     private ChessBoardPanel chessBoardPanel;
     private Piece selectedPiece;
-    private int currentPlayer = 0; // 0 = white, 1 = black
-    private boolean whiteKingMoved = false;
-    private boolean blackKingMoved = false;
-    private Piece enPassantVulnerable = null;
     private JLabel statusLabel;
+    private int computerColor = -1; // -1 = two human players
+    private boolean computerThinking = false;
+    private final TranspositionTable transpositionTable = new TranspositionTable(16);
+    private LazySmp searcher = new LazySmp(transpositionTable, LazySmp.DEFAULT_THREADS);
+    private final List<Integer> redoMoves = new ArrayList<>();
+    private PolyglotBook openingBook;
+    private JButton bookMoveButton;
+    private AnalysisPanel analysisPanel;
+
+    // Pondering: while the human thinks, the computer searches the position after the
+    // reply it expects. Only the EDT touches these fields.
+    private boolean ponderEnabled = false;
+    private Thread ponderThread;
+    private LazySmp ponderSearcher;
+    private AtomicBoolean ponderCancel;
+    private long ponderKey;
+    private long ponderStart;
+
+    // Set while a mate search runs; the solver polls it so Stop can end the search.
+    private AtomicBoolean solverCancel;
+
+    // Time budget for each computer move.
+    private static final long COMPUTER_MOVE_TIME_MS = 2000;
+    // Shortest search after a ponder hit, and how long pondering may run at most.
+    private static final long PONDER_HIT_MIN_TIME_MS = 100;
+    private static final long PONDER_TIME_MS = 60 * 60 * 1000;
+    // Shortest time between two updates of the analysis panel.
+    private static final int ANALYSIS_REFRESH_MS = 200;
 
     public ChessGame() {
         setTitle("Chess Game");
@@ -21,840 +81,7289 @@ public class ChessGame extends JFrame {
         setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
         setLocationRelativeTo(null);
         setLayout(new BorderLayout());
+        setJMenuBar(createMenuBar());
 
         board = new Board();
         chessBoardPanel = new ChessBoardPanel();
         add(chessBoardPanel, BorderLayout.CENTER);
+        analysisPanel = new AnalysisPanel();
+        add(analysisPanel, BorderLayout.EAST);
 
         statusLabel = new JLabel("White's turn", SwingConstants.CENTER);
-        add(statusLabel, BorderLayout.SOUTH);
+        bookMoveButton = new JButton("Book move");
+        bookMoveButton.setEnabled(false);
+        bookMoveButton.addActionListener(e -> showBookMove());
+        JPanel southPanel = new JPanel(new BorderLayout());
+        southPanel.add(statusLabel, BorderLayout.CENTER);
+        southPanel.add(bookMoveButton, BorderLayout.EAST);
+        add(southPanel, BorderLayout.SOUTH);
+
+        // Pick up a book next to the program without asking.
+        File defaultBook = new File(PolyglotBook.DEFAULT_FILE);
+        if (defaultBook.isFile()) {
+            loadBook(defaultBook);
+        }
 
         setVisible(true);
     }
 
     /**
-     * The panel that holds the 8x8 grid of chess squares.
+     * Builds the menu that chooses whether the computer plays one of the colors.
      */
-    private class ChessBoardPanel extends JPanel {
-        private static final int ROWS = 8;
-        private static final int COLS = 8;
+    private JMenuBar createMenuBar() {
+        JMenu opponentMenu = new JMenu("Opponent");
+        ButtonGroup group = new ButtonGroup();
+        String[] labels = {"Two players", "Computer plays Black", "Computer plays White"};
+        int[] colors = {-1, 1, 0};
+        for (int i = 0; i < labels.length; i++) {
+            int color = colors[i];
+            JRadioButtonMenuItem item = new JRadioButtonMenuItem(labels[i], i == 0);
+            item.addActionListener(e -> {
+                computerColor = color;
+                cancelPondering();
+                maybeStartComputerMove();
+            });
+            group.add(item);
+            opponentMenu.add(item);
+        }
+        JCheckBoxMenuItem ponderItem = new JCheckBoxMenuItem("Ponder during your turn", ponderEnabled);
+        ponderItem.addActionListener(e -> {
+            ponderEnabled = ponderItem.isSelected();
+            if (ponderEnabled) {
+                startPondering();
+            } else {
+                cancelPondering();
+            }
+        });
+        opponentMenu.addSeparator();
+        opponentMenu.add(ponderItem);
 
-        public ChessBoardPanel() {
-            setLayout(new GridLayout(ROWS, COLS));
-            initializeBoard();
+        // Thread counts from one up to the number of cores, doubling each step.
+        List<Integer> threadCounts = new ArrayList<>();
+        for (int threads = 1; threads < LazySmp.DEFAULT_THREADS; threads *= 2) {
+            threadCounts.add(threads);
         }
+        threadCounts.add(LazySmp.DEFAULT_THREADS);
+        JMenu threadsMenu = new JMenu("Search threads");
+        ButtonGroup threadGroup = new ButtonGroup();
+        for (int count : threadCounts) {
+            JRadioButtonMenuItem item = new JRadioButtonMenuItem(String.valueOf(count),
+                    count == LazySmp.DEFAULT_THREADS);
+            item.addActionListener(e -> {
+                cancelPondering();
+                searcher.shutdown();
+                searcher = new LazySmp(transpositionTable, count);
+            });
+            threadGroup.add(item);
+            threadsMenu.add(item);
+        }
+        opponentMenu.addSeparator();
+        opponentMenu.add(threadsMenu);
 
-        private void initializeBoard() {
-            for (int row = 0; row < ROWS; row++) {
-                for (int col = 0; col < COLS; col++) {
-                    Square square = new Square(row, col);
-                    square.addMouseListener(new SquareClickListener());
-                    add(square);
-                }
+        JMenu editMenu = new JMenu("Edit");
+        JMenuItem undoItem = new JMenuItem("Undo move");
+        undoItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_Z, InputEvent.CTRL_DOWN_MASK));
+        undoItem.addActionListener(e -> undoMove());
+        JMenuItem redoItem = new JMenuItem("Redo move");
+        redoItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_Y, InputEvent.CTRL_DOWN_MASK));
+        redoItem.addActionListener(e -> redoMove());
+        editMenu.add(undoItem);
+        editMenu.add(redoItem);
+
+        JMenu bookMenu = new JMenu("Book");
+        JMenuItem openBookItem = new JMenuItem("Open Polyglot book...");
+        openBookItem.addActionListener(e -> {
+            JFileChooser chooser = new JFileChooser(".");
+            if (chooser.showOpenDialog(this) == JFileChooser.APPROVE_OPTION) {
+                loadBook(chooser.getSelectedFile());
             }
-        }
+        });
+        bookMenu.add(openBookItem);
 
-        /**
-         * Updates the board by resetting each square’s piece.
-         */
-        public void updateBoard() {
-            Component[] squares = getComponents();
-            for (Component comp : squares) {
-                if (comp instanceof Square) {
-                    Square square = (Square) comp;
-                    Piece piece = board.getPiece(square.getRow(), square.getCol());
-                    square.setPiece(piece);
-                    // Clear any temporary highlights.
-                    square.setHighlighted(false);
-                }
+        JMenu analysisMenu = new JMenu("Analysis");
+        JCheckBoxMenuItem analysisItem = new JCheckBoxMenuItem("Show analysis panel");
+        analysisItem.addActionListener(e -> {
+            // Widen the window for the panel rather than squeezing the board.
+            int width = analysisPanel.getPreferredSize().width;
+            analysisPanel.setVisible(analysisItem.isSelected());
+            if (analysisItem.isSelected()) {
+                setSize(getWidth() + width, getHeight());
+                analysisPanel.analyze(board);
+            } else {
+                analysisPanel.stop();
+                setSize(getWidth() - width, getHeight());
             }
-            repaint();
-        }
+            revalidate();
+        });
+        analysisMenu.add(analysisItem);
 
-        /**
-         * Clears highlights from all squares.
-         */
-        public void clearHighlights() {
-            Component[] squares = getComponents();
-            for (Component comp : squares) {
-                if (comp instanceof Square) {
-                    ((Square) comp).setHighlighted(false);
-                }
+        JMenu puzzleMenu = new JMenu("Puzzle");
+        JMenuItem solveItem = new JMenuItem("Solve mate in N...");
+        solveItem.addActionListener(e -> solveMate());
+        JMenuItem stopItem = new JMenuItem("Stop solving");
+        stopItem.addActionListener(e -> {
+            if (solverCancel != null) {
+                solverCancel.set(true);
             }
-        }
+        });
+        puzzleMenu.add(solveItem);
+        puzzleMenu.add(stopItem);
+
+        JMenu fileMenu = new JMenu("File");
+        JMenuItem loadFenItem = new JMenuItem("Load FEN...");
+        loadFenItem.addActionListener(e -> loadFen());
+        JMenuItem copyFenItem = new JMenuItem("Copy FEN");
+        copyFenItem.addActionListener(e -> Toolkit.getDefaultToolkit().getSystemClipboard()
+                .setContents(new StringSelection(board.toFen()), null));
+        JMenuItem openPgnItem = new JMenuItem("Open PGN...");
+        openPgnItem.addActionListener(e -> openPgn());
+        JMenuItem savePgnItem = new JMenuItem("Save PGN...");
+        savePgnItem.addActionListener(e -> savePgn());
+        JMenuItem archiveItem = new JMenuItem("Save to archive");
+        archiveItem.addActionListener(e -> saveToArchive());
+        JMenuItem findItem = new JMenuItem("Find position in archive...");
+        findItem.addActionListener(e -> findInArchive());
+        fileMenu.add(loadFenItem);
+        fileMenu.add(copyFenItem);
+        fileMenu.addSeparator();
+        fileMenu.add(openPgnItem);
+        fileMenu.add(savePgnItem);
+        fileMenu.addSeparator();
+        fileMenu.add(archiveItem);
+        fileMenu.add(findItem);
+
+        JMenuBar menuBar = new JMenuBar();
+        menuBar.add(fileMenu);
+        menuBar.add(opponentMenu);
+        menuBar.add(editMenu);
+        menuBar.add(bookMenu);
+        menuBar.add(analysisMenu);
+        menuBar.add(puzzleMenu);
+        return menuBar;
     }
 
     /**
-     * Represents an individual square on the chess board.
+     * Sets up a position typed in as FEN.
      */
-    private class Square extends JPanel {
-        private int row;
-        private int col;
-        private Piece piece;
-        private JLabel label;
-
-        public Square(int row, int col) {
-            this.row = row;
-            this.col = col;
-            setLayout(new BorderLayout());
-            setBackground((row + col) % 2 == 0 ? new Color(238, 238, 210) : new Color(118, 150, 86));
-            label = new JLabel("", SwingConstants.CENTER);
-            label.setFont(new Font("SansSerif", Font.PLAIN, 40));
-            add(label);
-            setBorder(BorderFactory.createLineBorder(getBackground()));
+    private void loadFen() {
+        if (computerThinking) {
+            return;
+        }
+        String fen = JOptionPane.showInputDialog(this, "FEN:", board.toFen());
+        if (fen == null) {
+            return;
+        }
+        try {
+            startGame(new Board(fen));
+        } catch (IllegalArgumentException ex) {
+            JOptionPane.showMessageDialog(this, ex.getMessage(), "Invalid FEN", JOptionPane.ERROR_MESSAGE);
         }
+    }
 
-        /**
-         * Sets the piece on this square and updates the displayed symbol.
-         */
-        public void setPiece(Piece piece) {
-            this.piece = piece;
-            if (piece != null) {
-                label.setText(piece.getSymbol());
-                label.setForeground(piece.getColor() == 0 ? Color.WHITE : Color.BLACK);
-            } else {
-                label.setText("");
+    /**
+     * Loads the first game of a PGN file with all its moves, so they can be stepped
+     * through with undo and redo.
+     */
+    private void openPgn() {
+        JFileChooser chooser = new JFileChooser(".");
+        if (computerThinking || chooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        try (PgnReader reader = PgnReader.open(chooser.getSelectedFile().toPath())) {
+            PgnGame game = reader.next();
+            if (game == null) {
+                statusLabel.setText("No game found in " + chooser.getSelectedFile().getName());
+                return;
             }
+            startGame(game.replay());
+        } catch (IOException | IllegalArgumentException ex) {
+            JOptionPane.showMessageDialog(this, ex.getMessage(), "Could not open PGN", JOptionPane.ERROR_MESSAGE);
         }
+    }
 
-        public int getRow() {
-            return row;
+    private void savePgn() {
+        JFileChooser chooser = new JFileChooser(".");
+        if (computerThinking || chooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION) {
+            return;
         }
-
-        public int getCol() {
-            return col;
+        try (Writer out = Files.newBufferedWriter(chooser.getSelectedFile().toPath(), StandardCharsets.ISO_8859_1)) {
+            PgnGame.write(board, out);
+        } catch (IOException ex) {
+            JOptionPane.showMessageDialog(this, ex.getMessage(), "Could not save PGN", JOptionPane.ERROR_MESSAGE);
         }
+    }
 
-        /**
-         * Highlights or unhighlights this square by changing its border.
-         */
-        public void setHighlighted(boolean highlighted) {
-            if (highlighted) {
-                setBorder(BorderFactory.createLineBorder(Color.YELLOW, 3));
-            } else {
-                // Reset to a border matching the background.
-                setBorder(BorderFactory.createLineBorder(getBackground()));
-            }
+    /**
+     * Appends the game so far, finished or not, to the default archive.
+     */
+    private void saveToArchive() {
+        if (computerThinking) {
+            return;
+        }
+        try {
+            long offset = GameArchive.append(Path.of(GameArchive.DEFAULT_FILE), board, PgnGame.resultOf(board));
+            statusLabel.setText("Saved to " + GameArchive.DEFAULT_FILE + " at offset " + offset);
+        } catch (IOException ex) {
+            JOptionPane.showMessageDialog(this, ex.getMessage(), "Could not archive game", JOptionPane.ERROR_MESSAGE);
         }
     }
 
     /**
-     * Handles mouse clicks on squares.
+     * Lists the archived games that reached the position on screen and opens the one
+     * picked.
      */
-    private class SquareClickListener extends MouseAdapter {
-        @Override
-        public void mouseClicked(MouseEvent e) {
-            Square square = (Square) e.getSource();
-            // Clear any previous highlights.
-            chessBoardPanel.clearHighlights();
-
-            if (selectedPiece == null) {
-                handlePieceSelection(square);
-            } else {
-                handlePieceMovement(square);
-            }
+    private void findInArchive() {
+        Path path = Path.of(GameArchive.DEFAULT_FILE);
+        if (computerThinking) {
+            return;
         }
-
-        /**
-         * When no piece is selected, try to select a piece.
-         */
-        private void handlePieceSelection(Square square) {
-            Piece piece = board.getPiece(square.getRow(), square.getCol());
-            if (piece != null && piece.getColor() == currentPlayer) {
-                selectedPiece = piece;
-                highlightValidMoves();
+        if (!Files.exists(path)) {
+            statusLabel.setText("No archive yet; use Save to archive first");
+            return;
+        }
+        try {
+            GameArchive archive = new GameArchive(path);
+            long[] offsets = archive.findGames(board.getZobristKey());
+            if (offsets.length == 0) {
+                statusLabel.setText("No archived game reached this position");
+                return;
+            }
+            String[] choices = new String[Math.min(offsets.length, 200)];
+            for (int i = 0; i < choices.length; i++) {
+                choices[i] = archive.describe(offsets[i]);
+            }
+            Object choice = JOptionPane.showInputDialog(this, offsets.length + " archived games reached this position:",
+                    "Find position in archive", JOptionPane.PLAIN_MESSAGE, null, choices, choices[0]);
+            if (choice != null) {
+                startGame(archive.replay(offsets[java.util.Arrays.asList(choices).indexOf(choice)]));
             }
+        } catch (IOException | IllegalArgumentException ex) {
+            JOptionPane.showMessageDialog(this, ex.getMessage(), "Could not read archive", JOptionPane.ERROR_MESSAGE);
         }
+    }
 
-        /**
-         * When a piece is selected, try to move it to the clicked square.
-         */
-        private void handlePieceMovement(Square square) {
-            int newRow = square.getRow();
-            int newCol = square.getCol();
-
-            if (board.isValidMove(selectedPiece, newRow, newCol)) {
-                handleSpecialMoves(newRow, newCol);
-                board.movePiece(selectedPiece, newRow, newCol);
-                handlePostMoveLogic();
-            }
-            selectedPiece = null;
-            chessBoardPanel.updateBoard();
+    /**
+     * Asks for N and searches for a mate in N by the side to move on a copy of the
+     * board. The search runs on a SwingWorker thread within the solver's node budget,
+     * and its progress is shown in the status line.
+     */
+    private void solveMate() {
+        if (solverCancel != null) {
+            return;
         }
+        String input = JOptionPane.showInputDialog(this, "Mate in how many moves?", "3");
+        if (input == null) {
+            return;
+        }
+        int mateMoves;
+        try {
+            mateMoves = Integer.parseInt(input.trim());
+        } catch (NumberFormatException ex) {
+            JOptionPane.showMessageDialog(this, "Not a number: " + input, "Solve mate", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        Board snapshot = new Board(board);
+        AtomicBoolean cancel = new AtomicBoolean();
+        solverCancel = cancel;
+        statusLabel.setText("Solving mate in " + mateMoves + "...");
 
-        /**
-         * Checks and handles castling, en passant, and pawn promotion.
-         */
-        private void handleSpecialMoves(int newRow, int newCol) {
-            // Castling: king moves two squares horizontally.
-            if (selectedPiece instanceof King && Math.abs(newCol - selectedPiece.getCol()) == 2) {
-                handleCastling(newCol);
+        new SwingWorker<MateSolver.Result, MateSolver.Progress>() {
+            @Override
+            protected MateSolver.Result doInBackground() {
+                return new MateSolver(MateSolver.DEFAULT_NODE_BUDGET, cancel, this::publish).solve(snapshot, mateMoves);
             }
 
-            // En passant: if a pawn moves diagonally into an empty square.
-            if (selectedPiece instanceof Pawn && enPassantVulnerable != null
-                    && newCol != selectedPiece.getCol() && board.getPiece(newRow, newCol) == null) {
-                board.captureEnPassant(enPassantVulnerable);
+            @Override
+            protected void process(List<MateSolver.Progress> chunks) {
+                // Only the latest report matters when several arrive at once.
+                statusLabel.setText("Solving mate in " + mateMoves + ": " + chunks.get(chunks.size() - 1));
             }
 
-            // Pawn promotion: if a pawn reaches the end row.
-            if (selectedPiece instanceof Pawn && (newRow == 0 || newRow == 7)) {
-                promotePawn((Pawn) selectedPiece, newRow, newCol);
+            @Override
+            protected void done() {
+                solverCancel = null;
+                try {
+                    statusLabel.setText(get().toString());
+                } catch (InterruptedException | ExecutionException ex) {
+                    statusLabel.setText("Mate search failed: " + ex.getMessage());
+                }
             }
+        }.execute();
+    }
+
+    /**
+     * Replaces the game on screen with the given board.
+     */
+    private void startGame(Board newBoard) {
+        cancelPondering();
+        board = newBoard;
+        redoMoves.clear();
+        selectedPiece = null;
+        chessBoardPanel.updateBoard();
+        updateStatus();
+        maybeStartComputerMove();
+    }
+
+    /**
+     * Maps a Polyglot book and enables the book move button.
+     */
+    private void loadBook(File file) {
+        try {
+            openingBook = new PolyglotBook(file.toPath());
+            bookMoveButton.setEnabled(true);
+            statusLabel.setText("Opened book " + file.getName() + " (" + openingBook.size() + " entries)");
+        } catch (IOException ex) {
+            statusLabel.setText("Could not open book: " + ex.getMessage());
         }
+    }
 
-        /**
-         * Handles switching the rook when castling.
-         */
-        private void handleCastling(int newCol) {
-            int rookCol = newCol > selectedPiece.getCol() ? 7 : 0;
-            int newRookCol = newCol > selectedPiece.getCol() ? 5 : 3;
-            Piece rook = board.getPiece(selectedPiece.getRow(), rookCol);
-            board.movePiece(rook, selectedPiece.getRow(), newRookCol);
+    /**
+     * Shows the book's most played move for the current position.
+     */
+    private void showBookMove() {
+        int move = openingBook.bestMove(board);
+        statusLabel.setText(move == Move.NONE
+                ? "Position not in book" : "Book move: " + Move.toString(move));
+    }
+
+    /**
+     * Takes back the last move. Against the computer, moves are taken back until it is
+     * the human's turn again.
+     */
+    private void undoMove() {
+        if (computerThinking || !board.canUndo()) {
+            return;
         }
+        cancelPondering();
+        redoMoves.add(board.unmakeMove());
+        if (board.getSideToMove() == computerColor && board.canUndo()) {
+            redoMoves.add(board.unmakeMove());
+        }
+        selectedPiece = null;
+        chessBoardPanel.updateBoard();
+        updateStatus();
+    }
 
-        /**
-         * Prompts the user for a pawn promotion choice and updates the board.
-         */
-        private void promotePawn(Pawn pawn, int row, int col) {
-            Object[] options = {"Queen", "Rook", "Bishop", "Knight"};
-            int choice = JOptionPane.showOptionDialog(null, "Promote pawn to:", "Pawn Promotion",
-                    JOptionPane.DEFAULT_OPTION, JOptionPane.PLAIN_MESSAGE, null, options, options[0]);
+    /**
+     * Replays the last move taken back, and the computer's reply to it if there is one.
+     */
+    private void redoMove() {
+        if (computerThinking || redoMoves.isEmpty()) {
+            return;
+        }
+        board.makeMove(redoMoves.remove(redoMoves.size() - 1));
+        if (board.getSideToMove() == computerColor && !redoMoves.isEmpty()) {
+            board.makeMove(redoMoves.remove(redoMoves.size() - 1));
+        }
+        selectedPiece = null;
+        chessBoardPanel.updateBoard();
+        updateStatus();
+        maybeStartComputerMove();
+    }
 
-            Piece newPiece = switch (choice) {
-                case 1 -> new Rook(row, col, currentPlayer);
-                case 2 -> new Bishop(row, col, currentPlayer);
-                case 3 -> new Knight(row, col, currentPlayer);
-                default -> new Queen(row, col, currentPlayer);
-            };
-            board.setPiece(row, col, newPiece);
+    /**
+     * Shows whose turn it is, or that the side to move is in check, and points the
+     * analysis panel at the position.
+     */
+    private void updateStatus() {
+        int currentPlayer = board.getSideToMove();
+        statusLabel.setText(board.isCheck(currentPlayer)
+                ? "Check!" : (currentPlayer == 0 ? "White's" : "Black's") + " turn");
+        // Every change of position ends up here, so the analysis follows the board.
+        analysisPanel.analyze(board);
+    }
+
+    /**
+     * Updates the status line after a move is made, and lets the computer reply if it
+     * plays the side now to move.
+     */
+    private void handlePostMoveLogic() {
+        int currentPlayer = board.getSideToMove();
+        updateStatus();
+
+        // Check for checkmate and stalemate.
+        if (board.isCheckmate(currentPlayer)) {
+            JOptionPane.showMessageDialog(null, "Checkmate! "
+                    + (currentPlayer == 0 ? "Black" : "White") + " wins!");
+            System.exit(0);
         }
+        if (board.isStalemate(currentPlayer)) {
+            JOptionPane.showMessageDialog(null, "Stalemate! The game is a draw.");
+            System.exit(0);
+        }
+        maybeStartComputerMove();
+    }
 
-        /**
-         * Highlights all legal moves for the selected piece by changing the square border.
-         */
-        private void highlightValidMoves() {
-            // Retrieve the list of potential moves and filter them using full validation.
-            List<Point> moves = new ArrayList<>();
-            for (Point p : selectedPiece.getValidMoves(board.getGrid())) {
-                if (board.isValidMove(selectedPiece, p.x, p.y)) {
-                    moves.add(p);
-                }
-            }
-            // Highlight the squares corresponding to the valid moves.
-            Component[] components = chessBoardPanel.getComponents();
-            for (Component comp : components) {
-                if (comp instanceof Square) {
-                    Square sq = (Square) comp;
-                    for (Point move : moves) {
-                        if (sq.getRow() == move.x && sq.getCol() == move.y) {
-                            sq.setHighlighted(true);
-                        }
-                    }
-                }
-            }
+    /**
+     * Starts a search for the computer's move on a copy of the board. The search runs
+     * on a SwingWorker thread, with helper threads if more than one is configured, and
+     * the move is played back on the EDT.
+     */
+    private void maybeStartComputerMove() {
+        if (computerThinking || board.getSideToMove() != computerColor) {
+            return;
         }
+        computerThinking = true;
+        String status = statusLabel.getText();
+        statusLabel.setText("Computer is thinking...");
+        Board snapshot = new Board(board);
+        LazySmp smp = searcher;
 
-        /**
-         * Updates state after a move is made.
-         */
-        private void handlePostMoveLogic() {
-            // Update en passant vulnerability: only lasts one move.
-            enPassantVulnerable = (selectedPiece instanceof Pawn
-                    && Math.abs(selectedPiece.getRow() - selectedPiece.getPreviousRow()) == 2)
-                    ? selectedPiece : null;
+        // On a ponder hit the table already holds the search of this position, so the
+        // time spent pondering counts towards the move.
+        long timeMillis = COMPUTER_MOVE_TIME_MS;
+        if (ponderThread != null && !ponderCancel.get() && board.getZobristKey() == ponderKey) {
+            long ponderedMillis = (System.nanoTime() - ponderStart) / 1_000_000L;
+            timeMillis = Math.max(PONDER_HIT_MIN_TIME_MS, COMPUTER_MOVE_TIME_MS - ponderedMillis);
+        }
+        Thread ponder = ponderThread;
+        cancelPondering();
+        ponderThread = null;
+        long searchMillis = timeMillis;
 
-            // Update king moved status.
-            if (selectedPiece instanceof King) {
-                if (currentPlayer == 0) {
-                    whiteKingMoved = true; 
-                } else {
-                    blackKingMoved = true;
+        new SwingWorker<SearchResult, Void>() {
+            @Override
+            protected SearchResult doInBackground() throws InterruptedException {
+                // The ponder search may share the searcher, so let it wind down first.
+                if (ponder != null) {
+                    ponder.join();
                 }
+                return smp.search(snapshot, searchMillis, Search.MAX_DEPTH);
             }
 
-            // Switch turns.
-            currentPlayer = 1 - currentPlayer;
-            statusLabel.setText((currentPlayer == 0 ? "White's" : "Black's") + " turn");
-
-            // Check for check/checkmate.
-            if (board.isCheck(currentPlayer)) {
-                statusLabel.setText("Check!");
-                if (board.isCheckmate(currentPlayer)) {
-                    JOptionPane.showMessageDialog(null, "Checkmate! "
-                            + (currentPlayer == 0 ? "Black" : "White") + " wins!");
-                    System.exit(0);
+            @Override
+            protected void done() {
+                computerThinking = false;
+                SearchResult result;
+                try {
+                    result = get();
+                } catch (InterruptedException | ExecutionException ex) {
+                    statusLabel.setText("Computer search failed: " + ex.getMessage());
+                    return;
+                }
+                // The opponent setting may have changed while the search was running.
+                if (board.getSideToMove() != computerColor) {
+                    statusLabel.setText(status);
+                    return;
+                }
+                if (result.getBestMove() == Move.NONE) {
+                    statusLabel.setText("No legal moves for the computer.");
+                    return;
                 }
+                board.makeMove(result.getBestMove());
+                redoMoves.clear();
+                chessBoardPanel.updateBoard();
+                handlePostMoveLogic();
+                statusLabel.setText(statusLabel.getText() + "  (computer: " + result + ")");
+                startPondering();
             }
-        }
+        }.execute();
     }
 
     /**
-     * The Board class encapsulates the state of the chess board.
+     * Starts searching, on a background thread, the position after the human's reply
+     * that the transposition table predicts. The thread only fills the table; it never
+     * touches Swing. Nothing starts while an earlier ponder thread is still winding down.
      */
-    private class Board {
-        private Piece[][] grid;
-
-        public Board() {
-            initializeBoard();
+    private void startPondering() {
+        if (!ponderEnabled || computerThinking || computerColor < 0 || board.getSideToMove() == computerColor
+                || (ponderThread != null && ponderThread.isAlive())) {
+            return;
         }
-
-        private void initializeBoard() {
-            grid = new Piece[8][8];
-
-            // Initialize white pieces.
-            grid[0] = new Piece[]{
-                new Rook(0, 0, 0), new Knight(0, 1, 0), new Bishop(0, 2, 0), new Queen(0, 3, 0),
-                new King(0, 4, 0), new Bishop(0, 5, 0), new Knight(0, 6, 0), new Rook(0, 7, 0)
-            };
-            for (int col = 0; col < 8; col++) {
-                grid[1][col] = new Pawn(1, col, 0);
+        int predicted = predictedReply();
+        if (predicted == Move.NONE) {
+            return;
+        }
+        Board ponderBoard = new Board(board);
+        ponderBoard.makeMove(predicted);
+        LazySmp smp = searcher;
+        AtomicBoolean cancel = new AtomicBoolean();
+        ponderSearcher = smp;
+        ponderCancel = cancel;
+        ponderKey = ponderBoard.getZobristKey();
+        ponderStart = System.nanoTime();
+        // Java 17 has no virtual threads, so this is a daemon platform thread.
+        ponderThread = new Thread(() -> {
+            try {
+                smp.search(ponderBoard, PONDER_TIME_MS, Search.MAX_DEPTH, cancel);
+            } catch (RejectedExecutionException ex) {
+                // The thread count was changed just as pondering started.
             }
+        }, "ponder");
+        ponderThread.setDaemon(true);
+        ponderThread.start();
+    }
 
-            // Initialize black pieces.
-            grid[7] = new Piece[]{
-                new Rook(7, 0, 1), new Knight(7, 1, 1), new Bishop(7, 2, 1), new Queen(7, 3, 1),
-                new King(7, 4, 1), new Bishop(7, 5, 1), new Knight(7, 6, 1), new Rook(7, 7, 1)
-            };
-            for (int col = 0; col < 8; col++) {
-                grid[6][col] = new Pawn(6, col, 1);
+    /**
+     * Asks the ponder search to stop without waiting for it, so the EDT never blocks.
+     * Whoever searches next joins the thread first.
+     */
+    private void cancelPondering() {
+        if (ponderThread != null) {
+            ponderCancel.set(true);
+            ponderSearcher.stop();
+        }
+    }
+
+    /**
+     * Returns the stored best move for the position if it is legal, or Move.NONE.
+     */
+    private int predictedReply() {
+        long entry = transpositionTable.probe(board.getZobristKey());
+        if (entry == 0) {
+            return Move.NONE;
+        }
+        int key = TranspositionTable.move(entry);
+        int[] moves = new int[Move.MAX_MOVES];
+        int count = board.generateLegalMoves(moves);
+        for (int i = 0; i < count; i++) {
+            if (Move.key(moves[i]) == key) {
+                return moves[i];
             }
         }
+        return Move.NONE;
+    }
 
-        public Piece getPiece(int row, int col) {
-            return grid[row][col];
+    /**
+     * The chess board as one component that paints its own squares. Piece glyphs are
+     * rendered once per square size into images, and after a move only the squares
+     * whose piece or highlight changed are repainted.
+     */
+    private class ChessBoardPanel extends JComponent {
+        private static final int ROWS = 8;
+        private static final int COLS = 8;
+        private final Color lightColor = new Color(238, 238, 210);
+        private final Color darkColor = new Color(118, 150, 86);
+
+        // What each square showed when it was last marked for painting: the piece's
+        // color * 6 + type, or -1 for an empty square.
+        private final int[] shown = new int[ROWS * COLS];
+        private long highlighted = 0L;
+        private final GlyphCache glyphs = new GlyphCache();
+
+        public ChessBoardPanel() {
+            setPreferredSize(new Dimension(COLS * 70, ROWS * 70));
+            setOpaque(true);
+            java.util.Arrays.fill(shown, -1);
+            addMouseListener(new SquareClickListener());
+            updateBoard();
         }
 
-        public void setPiece(int row, int col, Piece piece) {
-            grid[row][col] = piece;
+        /**
+         * Marks the squares whose piece changed since the last update for repainting,
+         * and clears any temporary highlights.
+         */
+        public void updateBoard() {
+            for (int sq = 0; sq < ROWS * COLS; sq++) {
+                Piece piece = board.getPiece(sq >>> 3, sq & 7);
+                int code = piece == null ? -1 : piece.getColor() * 6 + piece.getType();
+                if (shown[sq] != code) {
+                    shown[sq] = code;
+                    repaintSquare(sq);
+                }
+            }
+            clearHighlights();
         }
 
         /**
-         * Returns the board grid so that pieces can compute their valid moves.
+         * Clears highlights from all squares.
          */
-        public Piece[][] getGrid() {
-            return grid;
+        public void clearHighlights() {
+            setHighlights(0L);
         }
 
         /**
-         * Checks whether a move is valid including boundary, collision, and
-         * simulation to ensure the king is not left in check.
+         * Highlights the given squares, repainting only those that change.
          */
-        public boolean isValidMove(Piece piece, int newRow, int newCol) {
-            // Check board boundaries.
-            if (newRow < 0 || newRow >= 8 || newCol < 0 || newCol >= 8) {
-                return false;
-            }
-            // Cannot capture a piece of the same color.
-            if (grid[newRow][newCol] != null && grid[newRow][newCol].getColor() == piece.getColor()) {
-                return false;
-            }
-            // Check if the piece's move pattern allows the move.
-            if (!piece.isValidMove(newRow, newCol, grid)) {
-                return false;
+        public void setHighlights(long squares) {
+            long changed = highlighted ^ squares;
+            highlighted = squares;
+            for (; changed != 0; changed &= changed - 1) {
+                repaintSquare(Long.numberOfTrailingZeros(changed));
             }
+        }
 
-            // Simulate the move to check whether it leaves the king in check.
-            Piece original = grid[newRow][newCol];
-            int oldRow = piece.getRow();
-            int oldCol = piece.getCol();
-
-            grid[oldRow][oldCol] = null;
-            grid[newRow][newCol] = piece;
-            piece.setPosition(newRow, newCol);
+        private int squareSize() {
+            return Math.max(1, Math.min(getWidth() / COLS, getHeight() / ROWS));
+        }
 
-            boolean inCheck = isCheck(piece.getColor());
+        // The board is centred in the component; row 0 is drawn at the top.
+        private int boardX() {
+            return (getWidth() - squareSize() * COLS) / 2;
+        }
 
-            // Undo the simulated move.
-            grid[oldRow][oldCol] = piece;
-            grid[newRow][newCol] = original;
-            piece.setPosition(oldRow, oldCol);
+        private int boardY() {
+            return (getHeight() - squareSize() * ROWS) / 2;
+        }
 
-            return !inCheck;
+        private void repaintSquare(int sq) {
+            int size = squareSize();
+            repaint(boardX() + (sq & 7) * size, boardY() + (sq >>> 3) * size, size, size);
         }
 
         /**
-         * Moves a piece and updates any special state (e.g., a rook’s moved status).
+         * Returns the square index under the point, or -1 outside the board.
          */
-        public void movePiece(Piece piece, int newRow, int newCol) {
-            grid[piece.getRow()][piece.getCol()] = null;
-            grid[newRow][newCol] = piece;
-            piece.setPosition(newRow, newCol);
-            // Mark the rook as moved if applicable.
-            if (piece instanceof Rook) {
-                ((Rook) piece).setMoved(true);
+        int squareAt(Point point) {
+            int size = squareSize();
+            int col = Math.floorDiv(point.x - boardX(), size);
+            int row = Math.floorDiv(point.y - boardY(), size);
+            return row < 0 || row >= ROWS || col < 0 || col >= COLS ? -1 : row * COLS + col;
+        }
+
+        @Override
+        protected void paintComponent(Graphics g) {
+            Graphics2D g2 = (Graphics2D) g;
+            int size = squareSize();
+            int x0 = boardX();
+            int y0 = boardY();
+            Rectangle clip = g2.getClipBounds();
+            if (clip == null) {
+                clip = new Rectangle(0, 0, getWidth(), getHeight());
+            }
+            g2.setColor(getBackground() != null ? getBackground() : Color.LIGHT_GRAY);
+            if (!new Rectangle(x0, y0, size * COLS, size * ROWS).contains(clip)) {
+                g2.fillRect(clip.x, clip.y, clip.width, clip.height);
+            }
+
+            // Only the squares inside the clip are painted.
+            int firstCol = Math.max(0, (clip.x - x0) / size);
+            int lastCol = Math.min(COLS - 1, (clip.x + clip.width - 1 - x0) / size);
+            int firstRow = Math.max(0, (clip.y - y0) / size);
+            int lastRow = Math.min(ROWS - 1, (clip.y + clip.height - 1 - y0) / size);
+            double scale = g2.getTransform().getScaleX();
+            for (int row = firstRow; row <= lastRow; row++) {
+                for (int col = firstCol; col <= lastCol; col++) {
+                    int x = x0 + col * size;
+                    int y = y0 + row * size;
+                    int sq = row * COLS + col;
+                    g2.setColor((row + col) % 2 == 0 ? lightColor : darkColor);
+                    g2.fillRect(x, y, size, size);
+                    if ((highlighted & (1L << sq)) != 0) {
+                        g2.setColor(Color.YELLOW);
+                        g2.fillRect(x, y, size, 3);
+                        g2.fillRect(x, y + size - 3, size, 3);
+                        g2.fillRect(x, y, 3, size);
+                        g2.fillRect(x + size - 3, y, 3, size);
+                    }
+                    Piece piece = board.getPiece(row, col);
+                    if (piece != null) {
+                        g2.drawImage(glyphs.get(piece, (int) Math.round(size * scale)), x, y, size, size, null);
+                    }
+                }
             }
         }
+    }
 
-        /**
-         * Removes the captured pawn from the board for en passant.
-         */
-        public void captureEnPassant(Piece pawn) {
-            grid[pawn.getRow()][pawn.getCol()] = null;
+    /**
+     * A side panel that keeps analysing the position on the board and shows the best
+     * few lines with their scores, White's view, and the depth reached. One daemon
+     * thread runs a multi-PV search with its own transposition table. A new position
+     * stops the running search and starts the next one with the table still warm. The
+     * search thread only stores the latest text, and a Swing timer shows it at most
+     * every ANALYSIS_REFRESH_MS, so quick shallow iterations never flood the EDT.
+     */
+    private final class AnalysisPanel extends JPanel {
+        private final JTextArea linesArea = new JTextArea(10, 30);
+        private final JSpinner linesSpinner = new JSpinner(new SpinnerNumberModel(3, 1, 8, 1));
+        private final TranspositionTable table = new TranspositionTable(16);
+        private final AtomicBoolean stopSignal = new AtomicBoolean();
+        private final Search search = new Search(table, stopSignal, 0);
+        private final Timer refreshTimer = new Timer(ANALYSIS_REFRESH_MS, e -> refresh());
+        private final int[] lineMoves = new int[Move.MAX_MOVES];
+        private final int[] lineScores = new int[Move.MAX_MOVES];
+        private final int[] pv = new int[Search.MAX_DEPTH];
+        private Thread thread;
+        private String shown;
+        // Only the analysis thread touches this: the position being searched.
+        private Board analysed;
+
+        // Guarded by this. The next position to analyse and its line count, the number
+        // of the latest position, the number of the one being searched, and its text.
+        private Board pending;
+        private int pendingLines;
+        private int generation;
+        private int searching;
+        private String latest = "";
+
+        AnalysisPanel() {
+            super(new BorderLayout());
+            linesArea.setEditable(false);
+            linesArea.setLineWrap(true);
+            linesArea.setWrapStyleWord(true);
+            linesArea.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
+            linesSpinner.addChangeListener(e -> analyze(board));
+            JPanel controls = new JPanel(new FlowLayout(FlowLayout.LEFT));
+            controls.add(new JLabel("Lines:"));
+            controls.add(linesSpinner);
+            add(controls, BorderLayout.NORTH);
+            add(new JScrollPane(linesArea), BorderLayout.CENTER);
+            search.setIterationListener(this::iterationCompleted);
+            setVisible(false);
         }
 
         /**
-         * Checks if the king of the specified color is in check.
+         * Starts analysing the position, stopping the search of the previous one. Does
+         * nothing while the panel is hidden.
          */
-        public boolean isCheck(int color) {
-            Piece king = findKing(color);
-            return isSquareUnderAttack(king.getRow(), king.getCol(), 1 - color);
+        void analyze(Board position) {
+            if (!isVisible()) {
+                return;
+            }
+            synchronized (this) {
+                pending = new Board(position);
+                pendingLines = (Integer) linesSpinner.getValue();
+                generation++;
+                latest = "Analysing...";
+                stopSignal.set(true);
+                notifyAll();
+            }
+            if (thread == null) {
+                thread = new Thread(this::run, "analysis");
+                thread.setDaemon(true);
+                thread.start();
+            }
+            refreshTimer.start();
         }
 
         /**
-         * Checks if the given color is in checkmate.
+         * Stops the search and clears the lines.
          */
-        public boolean isCheckmate(int color) {
-            if (!isCheck(color)) {
-                return false;
+        void stop() {
+            synchronized (this) {
+                pending = null;
+                generation++;
+                latest = "";
+                stopSignal.set(true);
             }
-            // For each piece of the given color, try every valid move.
-            for (int row = 0; row < 8; row++) {
-                for (int col = 0; col < 8; col++) {
-                    Piece piece = grid[row][col];
-                    if (piece != null && piece.getColor() == color) {
-                        List<Point> moves = piece.getValidMoves(grid);
-                        for (Point move : moves) {
-                            if (tryMove(piece, move.x, move.y)) {
-                                return false;
-                            }
+            refreshTimer.stop();
+            linesArea.setText("");
+            shown = null;
+        }
+
+        private void run() {
+            while (true) {
+                Board position;
+                int lines;
+                synchronized (this) {
+                    while (pending == null) {
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            return;
                         }
                     }
+                    position = pending;
+                    lines = pendingLines;
+                    pending = null;
+                    searching = generation;
+                    stopSignal.set(false);
+                }
+                analysed = position;
+                search.setMultiPv(lines);
+                SearchResult result = search.search(position, Uci.INFINITE_MILLIS, Search.MAX_DEPTH);
+                if (result.getBestMove() == Move.NONE) {
+                    publish("No legal moves.");
                 }
             }
-            return true;
         }
 
         /**
-         * Tries a move and checks whether it leaves the king in check.
+         * Formats the lines of a finished iteration, on the analysis thread with the
+         * board at the root.
          */
-        private boolean tryMove(Piece piece, int newRow, int newCol) {
-            if (!isValidMove(piece, newRow, newCol)) {
-                return false;
+        private void iterationCompleted(SearchResult result) {
+            int count = search.getLines(lineMoves, lineScores);
+            StringBuilder text = new StringBuilder(String.format("Depth %d, %,d nodes/s%n",
+                    result.getDepth(), result.getNodesPerSecond()));
+            for (int i = 0; i < count; i++) {
+                text.append(String.format("%n%d. %s  ", i + 1, formatScore(lineScores[i])));
+                int length = table.principalVariation(analysed, lineMoves[i], pv, result.getDepth());
+                for (int j = 0; j < length; j++) {
+                    if (analysed.getSideToMove() == 0 || j == 0) {
+                        text.append(analysed.getFullmoveNumber()).append(analysed.getSideToMove() == 0 ? ". " : "... ");
+                    }
+                    text.append(analysed.toSan(pv[j])).append(' ');
+                    analysed.makeMove(pv[j]);
+                }
+                for (int j = 0; j < length; j++) {
+                    analysed.unmakeMove();
+                }
             }
-            Piece original = grid[newRow][newCol];
-            int oldRow = piece.getRow();
-            int oldCol = piece.getCol();
+            publish(text.toString());
+        }
 
-            grid[oldRow][oldCol] = null;
-            grid[newRow][newCol] = piece;
-            piece.setPosition(newRow, newCol);
-
-            boolean stillInCheck = isCheck(piece.getColor());
-
-            grid[oldRow][oldCol] = piece;
-            grid[newRow][newCol] = original;
-            piece.setPosition(oldRow, oldCol);
-
-            return !stillInCheck;
+        /**
+         * Keeps the text unless the position has changed since this search started.
+         */
+        private synchronized void publish(String text) {
+            if (searching == generation) {
+                latest = text;
+            }
         }
 
         /**
-         * Finds and returns the king piece for the given color.
+         * Scores in pawns from White's side, or moves to mate after "#".
          */
-        private Piece findKing(int color) {
-            for (int row = 0; row < 8; row++) {
-                for (int col = 0; col < 8; col++) {
-                    Piece piece = grid[row][col];
-                    if (piece instanceof King && piece.getColor() == color) {
-                        return piece;
-                    }
-                }
+        private String formatScore(int score) {
+            int white = analysed.getSideToMove() == 0 ? score : -score;
+            if (Math.abs(white) >= Search.MATE_SCORE - Search.MAX_DEPTH * 2) {
+                int moves = (Search.MATE_SCORE - Math.abs(white) + 1) / 2;
+                return (white > 0 ? "#" : "#-") + moves;
             }
-            return null;
+            return String.format("%+.2f", white / 100.0);
         }
 
         /**
-         * Determines whether a square is under attack by any piece of the attacking color.
+         * Shows the latest text if it changed; runs on the EDT from the refresh timer.
          */
-        public boolean isSquareUnderAttack(int targetRow, int targetCol, int attackingColor) {
-            for (int row = 0; row < 8; row++) {
-                for (int col = 0; col < 8; col++) {
-                    Piece piece = grid[row][col];
-                    if (piece != null && piece.getColor() == attackingColor) {
-                        if (piece.isValidMove(targetRow, targetCol, grid)) {
-                            return true;
-                        }
-                    }
-                }
+        private void refresh() {
+            String text;
+            synchronized (this) {
+                text = latest;
+            }
+            if (!text.equals(shown)) {
+                linesArea.setText(text);
+                linesArea.setCaretPosition(0);
+                shown = text;
             }
-            return false;
         }
     }
 
     /**
-     * The abstract Piece class representing a chess piece.
+     * Piece glyphs pre-rendered into images, twelve per square size. The last few
+     * sizes are kept, so resizing back and forth does not render them again.
      */
-    private abstract class Piece {
-        protected int row;
-        protected int col;
-        protected int color;
-        protected String symbol;
-        protected int previousRow;
-        protected int previousCol;
-
-        public Piece(int row, int col, int color) {
-            this.row = row;
-            this.col = col;
-            this.color = color;
-            this.previousRow = row;
-            this.previousCol = col;
-        }
-
-        public abstract boolean isValidMove(int newRow, int newCol, Piece[][] grid);
-
-        public abstract List<Point> getValidMoves(Piece[][] grid);
+    private static final class GlyphCache {
+        private static final int SIZES_KEPT = 4;
+        private final Map<Integer, java.awt.image.BufferedImage[]> imagesBySize =
+                new LinkedHashMap<>(8, 0.75f, true) {
+                    @Override
+                    protected boolean removeEldestEntry(Map.Entry<Integer, java.awt.image.BufferedImage[]> eldest) {
+                        return size() > SIZES_KEPT;
+                    }
+                };
 
         /**
-         * Updates the piece's position and saves the previous position.
+         * Returns the image of the piece's glyph for a square of the given size in pixels.
          */
-        public void setPosition(int row, int col) {
-            previousRow = this.row;
-            previousCol = this.col;
-            this.row = row;
-            this.col = col;
+        Image get(Piece piece, int size) {
+            java.awt.image.BufferedImage[] images =
+                    imagesBySize.computeIfAbsent(size, key -> new java.awt.image.BufferedImage[12]);
+            int index = piece.getColor() * 6 + piece.getType();
+            if (images[index] == null) {
+                images[index] = render(piece.getSymbol(), piece.getColor() == 0 ? Color.WHITE : Color.BLACK, size);
+            }
+            return images[index];
         }
 
-        public int getPreviousRow() {
-            return previousRow;
+        private static java.awt.image.BufferedImage render(String symbol, Color color, int size) {
+            java.awt.image.BufferedImage image =
+                    new java.awt.image.BufferedImage(size, size, java.awt.image.BufferedImage.TYPE_INT_ARGB);
+            Graphics2D g = image.createGraphics();
+            g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+            g.setRenderingHint(RenderingHints.KEY_FRACTIONALMETRICS, RenderingHints.VALUE_FRACTIONALMETRICS_ON);
+            g.setFont(new Font("SansSerif", Font.PLAIN, Math.max(1, size * 4 / 7)));
+            FontMetrics metrics = g.getFontMetrics();
+            int x = (size - metrics.stringWidth(symbol)) / 2;
+            int y = (size - metrics.getHeight()) / 2 + metrics.getAscent();
+            g.setColor(color);
+            g.drawString(symbol, x, y);
+            g.dispose();
+            return image;
         }
+    }
 
-        public int getPreviousCol() {
-            return previousCol;
+    /**
+     * Handles mouse clicks on the board.
+     */
+    private class SquareClickListener extends MouseAdapter {
+        @Override
+        public void mouseClicked(MouseEvent e) {
+            // Ignore clicks while it is the computer's turn.
+            if (computerThinking || board.getSideToMove() == computerColor) {
+                return;
+            }
+            int sq = chessBoardPanel.squareAt(e.getPoint());
+            if (sq < 0) {
+                return;
+            }
+            // Clear any previous highlights.
+            chessBoardPanel.clearHighlights();
+
+            if (selectedPiece == null) {
+                handlePieceSelection(sq >>> 3, sq & 7);
+            } else {
+                handlePieceMovement(sq >>> 3, sq & 7);
+            }
         }
 
-        public String getSymbol() {
-            return symbol;
+        /**
+         * When no piece is selected, try to select a piece.
+         */
+        private void handlePieceSelection(int row, int col) {
+            Piece piece = board.getPiece(row, col);
+            if (piece != null && piece.getColor() == board.getSideToMove()) {
+                selectedPiece = piece;
+                highlightValidMoves();
+            }
         }
 
-        public int getColor() {
-            return color;
+        /**
+         * When a piece is selected, try to move it to the clicked square.
+         */
+        private void handlePieceMovement(int newRow, int newCol) {
+            if (board.isValidMove(selectedPiece, newRow, newCol)) {
+                int promotionType = QUEEN;
+                if (selectedPiece instanceof Pawn && (newRow == 0 || newRow == 7)) {
+                    promotionType = askPromotionType();
+                }
+                board.playMove(selectedPiece, newRow, newCol, promotionType);
+                redoMoves.clear();
+                handlePostMoveLogic();
+            }
+            selectedPiece = null;
+            chessBoardPanel.updateBoard();
         }
 
-        public int getRow() {
-            return row;
+        /**
+         * Prompts the user for a pawn promotion choice.
+         */
+        private int askPromotionType() {
+            Object[] options = {"Queen", "Rook", "Bishop", "Knight"};
+            int choice = JOptionPane.showOptionDialog(null, "Promote pawn to:", "Pawn Promotion",
+                    JOptionPane.DEFAULT_OPTION, JOptionPane.PLAIN_MESSAGE, null, options, options[0]);
+
+            return switch (choice) {
+                case 1 -> ROOK;
+                case 2 -> BISHOP;
+                case 3 -> KNIGHT;
+                default -> QUEEN;
+            };
         }
 
-        public int getCol() {
-            return col;
+        /**
+         * Highlights all legal moves for the selected piece.
+         */
+        private void highlightValidMoves() {
+            // Ask the legal move generator where the selected piece may go.
+            chessBoardPanel.setHighlights(board.getLegalTargets(selectedPiece));
         }
     }
 
+    // Piece types, used to index the bitboards.
+    private static final int PAWN = 0;
+    private static final int KNIGHT = 1;
+    private static final int BISHOP = 2;
+    private static final int ROOK = 3;
+    private static final int QUEEN = 4;
+    private static final int KING = 5;
+
     /**
-     * The Pawn class with move logic including regular moves, captures, and en passant.
+     * Precomputed attack tables and helpers for the 64-bit board representation.
+     * Squares are numbered row * 8 + col, so bit 0 is row 0, col 0 and bit 63 is row 7, col 7.
      */
-    private class Pawn extends Piece {
+    private static final class Bitboards {
+        private static final long[] KNIGHT_ATTACKS = new long[64];
+        private static final long[] KING_ATTACKS = new long[64];
+        private static final long[][] PAWN_ATTACKS = new long[2][64];
+        private static final long[][] BETWEEN = new long[64][64];
+        private static final long[][] LINE = new long[64][64];
 
-        public Pawn(int row, int col, int color) {
-            super(row, col, color);
-            symbol = color == 0 ? "♙" : "♟";
-        }
+        // Magic bitboard tables for sliding pieces. The relevant blockers of a square are
+        // multiplied by its magic number, and the top bits of the product index straight
+        // into the attack table.
+        private static final long[] ROOK_MASKS = new long[64];
+        private static final long[] ROOK_MAGICS = new long[64];
+        private static final int[] ROOK_SHIFTS = new int[64];
+        private static final int[] ROOK_OFFSETS = new int[64];
+        private static final long[] ROOK_TABLE = new long[102400];
+        private static final long[] BISHOP_MASKS = new long[64];
+        private static final long[] BISHOP_MAGICS = new long[64];
+        private static final int[] BISHOP_SHIFTS = new int[64];
+        private static final int[] BISHOP_OFFSETS = new int[64];
+        private static final long[] BISHOP_TABLE = new long[5248];
 
-        @Override
-        public boolean isValidMove(int newRow, int newCol, Piece[][] grid) {
-            int direction = color == 0 ? 1 : -1;
-            int startRow = color == 0 ? 1 : 6;
+        // Magics found once by the search in initMagics, so start-up only fills the tables.
+        private static final long[] ROOK_KNOWN_MAGICS = {
+            0x480053081214000L, 0x40100040002001L, 0x6080200080100008L, 0x200082004411200L,
+            0x200102008040200L, 0x1100240028210012L, 0x1080008001000200L, 0x100020028488100L,
+            0x1800220400086L, 0x2488804000802004L, 0xC00801000200081L, 0x201C801000080080L,
+            0x441000800100500L, 0xA0808002000400L, 0x125000402000100L, 0x1002200409100L,
+            0x280004020004000L, 0x5110084020004000L, 0x1050020024011L, 0x2020020081040L,
+            0x800050008010010L, 0x81C0808002000400L, 0x8010808001000200L, 0x6000100408CL,
+            0x280400080008020L, 0x3000500040002000L, 0x8400200080801000L, 0x80A01001000D0020L,
+            0x900C001101000800L, 0x110040080800200L, 0x1001000100040200L, 0x60040200008041L,
+            0x4480804000800038L, 0x40002001804080L, 0x2010882000801000L, 0x80282801000L,
+            0x200080080800400L, 0x206000400808002L, 0x2000020001010004L, 0x1014042042000091L,
+            0x200208040008000L, 0x40201000404002L, 0x244200100110041L, 0x41019000090020L,
+            0xA28001100850008L, 0x20020004008080L, 0x1001220108140010L, 0x8A0400408106000CL,
+            0x220100508200L, 0x6040048049003100L, 0x200011024300L, 0x900100082500L,
+            0x870040008008080L, 0x850800600040180L, 0x6008104480200L, 0x1800040108B04200L,
+            0xD12C201080010341L, 0x101042040008013L, 0x2801004008200273L, 0x1900614C500009L,
+            0x202004461500802L, 0x2001008040102L, 0x10001028B1080604L, 0xD000040803201L
+        };
+        private static final long[] BISHOP_KNOWN_MAGICS = {
+            0x6460220208002480L, 0x8308C80104002010L, 0xB408121042008000L, 0xC48205040021000L,
+            0x1002021000020000L, 0x840882440802010L, 0x80809008204040L, 0x1402011028A0L,
+            0x88EC002040400B0L, 0x5500608087180L, 0xA20089020010L, 0x10908602C060L,
+            0x2810420210014000L, 0x40024802400080L, 0x408484230100840L, 0x20A08A4011800L,
+            0x20003062062848L, 0x2504510440102L, 0xA23005310C008810L, 0x48000104110044L,
+            0x10A000422010008L, 0x2021000200A0A400L, 0x4400208124801L, 0x8000280480841000L,
+            0x8110100206600229L, 0x814204102080909L, 0xA0300002040840L, 0x8808080000202020L,
+            0x4040400C0410040L, 0x108404200C101400L, 0x1C1012000480802L, 0xA020520040420200L,
+            0x2404100800062001L, 0x2014400208804L, 0x100805000410402L, 0x241420080080080L,
+            0x8040040444030100L, 0xF50064242020110L, 0x1020200888818L, 0x801021200018069L,
+            0x2803086094A01040L, 0x2440482804444800L, 0x2002024200804L, 0x880101420800C084L,
+            0x40A4182008200900L, 0x8420008102041040L, 0x901001304A0508L, 0x450021448519100L,
+            0x402021002080A10L, 0xD01009084020CL, 0x20800A0046480040L, 0x83020880220L,
+            0x1010803040142L, 0x81001520000L, 0x40100420809000L, 0x22900428808202L,
+            0x404044202010L, 0x1008004044108804L, 0x1008305509415000L, 0x1000840400208840L,
+            0x810260A12020201L, 0x3000A04410020210L, 0x903102082008204L, 0x490808088808C308L
+        };
 
-            // Regular move forward.
-            if (col == newCol && grid[newRow][newCol] == null) {
-                if (newRow == row + direction) {
-                    return true;
-                }
-                if (row == startRow && newRow == row + 2 * direction && grid[row + direction][col] == null) {
-                    return true;
+        private static final int[][] KNIGHT_OFFSETS = {
+            {2, 1}, {1, 2}, {-1, 2}, {-2, 1},
+            {-2, -1}, {-1, -2}, {1, -2}, {2, -1}
+        };
+        private static final int[][] KING_OFFSETS = {
+            {1, 0}, {1, 1}, {0, 1}, {-1, 1},
+            {-1, 0}, {-1, -1}, {0, -1}, {1, -1}
+        };
+        private static final int[][] ROOK_DIRECTIONS = {{0, 1}, {1, 0}, {0, -1}, {-1, 0}};
+        private static final int[][] BISHOP_DIRECTIONS = {{1, 1}, {1, -1}, {-1, 1}, {-1, -1}};
+
+        static {
+            // A fixed seed finds the same magics on every start, should a known one not fit.
+            java.util.Random random = new java.util.Random(1L);
+            initMagics(ROOK_DIRECTIONS, ROOK_KNOWN_MAGICS, ROOK_MASKS, ROOK_MAGICS, ROOK_SHIFTS, ROOK_OFFSETS,
+                    ROOK_TABLE, random);
+            initMagics(BISHOP_DIRECTIONS, BISHOP_KNOWN_MAGICS, BISHOP_MASKS, BISHOP_MAGICS, BISHOP_SHIFTS,
+                    BISHOP_OFFSETS, BISHOP_TABLE, random);
+
+            for (int sq = 0; sq < 64; sq++) {
+                int row = sq >>> 3;
+                int col = sq & 7;
+                KNIGHT_ATTACKS[sq] = offsetAttacks(row, col, KNIGHT_OFFSETS);
+                KING_ATTACKS[sq] = offsetAttacks(row, col, KING_OFFSETS);
+                PAWN_ATTACKS[0][sq] = offsetAttacks(row, col, new int[][]{{1, -1}, {1, 1}});
+                PAWN_ATTACKS[1][sq] = offsetAttacks(row, col, new int[][]{{-1, -1}, {-1, 1}});
+            }
+            for (int a = 0; a < 64; a++) {
+                for (int b = 0; b < 64; b++) {
+                    long ends = (1L << a) | (1L << b);
+                    if (a == b) {
+                        continue;
+                    }
+                    if ((rookAttacks(a, 0L) & (1L << b)) != 0) {
+                        BETWEEN[a][b] = rookAttacks(a, 1L << b) & rookAttacks(b, 1L << a);
+                        LINE[a][b] = (rookAttacks(a, 0L) & rookAttacks(b, 0L)) | ends;
+                    } else if ((bishopAttacks(a, 0L) & (1L << b)) != 0) {
+                        BETWEEN[a][b] = bishopAttacks(a, 1L << b) & bishopAttacks(b, 1L << a);
+                        LINE[a][b] = (bishopAttacks(a, 0L) & bishopAttacks(b, 0L)) | ends;
+                    }
                 }
             }
+        }
 
-            // Capture move (including en passant).
-            if (Math.abs(newCol - col) == 1 && newRow == row + direction) {
-                if (grid[newRow][newCol] != null && grid[newRow][newCol].color != color) {
-                    return true;
-                }
-                if (grid[row][newCol] instanceof Pawn && grid[row][newCol] == enPassantVulnerable) {
-                    return true;
+        private Bitboards() {
+        }
+
+        private static long offsetAttacks(int row, int col, int[][] offsets) {
+            long attacks = 0L;
+            for (int[] offset : offsets) {
+                int r = row + offset[0];
+                int c = col + offset[1];
+                if (r >= 0 && r < 8 && c >= 0 && c < 8) {
+                    attacks |= bit(r, c);
                 }
             }
-            return false;
+            return attacks;
         }
 
-        @Override
-        public List<Point> getValidMoves(Piece[][] grid) {
-            List<Point> moves = new ArrayList<>();
-            int direction = color == 0 ? 1 : -1;
-            int startRow = color == 0 ? 1 : 6;
+        /**
+         * Fills each square's slice of the attack table, starting from its known magic and
+         * searching for a new one by trial only if that collides. Each candidate must map
+         * every blocker subset to a slot that holds either nothing yet or the same attack set.
+         */
+        private static void initMagics(int[][] directions, long[] knownMagics, long[] masks, long[] magics,
+                int[] shifts, int[] offsets, long[] table, java.util.Random random) {
+            long[] blockers = new long[4096];
+            long[] attacks = new long[4096];
+            int[] usedBy = new int[4096];
+            int attempt = 0;
+            int offset = 0;
+            for (int sq = 0; sq < 64; sq++) {
+                long mask = relevantBlockers(sq, directions);
+                int bits = Long.bitCount(mask);
+                int size = 1 << bits;
 
-            // Forward moves.
-            if (grid[row + direction][col] == null) {
-                moves.add(new Point(row + direction, col));
-                if (row == startRow && grid[row + 2 * direction][col] == null) {
-                    moves.add(new Point(row + 2 * direction, col));
+                // Enumerate every subset of the mask with the carry-rippler trick.
+                long subset = 0L;
+                for (int i = 0; i < size; i++) {
+                    blockers[i] = subset;
+                    attacks[i] = slidingAttacks(sq, subset, directions);
+                    subset = (subset - mask) & mask;
                 }
-            }
 
-            // Diagonal captures.
-            for (int dc = -1; dc <= 1; dc += 2) {
-                if (col + dc >= 0 && col + dc < 8) {
-                    if (grid[row + direction][col + dc] != null && grid[row + direction][col + dc].color != color) {
-                        moves.add(new Point(row + direction, col + dc));
+                long magic = knownMagics[sq];
+                boolean found = false;
+                while (!found) {
+                    // Good magics spread the mask into the high bits; skip the rest cheaply.
+                    if (Long.bitCount((mask * magic) & 0xFF00_0000_0000_0000L) >= 6) {
+                        attempt++;
+                        found = true;
+                        for (int i = 0; i < size && found; i++) {
+                            int index = (int) ((blockers[i] * magic) >>> (64 - bits));
+                            if (usedBy[index] != attempt) {
+                                usedBy[index] = attempt;
+                                table[offset + index] = attacks[i];
+                            } else if (table[offset + index] != attacks[i]) {
+                                found = false;
+                            }
+                        }
                     }
-                    // Note: En passant capture square is the same as a diagonal move.
-                    else if (grid[row][col + dc] instanceof Pawn && grid[row][col + dc] == enPassantVulnerable) {
-                        moves.add(new Point(row + direction, col + dc));
+                    if (!found) {
+                        magic = random.nextLong() & random.nextLong() & random.nextLong();
                     }
                 }
-            }
-            return moves;
-        }
-    }
-
-    /**
-     * The Rook class with straight-line movement.
-     */
-    private class Rook extends Piece {
-        private boolean hasMoved = false;
-
-        public Rook(int row, int col, int color) {
-            super(row, col, color);
-            symbol = color == 0 ? "♖" : "♜";
-        }
 
-        public boolean hasMoved() {
-            return hasMoved;
-        }
-
-        public void setMoved(boolean moved) {
-            this.hasMoved = moved;
+                masks[sq] = mask;
+                magics[sq] = magic;
+                shifts[sq] = 64 - bits;
+                offsets[sq] = offset;
+                offset += size;
+            }
         }
 
-        @Override
-        public boolean isValidMove(int newRow, int newCol, Piece[][] grid) {
-            if (row != newRow && col != newCol) {
-                return false;
-            }
-            int stepX = Integer.compare(newCol, col);
-            int stepY = Integer.compare(newRow, row);
-            int currentX = col + stepX;
-            int currentY = row + stepY;
-            while (currentX != newCol || currentY != newRow) {
-                if (grid[currentY][currentX] != null) {
-                    return false;
+        /**
+         * Returns the squares whose occupancy can change the sliding attacks from sq.
+         * The last square of each ray is left out, since it is attacked either way.
+         */
+        private static long relevantBlockers(int sq, int[][] directions) {
+            long mask = 0L;
+            int row = sq >>> 3;
+            int col = sq & 7;
+            for (int[] dir : directions) {
+                int r = row + dir[0];
+                int c = col + dir[1];
+                while (r + dir[0] >= 0 && r + dir[0] < 8 && c + dir[1] >= 0 && c + dir[1] < 8) {
+                    mask |= bit(r, c);
+                    r += dir[0];
+                    c += dir[1];
                 }
-                currentX += stepX;
-                currentY += stepY;
             }
-            return true;
+            return mask;
         }
 
-        @Override
-        public List<Point> getValidMoves(Piece[][] grid) {
-            List<Point> moves = new ArrayList<>();
-            int[][] directions = {{0, 1}, {1, 0}, {0, -1}, {-1, 0}};
+        /**
+         * Walks each ray from the square until it leaves the board or hits an occupied square.
+         * Only used to build the magic tables.
+         */
+        private static long slidingAttacks(int sq, long occupied, int[][] directions) {
+            long attacks = 0L;
+            int row = sq >>> 3;
+            int col = sq & 7;
             for (int[] dir : directions) {
                 int r = row + dir[0];
                 int c = col + dir[1];
                 while (r >= 0 && r < 8 && c >= 0 && c < 8) {
-                    if (grid[r][c] == null) {
-                        moves.add(new Point(r, c));
-                    } else {
-                        if (grid[r][c].color != color) {
-                            moves.add(new Point(r, c));
-                        }
+                    long b = bit(r, c);
+                    attacks |= b;
+                    if ((occupied & b) != 0) {
                         break;
                     }
                     r += dir[0];
                     c += dir[1];
                 }
             }
-            return moves;
+            return attacks;
         }
-    }
-
-    /**
-     * The Knight class with L-shaped moves.
-     */
-    private class Knight extends Piece {
 
-        public Knight(int row, int col, int color) {
-            super(row, col, color);
-            symbol = color == 0 ? "♘" : "♞";
+        static int square(int row, int col) {
+            return row * 8 + col;
         }
 
-        @Override
-        public boolean isValidMove(int newRow, int newCol, Piece[][] grid) {
-            int dx = Math.abs(newCol - col);
-            int dy = Math.abs(newRow - row);
-            return (dx == 1 && dy == 2) || (dx == 2 && dy == 1);
+        static long bit(int row, int col) {
+            return 1L << square(row, col);
         }
 
-        @Override
-        public List<Point> getValidMoves(Piece[][] grid) {
-            List<Point> moves = new ArrayList<>();
-            int[][] offsets = {
-                {2, 1}, {1, 2}, {-1, 2}, {-2, 1},
-                {-2, -1}, {-1, -2}, {1, -2}, {2, -1}
-            };
-            for (int[] offset : offsets) {
-                int r = row + offset[0];
-                int c = col + offset[1];
-                if (r >= 0 && r < 8 && c >= 0 && c < 8) {
-                    if (grid[r][c] == null || grid[r][c].color != color) {
-                        moves.add(new Point(r, c));
-                    }
-                }
-            }
-            return moves;
+        static long knightAttacks(int sq) {
+            return KNIGHT_ATTACKS[sq];
         }
-    }
 
-    /**
-     * The Bishop class with diagonal moves.
-     */
-    private class Bishop extends Piece {
+        static long kingAttacks(int sq) {
+            return KING_ATTACKS[sq];
+        }
 
-        public Bishop(int row, int col, int color) {
-            super(row, col, color);
-            symbol = color == 0 ? "♗" : "♝";
+        /**
+         * Returns the squares a pawn of the given color standing on sq attacks.
+         */
+        static long pawnAttacks(int color, int sq) {
+            return PAWN_ATTACKS[color][sq];
         }
 
-        @Override
-        public boolean isValidMove(int newRow, int newCol, Piece[][] grid) {
-            if (Math.abs(newRow - row) != Math.abs(newCol - col)) {
-                return false;
-            }
-            int stepX = Integer.compare(newCol, col);
-            int stepY = Integer.compare(newRow, row);
-            int currentX = col + stepX;
-            int currentY = row + stepY;
-            while (currentX != newCol || currentY != newRow) {
-                if (grid[currentY][currentX] != null) {
-                    return false;
-                }
-                currentX += stepX;
-                currentY += stepY;
-            }
-            return true;
+        static long rookAttacks(int sq, long occupied) {
+            return ROOK_TABLE[ROOK_OFFSETS[sq]
+                    + (int) (((occupied & ROOK_MASKS[sq]) * ROOK_MAGICS[sq]) >>> ROOK_SHIFTS[sq])];
         }
 
-        @Override
-        public List<Point> getValidMoves(Piece[][] grid) {
-            List<Point> moves = new ArrayList<>();
-            int[][] directions = {{1, 1}, {1, -1}, {-1, 1}, {-1, -1}};
-            for (int[] dir : directions) {
-                int r = row + dir[0];
-                int c = col + dir[1];
-                while (r >= 0 && r < 8 && c >= 0 && c < 8) {
-                    if (grid[r][c] == null) {
-                        moves.add(new Point(r, c));
-                    } else {
-                        if (grid[r][c].color != color) {
-                            moves.add(new Point(r, c));
-                        }
-                        break;
-                    }
-                    r += dir[0];
-                    c += dir[1];
-                }
-            }
-            return moves;
+        static long bishopAttacks(int sq, long occupied) {
+            return BISHOP_TABLE[BISHOP_OFFSETS[sq]
+                    + (int) (((occupied & BISHOP_MASKS[sq]) * BISHOP_MAGICS[sq]) >>> BISHOP_SHIFTS[sq])];
         }
-    }
 
-    /**
-     * The Queen class that combines the moves of the Rook and Bishop.
-     */
-    private class Queen extends Piece {
+        static long queenAttacks(int sq, long occupied) {
+            return rookAttacks(sq, occupied) | bishopAttacks(sq, occupied);
+        }
 
-        public Queen(int row, int col, int color) {
-            super(row, col, color);
-            symbol = color == 0 ? "♕" : "♛";
+        /**
+         * Returns the squares strictly between two squares on a shared rank, file or
+         * diagonal, or 0 when they are not aligned.
+         */
+        static long between(int a, int b) {
+            return BETWEEN[a][b];
         }
 
-        @Override
-        public boolean isValidMove(int newRow, int newCol, Piece[][] grid) {
-            return new Rook(row, col, color).isValidMove(newRow, newCol, grid)
-                    || new Bishop(row, col, color).isValidMove(newRow, newCol, grid);
+        /**
+         * Returns the whole rank, file or diagonal through two aligned squares, or 0.
+         */
+        static long line(int a, int b) {
+            return LINE[a][b];
         }
 
-        @Override
-        public List<Point> getValidMoves(Piece[][] grid) {
-            List<Point> moves = new ArrayList<>();
-            moves.addAll(new Rook(row, col, color).getValidMoves(grid));
-            moves.addAll(new Bishop(row, col, color).getValidMoves(grid));
-            return moves;
+        /**
+         * Converts a set of target squares into a list of (row, col) points.
+         */
+        static List<Point> toPoints(long targets) {
+            List<Point> points = new ArrayList<>(Long.bitCount(targets));
+            while (targets != 0) {
+                int sq = Long.numberOfTrailingZeros(targets);
+                points.add(new Point(sq >>> 3, sq & 7));
+                targets &= targets - 1;
+            }
+            return points;
         }
     }
 
     /**
-     * The King class with normal moves and castling logic.
+     * The Board class encapsulates the state of the chess board as one bitboard per
+     * piece type and color, plus occupancy masks. A parallel array keeps the Piece
+     * objects so the UI can look them up by square.
      */
-    private class King extends Piece {
+    private static class Board {
+        private final long[] pieceBitboards = new long[12];
+        // Material plus piece-square scores for both game phases, White minus Black, and
+        // the game phase from the pieces left. See Evaluation.
+        private int midgameScore;
+        private int endgameScore;
+        private int phase;
+        private final long[] colorBitboards = new long[2];
+        private long occupied;
+        private final Piece[] squares = new Piece[64];
 
-        public King(int row, int col, int color) {
-            super(row, col, color);
-            symbol = color == 0 ? "♔" : "♚";
+        // King squares, kept by addBits and removeBits (64 while a king is off the board).
+        private final int[] kingSquares = {64, 64};
+        // Squares attacked by each color. A change to the board marks both maps stale and
+        // the first query rebuilds them; makeMove saves them so unmakeMove can restore them.
+        private final long[] attackMaps = new long[2];
+        private int validAttackMaps = 0;
+
+        // Game state that the move rules depend on.
+        private int sideToMove = 0; // 0 = white, 1 = black
+        private boolean whiteKingMoved = false;
+        private boolean blackKingMoved = false;
+        private Piece enPassantVulnerable = null;
+        private int halfmoveClock = 0;
+        private int fullmoveNumber = 1;
+
+        private long zobristKey;
+
+        // Undo stack: one slot per move made, preallocated and reused so making a move
+        // does not allocate. Slots below undoFloor belong to the board this one was
+        // copied from and only keep their keys for repetition detection.
+        private static final int UNDO_WHITE_KING_MOVED = 1;
+        private static final int UNDO_BLACK_KING_MOVED = 2;
+        private static final int UNDO_ROOK_MOVED = 4;
+        private static final int UNDO_ATTACK_MAPS_SHIFT = 3;
+        private int[] undoMoves = new int[256];
+        private long[] undoKeys = new long[256];
+        private Piece[] undoCaptured = new Piece[256];
+        private Piece[] undoPromotedPawn = new Piece[256];
+        private Piece[] undoEnPassant = new Piece[256];
+        private int[] undoHalfmoveClock = new int[256];
+        private int[] undoFlags = new int[256];
+        private int[] undoPreviousSquare = new int[256];
+        private long[] undoAttackMaps = new long[512];
+        private int undoCount = 0;
+        private int undoFloor = 0;
+
+        // Move list for one-off queries such as isCheckmate.
+        private final int[] scratchMoves = new int[Move.MAX_MOVES];
+
+        // Promoted pieces that were taken back, kept per color and type for reuse.
+        private final Piece[][] sparePieces = new Piece[12][8];
+        private final int[] spareCounts = new int[12];
+
+        public Board() {
+            initializeBoard();
+            zobristKey = computeZobristKey();
         }
 
-        @Override
-        public boolean isValidMove(int newRow, int newCol, Piece[][] grid) {
-            // Regular one-square move.
-            if (Math.abs(newRow - row) <= 1 && Math.abs(newCol - col) <= 1) {
-                return true;
+        /**
+         * Sets up a position from a FEN string.
+         */
+        public Board(String fen) {
+            loadFen(fen);
+            zobristKey = computeZobristKey();
+        }
+
+        /**
+         * Creates an independent copy of another board, including its game state.
+         */
+        public Board(Board other) {
+            for (int sq = 0; sq < 64; sq++) {
+                Piece piece = other.squares[sq];
+                if (piece != null) {
+                    squares[sq] = piece.copy();
+                    addBits(sq, squares[sq]);
+                }
             }
-            // Castling: king moves two squares horizontally.
-            if (row == newRow && Math.abs(newCol - col) == 2) {
-                boolean kingside = newCol > col;
+            sideToMove = other.sideToMove;
+            whiteKingMoved = other.whiteKingMoved;
+            blackKingMoved = other.blackKingMoved;
+            if (other.enPassantVulnerable != null) {
+                enPassantVulnerable = squares[other.enPassantVulnerable.getSquare()];
+            }
+            halfmoveClock = other.halfmoveClock;
+            fullmoveNumber = other.fullmoveNumber;
+            zobristKey = other.zobristKey;
+            while (undoKeys.length < other.undoCount) {
+                growUndoStack();
+            }
+            System.arraycopy(other.undoKeys, 0, undoKeys, 0, other.undoCount);
+            undoCount = other.undoCount;
+            undoFloor = undoCount;
+        }
+
+        private void initializeBoard() {
+            // Initialize white pieces.
+            Piece[] whiteBackRank = {
+                new Rook(0, 0, 0), new Knight(0, 1, 0), new Bishop(0, 2, 0), new Queen(0, 3, 0),
+                new King(0, 4, 0), new Bishop(0, 5, 0), new Knight(0, 6, 0), new Rook(0, 7, 0)
+            };
+            for (int col = 0; col < 8; col++) {
+                setPiece(0, col, whiteBackRank[col]);
+                setPiece(1, col, new Pawn(1, col, 0));
+            }
+
+            // Initialize black pieces.
+            Piece[] blackBackRank = {
+                new Rook(7, 0, 1), new Knight(7, 1, 1), new Bishop(7, 2, 1), new Queen(7, 3, 1),
+                new King(7, 4, 1), new Bishop(7, 5, 1), new Knight(7, 6, 1), new Rook(7, 7, 1)
+            };
+            for (int col = 0; col < 8; col++) {
+                setPiece(7, col, blackBackRank[col]);
+                setPiece(6, col, new Pawn(6, col, 1));
+            }
+        }
+
+        /**
+         * Parses the placement, side to move, castling, en passant and move counter
+         * fields of a FEN string. Castling rights map onto the king-moved flags and
+         * the rooks' moved status.
+         */
+        private void loadFen(String fen) {
+            String[] fields = fen.trim().split("\\s+");
+            if (fields.length < 4) {
+                throw new IllegalArgumentException("Incomplete FEN: " + fen);
+            }
+            String[] ranks = fields[0].split("/");
+            if (ranks.length != 8) {
+                throw new IllegalArgumentException("FEN needs 8 ranks: " + fen);
+            }
+            for (int i = 0; i < 8; i++) {
+                int row = 7 - i;
+                int col = 0;
+                for (char c : ranks[i].toCharArray()) {
+                    if (Character.isDigit(c)) {
+                        col += c - '0';
+                        continue;
+                    }
+                    int type = "pnbrqk".indexOf(Character.toLowerCase(c));
+                    if (type < 0 || col > 7) {
+                        throw new IllegalArgumentException("Bad FEN rank '" + ranks[i] + "': " + fen);
+                    }
+                    int color = Character.isUpperCase(c) ? 0 : 1;
+                    Piece piece = createPiece(type, row, col, color);
+                    if (piece instanceof Rook) {
+                        ((Rook) piece).setMoved(true);
+                    }
+                    setPiece(row, col, piece);
+                    col++;
+                }
+                if (col != 8) {
+                    throw new IllegalArgumentException("Bad FEN rank '" + ranks[i] + "': " + fen);
+                }
+            }
+            if (Long.bitCount(pieceBitboards[KING]) != 1 || Long.bitCount(pieceBitboards[6 + KING]) != 1) {
+                throw new IllegalArgumentException("FEN needs one king per side: " + fen);
+            }
+
+            if (!fields[1].equals("w") && !fields[1].equals("b")) {
+                throw new IllegalArgumentException("Bad FEN side to move '" + fields[1] + "': " + fen);
+            }
+            sideToMove = fields[1].equals("b") ? 1 : 0;
+
+            String castling = fields[2];
+            whiteKingMoved = castling.indexOf('K') < 0 && castling.indexOf('Q') < 0;
+            blackKingMoved = castling.indexOf('k') < 0 && castling.indexOf('q') < 0;
+            markRookUnmoved(castling, 'K', 0, 7);
+            markRookUnmoved(castling, 'Q', 0, 0);
+            markRookUnmoved(castling, 'k', 7, 7);
+            markRookUnmoved(castling, 'q', 7, 0);
+
+            if (!fields[3].equals("-")) {
+                // The skipped square is on the third rank after a White double step, with
+                // Black to move, or on the sixth after a Black one, with White to move.
+                String square = fields[3];
+                int skippedRow = sideToMove == 1 ? 2 : 5;
+                if (square.length() != 2 || square.charAt(0) < 'a' || square.charAt(0) > 'h'
+                        || square.charAt(1) - '1' != skippedRow) {
+                    throw new IllegalArgumentException("Bad FEN en passant square '" + square + "': " + fen);
+                }
+                // The vulnerable pawn stands one row past the skipped square.
+                Piece pawn = getPiece(sideToMove == 1 ? 3 : 4, square.charAt(0) - 'a');
+                if (pawn == null || pawn.getType() != PAWN || pawn.getColor() == sideToMove) {
+                    throw new IllegalArgumentException("No pawn to capture en passant on " + square + ": " + fen);
+                }
+                enPassantVulnerable = pawn;
+            }
+            if (fields.length >= 6) {
+                halfmoveClock = Integer.parseInt(fields[4]);
+                fullmoveNumber = Integer.parseInt(fields[5]);
+            }
+        }
+
+        private void markRookUnmoved(String castling, char flag, int row, int col) {
+            Piece rook = getPiece(row, col);
+            if (castling.indexOf(flag) >= 0 && rook instanceof Rook) {
+                ((Rook) rook).setMoved(false);
+            }
+        }
+
+        /**
+         * Writes the position as a FEN string. Castling rights come from the king moved
+         * flags and the unmoved rooks; the en passant square is given after every double
+         * pawn push, as the FEN standard asks.
+         */
+        public String toFen() {
+            StringBuilder fen = new StringBuilder(90);
+            for (int row = 7; row >= 0; row--) {
+                int empty = 0;
+                for (int col = 0; col < 8; col++) {
+                    Piece piece = getPiece(row, col);
+                    if (piece == null) {
+                        empty++;
+                        continue;
+                    }
+                    if (empty > 0) {
+                        fen.append(empty);
+                        empty = 0;
+                    }
+                    char letter = "pnbrqk".charAt(piece.getType());
+                    fen.append(piece.getColor() == 0 ? Character.toUpperCase(letter) : letter);
+                }
+                if (empty > 0) {
+                    fen.append(empty);
+                }
+                if (row > 0) {
+                    fen.append('/');
+                }
+            }
+            fen.append(sideToMove == 0 ? " w " : " b ");
+
+            int rights = castlingRights();
+            if (rights == 0) {
+                fen.append('-');
+            }
+            for (int i = 0; i < 4; i++) {
+                if ((rights & (1 << i)) != 0) {
+                    fen.append("KQkq".charAt(i));
+                }
+            }
+
+            if (enPassantVulnerable == null) {
+                fen.append(" -");
+            } else {
+                int skippedRow = enPassantVulnerable.getRow() + (enPassantVulnerable.getColor() == 0 ? -1 : 1);
+                fen.append(' ').append(Move.squareName(skippedRow, enPassantVulnerable.getCol()));
+            }
+            return fen.append(' ').append(halfmoveClock).append(' ').append(fullmoveNumber).toString();
+        }
+
+        /**
+         * Finds the legal move written in standard algebraic notation, e.g. Nbd7, exd6,
+         * e8=Q+ or O-O. Check marks and annotations such as !? are ignored.
+         */
+        public int parseSan(String san) {
+            String text = san;
+            while (!text.isEmpty() && "+#!?".indexOf(text.charAt(text.length() - 1)) >= 0) {
+                text = text.substring(0, text.length() - 1);
+            }
+            int count = generateLegalMoves(scratchMoves);
+
+            if (text.equals("O-O") || text.equals("O-O-O") || text.equals("0-0") || text.equals("0-0-0")) {
+                int toCol = text.length() == 3 ? 6 : 2;
+                for (int i = 0; i < count; i++) {
+                    if ((scratchMoves[i] & Move.CASTLING) != 0 && Move.toCol(scratchMoves[i]) == toCol) {
+                        return scratchMoves[i];
+                    }
+                }
+                throw new IllegalArgumentException("Illegal move '" + san + "' in " + toFen());
+            }
+
+            int type = PAWN;
+            int start = 0;
+            if (!text.isEmpty() && "NBRQK".indexOf(text.charAt(0)) >= 0) {
+                type = "PNBRQK".indexOf(text.charAt(0));
+                start = 1;
+            }
+            int promotionType = Move.NO_PROMOTION;
+            int end = text.length();
+            if (end > 0 && "NBRQ".indexOf(text.charAt(end - 1)) >= 0) {
+                promotionType = "PNBRQ".indexOf(text.charAt(end - 1));
+                end -= end >= 2 && text.charAt(end - 2) == '=' ? 2 : 1;
+            }
+            if (end - start < 2) {
+                throw new IllegalArgumentException("Bad move '" + san + "'");
+            }
+            int toCol = text.charAt(end - 2) - 'a';
+            int toRow = text.charAt(end - 1) - '1';
+            if (toCol < 0 || toCol > 7 || toRow < 0 || toRow > 7) {
+                throw new IllegalArgumentException("Bad move '" + san + "'");
+            }
+            // Whatever is left between the piece letter and the target disambiguates.
+            int fromCol = -1;
+            int fromRow = -1;
+            for (int i = start; i < end - 2; i++) {
+                char c = text.charAt(i);
+                if (c >= 'a' && c <= 'h') {
+                    fromCol = c - 'a';
+                } else if (c >= '1' && c <= '8') {
+                    fromRow = c - '1';
+                } else if (c != 'x' && c != '-') {
+                    throw new IllegalArgumentException("Bad move '" + san + "'");
+                }
+            }
+
+            int found = Move.NONE;
+            int to = Bitboards.square(toRow, toCol);
+            for (int i = 0; i < count; i++) {
+                int move = scratchMoves[i];
+                if (Move.to(move) == to && squares[Move.from(move)].getType() == type
+                        && Move.promotionType(move) == promotionType
+                        && (fromCol < 0 || Move.fromCol(move) == fromCol)
+                        && (fromRow < 0 || Move.fromRow(move) == fromRow)) {
+                    if (found != Move.NONE) {
+                        throw new IllegalArgumentException("Ambiguous move '" + san + "' in " + toFen());
+                    }
+                    found = move;
+                }
+            }
+            if (found == Move.NONE) {
+                throw new IllegalArgumentException("Illegal move '" + san + "' in " + toFen());
+            }
+            return found;
+        }
+
+        /**
+         * Writes a legal move in standard algebraic notation, with the file, rank or both
+         * of the moving piece added when another piece of its kind could go there too.
+         */
+        public String toSan(int move) {
+            Piece piece = squares[Move.from(move)];
+            StringBuilder san = new StringBuilder(8);
+            if ((move & Move.CASTLING) != 0) {
+                san.append(Move.toCol(move) == 6 ? "O-O" : "O-O-O");
+            } else if (piece.getType() == PAWN) {
+                if (Move.isCapture(move)) {
+                    san.append((char) ('a' + Move.fromCol(move))).append('x');
+                }
+                san.append(Move.squareName(Move.toRow(move), Move.toCol(move)));
+                if (Move.promotionType(move) != Move.NO_PROMOTION) {
+                    san.append('=').append("PNBRQK".charAt(Move.promotionType(move)));
+                }
+            } else {
+                san.append("PNBRQK".charAt(piece.getType()));
+                int[] moves = new int[Move.MAX_MOVES];
+                int count = generateLegalMoves(moves);
+                boolean ambiguous = false;
+                boolean sameCol = false;
+                boolean sameRow = false;
+                for (int i = 0; i < count; i++) {
+                    int other = moves[i];
+                    if (other != move && Move.to(other) == Move.to(move)
+                            && squares[Move.from(other)].getType() == piece.getType()) {
+                        ambiguous = true;
+                        sameCol |= Move.fromCol(other) == Move.fromCol(move);
+                        sameRow |= Move.fromRow(other) == Move.fromRow(move);
+                    }
+                }
+                if (ambiguous && (!sameCol || sameRow)) {
+                    san.append((char) ('a' + Move.fromCol(move)));
+                }
+                if (sameCol) {
+                    san.append((char) ('1' + Move.fromRow(move)));
+                }
+                if (Move.isCapture(move)) {
+                    san.append('x');
+                }
+                san.append(Move.squareName(Move.toRow(move), Move.toCol(move)));
+            }
+
+            makeMove(move);
+            if (isCheck(sideToMove)) {
+                san.append(generateLegalMoves(scratchMoves) == 0 ? '#' : '+');
+            }
+            unmakeMove();
+            return san.toString();
+        }
+
+        public int getSideToMove() {
+            return sideToMove;
+        }
+
+        public int getFullmoveNumber() {
+            return fullmoveNumber;
+        }
+
+        /**
+         * Returns the plies since the last capture or pawn move, for the fifty-move rule.
+         */
+        public int getHalfmoveClock() {
+            return halfmoveClock;
+        }
+
+        public boolean hasKingMoved(int color) {
+            return color == 0 ? whiteKingMoved : blackKingMoved;
+        }
+
+        /**
+         * Returns the pawn that just advanced two squares, or null.
+         */
+        public Piece getEnPassantVulnerable() {
+            return enPassantVulnerable;
+        }
+
+        public Piece getPiece(int row, int col) {
+            return squares[Bitboards.square(row, col)];
+        }
+
+        public void setPiece(int row, int col, Piece piece) {
+            int sq = Bitboards.square(row, col);
+            removeBits(sq);
+            squares[sq] = piece;
+            if (piece != null) {
+                addBits(sq, piece);
+            }
+        }
+
+        /**
+         * Returns the bitboard of pieces of the given type and color.
+         */
+        public long getPieces(int color, int type) {
+            return pieceBitboards[color * 6 + type];
+        }
+
+        /**
+         * Returns the bitboard of all pieces of the given color.
+         */
+        public long getColorPieces(int color) {
+            return colorBitboards[color];
+        }
+
+        public long getOccupied() {
+            return occupied;
+        }
+
+        /**
+         * Places the piece's bits on the square and folds it into the Zobrist key.
+         * Every board change goes through here and removeBits, so the key, the king
+         * squares, the evaluation terms and the attack maps are always current after
+         * movePiece, setPiece and captureEnPassant.
+         */
+        private void addBits(int sq, Piece piece) {
+            long b = 1L << sq;
+            int index = piece.getColor() * 6 + piece.getType();
+            pieceBitboards[index] |= b;
+            colorBitboards[piece.getColor()] |= b;
+            occupied |= b;
+            zobristKey ^= Zobrist.PIECES[index][sq];
+            midgameScore += Evaluation.MIDGAME[index][sq];
+            endgameScore += Evaluation.ENDGAME[index][sq];
+            phase += Evaluation.PHASE_WEIGHTS[piece.getType()];
+            if (piece.getType() == KING) {
+                kingSquares[piece.getColor()] = sq;
+            }
+            validAttackMaps = 0;
+        }
+
+        private void removeBits(int sq) {
+            Piece piece = squares[sq];
+            if (piece != null) {
+                long b = ~(1L << sq);
+                int index = piece.getColor() * 6 + piece.getType();
+                pieceBitboards[index] &= b;
+                colorBitboards[piece.getColor()] &= b;
+                occupied &= b;
+                zobristKey ^= Zobrist.PIECES[index][sq];
+                midgameScore -= Evaluation.MIDGAME[index][sq];
+                endgameScore -= Evaluation.ENDGAME[index][sq];
+                phase -= Evaluation.PHASE_WEIGHTS[piece.getType()];
+                if (piece.getType() == KING && kingSquares[piece.getColor()] == sq) {
+                    kingSquares[piece.getColor()] = 64;
+                }
+                validAttackMaps = 0;
+            }
+        }
+
+        public long getZobristKey() {
+            return zobristKey;
+        }
+
+        /**
+         * Returns the middlegame material and piece-square score, White minus Black.
+         */
+        public int getMidgameScore() {
+            return midgameScore;
+        }
+
+        /**
+         * Returns the endgame material and piece-square score, White minus Black.
+         */
+        public int getEndgameScore() {
+            return endgameScore;
+        }
+
+        /**
+         * Returns the game phase, from Evaluation.MAX_PHASE with every piece on the board
+         * down to 0 with only kings and pawns. Promotions can push it above the maximum.
+         */
+        public int getPhase() {
+            return phase;
+        }
+
+        /**
+         * Recomputes the Zobrist key from scratch.
+         */
+        public long computeZobristKey() {
+            long key = 0L;
+            for (int sq = 0; sq < 64; sq++) {
+                Piece piece = squares[sq];
+                if (piece != null) {
+                    key ^= Zobrist.PIECES[piece.getColor() * 6 + piece.getType()][sq];
+                }
+            }
+            if (sideToMove == 1) {
+                key ^= Zobrist.SIDE;
+            }
+            return key ^ Zobrist.CASTLING[castlingRights()] ^ enPassantKey();
+        }
+
+        public int getCastlingRights() {
+            return castlingRights();
+        }
+
+        /**
+         * Returns the castling rights as four bits: white kingside, white queenside,
+         * black kingside, black queenside.
+         */
+        private int castlingRights() {
+            int rights = 0;
+            if (!whiteKingMoved) {
+                rights |= (hasUnmovedRook(0, 7) ? 1 : 0) | (hasUnmovedRook(0, 0) ? 2 : 0);
+            }
+            if (!blackKingMoved) {
+                rights |= (hasUnmovedRook(7, 7) ? 4 : 0) | (hasUnmovedRook(7, 0) ? 8 : 0);
+            }
+            return rights;
+        }
+
+        private boolean hasUnmovedRook(int row, int col) {
+            Piece rook = getPiece(row, col);
+            return rook instanceof Rook && !((Rook) rook).hasMoved();
+        }
+
+        /**
+         * Hashes the en passant file, but only when a pawn of the side to move can
+         * actually capture, so otherwise identical positions share a key.
+         */
+        private long enPassantKey() {
+            if (enPassantVulnerable == null) {
+                return 0L;
+            }
+            int skippedRow = enPassantVulnerable.getRow() + (enPassantVulnerable.getColor() == 0 ? -1 : 1);
+            int skipped = Bitboards.square(skippedRow, enPassantVulnerable.getCol());
+            long capturers = Bitboards.pawnAttacks(1 - sideToMove, skipped) & pieceBitboards[sideToMove * 6 + PAWN];
+            return capturers == 0 ? 0L : Zobrist.EN_PASSANT[enPassantVulnerable.getCol()];
+        }
+
+        /**
+         * Returns whether the current position already occurred with the same side to
+         * move since the last capture or pawn move.
+         */
+        public boolean isRepetition() {
+            int oldest = Math.max(0, undoCount - halfmoveClock);
+            for (int i = undoCount - 2; i >= oldest; i -= 2) {
+                if (undoKeys[i] == zobristKey) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Returns the legal move with the given from, to and promotion bits (see
+         * Move.key), or Move.NONE when there is none.
+         */
+        public int findMove(int key) {
+            int count = generateLegalMoves(scratchMoves);
+            for (int i = 0; i < count; i++) {
+                if (Move.key(scratchMoves[i]) == key) {
+                    return scratchMoves[i];
+                }
+            }
+            return Move.NONE;
+        }
+
+        /**
+         * Returns how many times the current position occurred before, counted like
+         * isRepetition. Two earlier occurrences make a threefold repetition.
+         */
+        public int countRepetitions() {
+            int count = 0;
+            int oldest = Math.max(0, undoCount - halfmoveClock);
+            for (int i = undoCount - 2; i >= oldest; i -= 2) {
+                if (undoKeys[i] == zobristKey) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        /**
+         * Checks whether a move is valid including boundary, collision, and
+         * making the move to ensure the king is not left in check.
+         */
+        public boolean isValidMove(Piece piece, int newRow, int newCol) {
+            long start = Instrumentation.startTimer();
+            boolean valid = checkValidMove(piece, newRow, newCol);
+            Instrumentation.stopTimer(Instrumentation.IS_VALID_MOVE, start);
+            return valid;
+        }
+
+        private boolean checkValidMove(Piece piece, int newRow, int newCol) {
+            // Check board boundaries.
+            if (newRow < 0 || newRow >= 8 || newCol < 0 || newCol >= 8) {
+                return false;
+            }
+            // Cannot capture a piece of the same color.
+            if ((colorBitboards[piece.getColor()] & Bitboards.bit(newRow, newCol)) != 0) {
+                return false;
+            }
+            // Check if the piece's move pattern allows the move.
+            if (!piece.isValidMove(newRow, newCol, this)) {
+                return false;
+            }
+            return !leavesKingInCheck(piece, newRow, newCol);
+        }
+
+        /**
+         * Makes the move, checks the mover's king and takes the move back.
+         */
+        private boolean leavesKingInCheck(Piece piece, int newRow, int newCol) {
+            int color = piece.getColor();
+            makeMove(createMove(piece, newRow, newCol, QUEEN));
+            boolean inCheck = isCheck(color);
+            unmakeMove();
+            return inCheck;
+        }
+
+        /**
+         * Moves a piece and updates any special state (e.g., a rook’s moved status).
+         */
+        public void movePiece(Piece piece, int newRow, int newCol) {
+            int from = piece.getSquare();
+            int to = Bitboards.square(newRow, newCol);
+            removeBits(from);
+            squares[from] = null;
+            removeBits(to);
+            squares[to] = piece;
+            addBits(to, piece);
+            piece.setPosition(newRow, newCol);
+            // Mark the rook as moved if applicable.
+            if (piece instanceof Rook) {
+                ((Rook) piece).setMoved(true);
+            }
+        }
+
+        /**
+         * Removes the captured pawn from the board for en passant.
+         */
+        public void captureEnPassant(Piece pawn) {
+            setPiece(pawn.getRow(), pawn.getCol(), null);
+        }
+
+        /**
+         * Plays a move that has already passed isValidMove. The promotion type is only
+         * used when a pawn reaches its last row.
+         */
+        public void playMove(Piece piece, int newRow, int newCol, int promotionType) {
+            makeMove(createMove(piece, newRow, newCol, promotionType));
+        }
+
+        /**
+         * Packs a move of the given piece, working out its flags from the board.
+         */
+        private int createMove(Piece piece, int newRow, int newCol, int promotionType) {
+            return encodeMove(piece, piece.getSquare(), Bitboards.square(newRow, newCol),
+                    newRow == 0 || newRow == 7 ? promotionType : Move.NO_PROMOTION);
+        }
+
+        private int encodeMove(Piece piece, int from, int to, int promotionType) {
+            int flags = squares[to] != null ? Move.CAPTURE : 0;
+            if (piece.type == PAWN) {
+                if ((from & 7) != (to & 7) && flags == 0) {
+                    flags = Move.CAPTURE | Move.EN_PASSANT;
+                } else if (Math.abs(to - from) == 16) {
+                    flags = Move.DOUBLE_PUSH;
+                }
+                return Move.create(from, to, promotionType, flags);
+            }
+            if (piece.type == KING && Math.abs(to - from) == 2) {
+                flags = Move.CASTLING;
+            }
+            return Move.create(from, to, Move.NO_PROMOTION, flags);
+        }
+
+        /**
+         * Makes a move, including castling, en passant and promotion, and hands the turn
+         * to the other side. Everything needed to take it back is pushed on the undo stack.
+         */
+        public void makeMove(int move) {
+            if (undoCount == undoKeys.length) {
+                growUndoStack();
+            }
+            int ply = undoCount++;
+            Piece piece = squares[Move.from(move)];
+            int newRow = Move.toRow(move);
+            int newCol = Move.toCol(move);
+
+            undoMoves[ply] = move;
+            undoKeys[ply] = zobristKey;
+            undoEnPassant[ply] = enPassantVulnerable;
+            undoHalfmoveClock[ply] = halfmoveClock;
+            undoFlags[ply] = (whiteKingMoved ? UNDO_WHITE_KING_MOVED : 0)
+                    | (blackKingMoved ? UNDO_BLACK_KING_MOVED : 0)
+                    | (piece instanceof Rook && ((Rook) piece).hasMoved() ? UNDO_ROOK_MOVED : 0)
+                    | validAttackMaps << UNDO_ATTACK_MAPS_SHIFT;
+            undoAttackMaps[2 * ply] = attackMaps[0];
+            undoAttackMaps[2 * ply + 1] = attackMaps[1];
+            undoPreviousSquare[ply] = Bitboards.square(piece.getPreviousRow(), piece.getPreviousCol());
+
+            // Take the old castling and en passant state out of the key; the piece
+            // changes below update it square by square.
+            zobristKey ^= Zobrist.CASTLING[castlingRights()] ^ enPassantKey();
+
+            // Captures, including en passant: a pawn moving diagonally into an empty square.
+            Piece captured = (move & Move.EN_PASSANT) != 0 ? enPassantVulnerable : squares[Move.to(move)];
+            undoCaptured[ply] = captured;
+            if (captured != null) {
+                setPiece(captured.getRow(), captured.getCol(), null);
+            }
+
+            // Castling: king moves two squares horizontally.
+            if ((move & Move.CASTLING) != 0) {
+                handleCastling(piece, newCol);
+            }
+
+            movePiece(piece, newRow, newCol);
+
+            // Pawn promotion: if a pawn reaches the end row.
+            if (Move.promotionType(move) != Move.NO_PROMOTION) {
+                promotePawn(piece, Move.promotionType(move));
+            }
+
+            // En passant vulnerability only lasts one move.
+            enPassantVulnerable = (move & Move.DOUBLE_PUSH) != 0 ? piece : null;
+
+            // Update king moved status.
+            if (piece instanceof King) {
+                if (sideToMove == 0) {
+                    whiteKingMoved = true;
+                } else {
+                    blackKingMoved = true;
+                }
+            }
+
+            halfmoveClock = (captured != null || piece instanceof Pawn) ? 0 : halfmoveClock + 1;
+            if (sideToMove == 1) {
+                fullmoveNumber++;
+            }
+            sideToMove = 1 - sideToMove;
+            zobristKey ^= Zobrist.SIDE ^ Zobrist.CASTLING[castlingRights()] ^ enPassantKey();
+        }
+
+        /**
+         * Takes back the last move made and returns it.
+         */
+        public int unmakeMove() {
+            if (undoCount <= undoFloor) {
+                throw new IllegalStateException("No move to take back");
+            }
+            int ply = --undoCount;
+            int move = undoMoves[ply];
+            Piece piece = undoMoved(ply);
+            int from = Move.from(move);
+            int to = Move.to(move);
+
+            sideToMove = 1 - sideToMove;
+            if (sideToMove == 1) {
+                fullmoveNumber--;
+            }
+
+            // Lift the moved piece, or the piece it promoted to, back to its origin.
+            if (squares[to] != piece) {
+                releasePromotedPiece(squares[to]);
+            }
+            removeBits(to);
+            squares[to] = null;
+            squares[from] = piece;
+            addBits(from, piece);
+            int previousSquare = undoPreviousSquare[ply];
+            piece.restorePosition(from >>> 3, from & 7, previousSquare >>> 3, previousSquare & 7);
+            int flags = undoFlags[ply];
+            if (piece instanceof Rook) {
+                ((Rook) piece).setMoved((flags & UNDO_ROOK_MOVED) != 0);
+            }
+
+            // Put the castling rook back; it cannot have moved before castling.
+            if ((move & Move.CASTLING) != 0) {
+                boolean kingside = Move.toCol(move) > Move.fromCol(move);
+                int row = Move.fromRow(move);
+                Piece rook = squares[Bitboards.square(row, kingside ? 5 : 3)];
+                int rookFrom = Bitboards.square(row, kingside ? 7 : 0);
+                removeBits(rook.getSquare());
+                squares[rook.getSquare()] = null;
+                squares[rookFrom] = rook;
+                addBits(rookFrom, rook);
+                rook.restorePosition(row, kingside ? 7 : 0, row, kingside ? 7 : 0);
+                ((Rook) rook).setMoved(false);
+            }
+
+            // Captured pieces never had their position changed, so they go straight back.
+            Piece captured = undoCaptured[ply];
+            if (captured != null) {
+                squares[captured.getSquare()] = captured;
+                addBits(captured.getSquare(), captured);
+            }
+
+            whiteKingMoved = (flags & UNDO_WHITE_KING_MOVED) != 0;
+            blackKingMoved = (flags & UNDO_BLACK_KING_MOVED) != 0;
+            enPassantVulnerable = undoEnPassant[ply];
+            halfmoveClock = undoHalfmoveClock[ply];
+            zobristKey = undoKeys[ply];
+            attackMaps[0] = undoAttackMaps[2 * ply];
+            attackMaps[1] = undoAttackMaps[2 * ply + 1];
+            validAttackMaps = flags >>> UNDO_ATTACK_MAPS_SHIFT;
+
+            undoEnPassant[ply] = null;
+            undoCaptured[ply] = null;
+            return move;
+        }
+
+        /**
+         * Returns whether there is a move on the undo stack that can be taken back.
+         */
+        public boolean canUndo() {
+            return undoCount > undoFloor;
+        }
+
+        /**
+         * Finds the piece that made the move at the given ply. After a promotion the
+         * pawn is no longer on the board, so the undo stack keeps it.
+         */
+        private Piece undoMoved(int ply) {
+            Piece promotedPawn = undoPromotedPawn[ply];
+            if (promotedPawn != null) {
+                undoPromotedPawn[ply] = null;
+                return promotedPawn;
+            }
+            return squares[Move.to(undoMoves[ply])];
+        }
+
+        private void releasePromotedPiece(Piece piece) {
+            int index = piece.getColor() * 6 + piece.getType();
+            if (spareCounts[index] < sparePieces[index].length) {
+                sparePieces[index][spareCounts[index]++] = piece;
+            }
+        }
+
+        private void growUndoStack() {
+            int capacity = undoKeys.length * 2;
+            undoMoves = java.util.Arrays.copyOf(undoMoves, capacity);
+            undoKeys = java.util.Arrays.copyOf(undoKeys, capacity);
+            undoCaptured = java.util.Arrays.copyOf(undoCaptured, capacity);
+            undoPromotedPawn = java.util.Arrays.copyOf(undoPromotedPawn, capacity);
+            undoEnPassant = java.util.Arrays.copyOf(undoEnPassant, capacity);
+            undoHalfmoveClock = java.util.Arrays.copyOf(undoHalfmoveClock, capacity);
+            undoFlags = java.util.Arrays.copyOf(undoFlags, capacity);
+            undoPreviousSquare = java.util.Arrays.copyOf(undoPreviousSquare, capacity);
+            undoAttackMaps = java.util.Arrays.copyOf(undoAttackMaps, 2 * capacity);
+        }
+
+        /**
+         * Fills the array with every pseudo-legal move for the side to move and returns
+         * how many there are. Pawn moves to the last row get one entry per promotion
+         * choice. Nothing is allocated, so the caller should reuse the array.
+         */
+        public int generateMoves(int[] moves) {
+            int count = 0;
+            long own = colorBitboards[sideToMove];
+            while (own != 0) {
+                int from = Long.numberOfTrailingZeros(own);
+                own &= own - 1;
+                Piece piece = squares[from];
+                long targets = piece.getTargets(this);
+                while (targets != 0) {
+                    int to = Long.numberOfTrailingZeros(targets);
+                    targets &= targets - 1;
+                    if (piece.type == PAWN && (to >>> 3 == 0 || to >>> 3 == 7)) {
+                        for (int promotionType : Move.PROMOTION_TYPES) {
+                            moves[count++] = encodeMove(piece, from, to, promotionType);
+                        }
+                    } else {
+                        moves[count++] = encodeMove(piece, from, to, Move.NO_PROMOTION);
+                    }
+                }
+            }
+            return count;
+        }
+
+        /**
+         * Fills the array with every legal move for the side to move and returns how many
+         * there are. Checkers, pinned pieces and the squares the king may not enter are
+         * worked out once, so each move is accepted or rejected with a mask test. Only
+         * en passant captures, which can uncover a check along the row, are tried on
+         * the board.
+         */
+        public int generateLegalMoves(int[] moves) {
+            long start = Instrumentation.startTimer();
+            int count = generateLegal(moves);
+            Instrumentation.stopTimer(Instrumentation.GENERATE_LEGAL_MOVES, start);
+            return count;
+        }
+
+        private int generateLegal(int[] moves) {
+            int color = sideToMove;
+            int enemy = 1 - color;
+            int kingSquare = findKingSquare(color);
+            long kingBit = 1L << kingSquare;
+            long checkers = (getAttackMap(enemy) & kingBit) == 0
+                    ? 0L : attackersTo(kingSquare, occupied) & colorBitboards[enemy];
+
+            // With one checker, other pieces must capture it or block; with two, only the king moves.
+            long checkMask = ~0L;
+            if (checkers != 0) {
+                checkMask = Long.bitCount(checkers) > 1
+                        ? 0L : checkers | Bitboards.between(kingSquare, Long.numberOfTrailingZeros(checkers));
+            }
+            long pinned = pinnedPieces(color, kingSquare);
+
+            int count = 0;
+            long pieces = checkMask == 0 ? 0L : colorBitboards[color] & ~kingBit;
+            while (pieces != 0) {
+                int from = Long.numberOfTrailingZeros(pieces);
+                pieces &= pieces - 1;
+                Piece piece = squares[from];
+                long mask = checkMask;
+                if ((pinned & (1L << from)) != 0) {
+                    mask &= Bitboards.line(kingSquare, from);
+                }
+                long targets = piece.getTargets(this);
+                while (targets != 0) {
+                    int to = Long.numberOfTrailingZeros(targets);
+                    targets &= targets - 1;
+                    if (piece.type == PAWN) {
+                        if ((from & 7) != (to & 7) && squares[to] == null) {
+                            int move = encodeMove(piece, from, to, Move.NO_PROMOTION);
+                            makeMove(move);
+                            boolean legal = !isCheck(color);
+                            unmakeMove();
+                            if (legal) {
+                                moves[count++] = move;
+                            }
+                        } else if ((mask & (1L << to)) == 0) {
+                            continue;
+                        } else if (to >>> 3 == 0 || to >>> 3 == 7) {
+                            for (int promotionType : Move.PROMOTION_TYPES) {
+                                moves[count++] = encodeMove(piece, from, to, promotionType);
+                            }
+                        } else {
+                            moves[count++] = encodeMove(piece, from, to, Move.NO_PROMOTION);
+                        }
+                    } else if ((mask & (1L << to)) != 0) {
+                        moves[count++] = encodeMove(piece, from, to, Move.NO_PROMOTION);
+                    }
+                }
+            }
+
+            // The king may not step onto an attacked square. When a slider gives check the
+            // enemy attacks are taken with the king lifted off the board, so it cannot
+            // retreat along the checking ray; otherwise the attack map already fits.
+            long sliders = pieceBitboards[enemy * 6 + BISHOP] | pieceBitboards[enemy * 6 + ROOK]
+                    | pieceBitboards[enemy * 6 + QUEEN];
+            long danger = (checkers & sliders) == 0
+                    ? getAttackMap(enemy) : attackedSquares(enemy, occupied & ~kingBit);
+            long targets = squares[kingSquare].getTargets(this) & ~danger;
+            while (targets != 0) {
+                int to = Long.numberOfTrailingZeros(targets);
+                targets &= targets - 1;
+                if (Math.abs(to - kingSquare) == 2) {
+                    // Castling: not out of check and not through an attacked square.
+                    int crossed = (to + kingSquare) / 2;
+                    if (checkers != 0 || (danger & (1L << crossed)) != 0) {
+                        continue;
+                    }
+                }
+                moves[count++] = encodeMove(squares[kingSquare], kingSquare, to, Move.NO_PROMOTION);
+            }
+            return count;
+        }
+
+        /**
+         * Returns every piece of either color that attacks the square, given the occupancy.
+         */
+        long attackersTo(int sq, long occupancy) {
+            long queens = pieceBitboards[QUEEN] | pieceBitboards[6 + QUEEN];
+            return (Bitboards.pawnAttacks(1, sq) & pieceBitboards[PAWN])
+                    | (Bitboards.pawnAttacks(0, sq) & pieceBitboards[6 + PAWN])
+                    | (Bitboards.knightAttacks(sq) & (pieceBitboards[KNIGHT] | pieceBitboards[6 + KNIGHT]))
+                    | (Bitboards.kingAttacks(sq) & (pieceBitboards[KING] | pieceBitboards[6 + KING]))
+                    | (Bitboards.rookAttacks(sq, occupancy) & (pieceBitboards[ROOK] | pieceBitboards[6 + ROOK] | queens))
+                    | (Bitboards.bishopAttacks(sq, occupancy) & (pieceBitboards[BISHOP] | pieceBitboards[6 + BISHOP] | queens));
+        }
+
+        /**
+         * Returns every square attacked by the given color on the current board. The map
+         * is rebuilt only after the board has changed since it was last asked for.
+         */
+        public long getAttackMap(int color) {
+            int flag = 1 << color;
+            if ((validAttackMaps & flag) == 0) {
+                attackMaps[color] = attackedSquares(color, occupied);
+                validAttackMaps |= flag;
+            }
+            return attackMaps[color];
+        }
+
+        /**
+         * Returns every square attacked by the given color, given the occupancy.
+         */
+        private long attackedSquares(int color, long occupancy) {
+            int base = color * 6;
+            long attacks = 0L;
+            for (long b = pieceBitboards[base + PAWN]; b != 0; b &= b - 1) {
+                attacks |= Bitboards.pawnAttacks(color, Long.numberOfTrailingZeros(b));
+            }
+            for (long b = pieceBitboards[base + KNIGHT]; b != 0; b &= b - 1) {
+                attacks |= Bitboards.knightAttacks(Long.numberOfTrailingZeros(b));
+            }
+            for (long b = pieceBitboards[base + BISHOP] | pieceBitboards[base + QUEEN]; b != 0; b &= b - 1) {
+                attacks |= Bitboards.bishopAttacks(Long.numberOfTrailingZeros(b), occupancy);
+            }
+            for (long b = pieceBitboards[base + ROOK] | pieceBitboards[base + QUEEN]; b != 0; b &= b - 1) {
+                attacks |= Bitboards.rookAttacks(Long.numberOfTrailingZeros(b), occupancy);
+            }
+            int kingSquare = kingSquares[color];
+            return kingSquare == 64 ? attacks : attacks | Bitboards.kingAttacks(kingSquare);
+        }
+
+        /**
+         * Returns the pieces of the given color that stand alone between their king and
+         * an enemy slider, and so may only move along that line.
+         */
+        private long pinnedPieces(int color, int kingSquare) {
+            int base = (1 - color) * 6;
+            long enemies = colorBitboards[1 - color];
+            long snipers = (Bitboards.rookAttacks(kingSquare, enemies)
+                    & (pieceBitboards[base + ROOK] | pieceBitboards[base + QUEEN]))
+                    | (Bitboards.bishopAttacks(kingSquare, enemies)
+                    & (pieceBitboards[base + BISHOP] | pieceBitboards[base + QUEEN]));
+            long pinned = 0L;
+            while (snipers != 0) {
+                long blockers = Bitboards.between(kingSquare, Long.numberOfTrailingZeros(snipers)) & occupied;
+                if (Long.bitCount(blockers) == 1) {
+                    pinned |= blockers & colorBitboards[color];
+                }
+                snipers &= snipers - 1;
+            }
+            return pinned;
+        }
+
+        /**
+         * Moves the rook alongside a castling king.
+         */
+        private void handleCastling(Piece king, int newCol) {
+            int rookCol = newCol > king.getCol() ? 7 : 0;
+            int newRookCol = newCol > king.getCol() ? 5 : 3;
+            Piece rook = getPiece(king.getRow(), rookCol);
+            movePiece(rook, king.getRow(), newRookCol);
+        }
+
+        /**
+         * Replaces a pawn on its last row with a piece of the chosen type.
+         */
+        private void promotePawn(Piece pawn, int promotionType) {
+            int index = pawn.getColor() * 6 + promotionType;
+            Piece newPiece;
+            if (spareCounts[index] > 0) {
+                newPiece = sparePieces[index][--spareCounts[index]];
+                newPiece.restorePosition(pawn.getRow(), pawn.getCol(), pawn.getRow(), pawn.getCol());
+            } else {
+                newPiece = createPiece(promotionType, pawn.getRow(), pawn.getCol(), pawn.getColor());
+            }
+            if (newPiece instanceof Rook) {
+                ((Rook) newPiece).setMoved(true);
+            }
+            undoPromotedPawn[undoCount - 1] = pawn;
+            setPiece(pawn.getRow(), pawn.getCol(), newPiece);
+        }
+
+        /**
+         * Checks if the king of the specified color is in check.
+         */
+        public boolean isCheck(int color) {
+            long start = Instrumentation.startTimer();
+            boolean check = (getAttackMap(1 - color) & pieceBitboards[color * 6 + KING]) != 0;
+            Instrumentation.stopTimer(Instrumentation.IS_CHECK, start);
+            return check;
+        }
+
+        /**
+         * Checks if the given color is in checkmate. A king with a safe square to step to
+         * is never mated, which the attack map answers without generating moves.
+         */
+        public boolean isCheckmate(int color) {
+            if (color != sideToMove || !isCheck(color)) {
+                return false;
+            }
+            int kingSquare = kingSquares[color];
+            long escapes = Bitboards.kingAttacks(kingSquare) & ~colorBitboards[color]
+                    & ~attackedSquares(1 - color, occupied & ~(1L << kingSquare));
+            return escapes == 0 && generateLegalMoves(scratchMoves) == 0;
+        }
+
+        /**
+         * Checks if the given color is to move, not in check, and has no legal move.
+         */
+        public boolean isStalemate(int color) {
+            return color == sideToMove && !isCheck(color) && generateLegalMoves(scratchMoves) == 0;
+        }
+
+        /**
+         * Returns the squares the piece can legally move to, for the side to move.
+         */
+        public long getLegalTargets(Piece piece) {
+            long targets = 0L;
+            int count = generateLegalMoves(scratchMoves);
+            for (int i = 0; i < count; i++) {
+                if (Move.from(scratchMoves[i]) == piece.getSquare()) {
+                    targets |= 1L << Move.to(scratchMoves[i]);
+                }
+            }
+            return targets;
+        }
+
+        /**
+         * Returns the square index of the king of the given color.
+         */
+        private int findKingSquare(int color) {
+            return kingSquares[color];
+        }
+
+        /**
+         * Determines whether a square is under attack by any piece of the attacking color,
+         * by looking it up in that color's attack map.
+         */
+        public boolean isSquareUnderAttack(int targetRow, int targetCol, int attackingColor) {
+            long start = Instrumentation.startTimer();
+            boolean attacked = (getAttackMap(attackingColor) & Bitboards.bit(targetRow, targetCol)) != 0;
+            Instrumentation.stopTimer(Instrumentation.IS_SQUARE_UNDER_ATTACK, start);
+            return attacked;
+        }
+    }
+
+    /**
+     * The abstract Piece class representing a chess piece.
+     */
+    private abstract static class Piece {
+        protected int row;
+        protected int col;
+        protected int color;
+        protected final int type;
+        protected String symbol;
+        protected int previousRow;
+        protected int previousCol;
+
+        public Piece(int row, int col, int color, int type) {
+            this.row = row;
+            this.col = col;
+            this.color = color;
+            this.type = type;
+            this.previousRow = row;
+            this.previousCol = col;
+        }
+
+        public abstract boolean isValidMove(int newRow, int newCol, Board board);
+
+        /**
+         * Returns the squares this piece can move to by its own pattern, excluding squares
+         * held by its own side. Whether the move leaves the king in check is not tested.
+         */
+        public abstract long getTargets(Board board);
+
+        public List<Point> getValidMoves(Board board) {
+            long start = Instrumentation.startTimer();
+            List<Point> moves = Bitboards.toPoints(getTargets(board));
+            Instrumentation.stopTimer(Instrumentation.GET_VALID_MOVES, start);
+            return moves;
+        }
+
+        /**
+         * Updates the piece's position and saves the previous position.
+         */
+        public void setPosition(int row, int col) {
+            previousRow = this.row;
+            previousCol = this.col;
+            this.row = row;
+            this.col = col;
+        }
+
+        public int getPreviousRow() {
+            return previousRow;
+        }
+
+        public int getPreviousCol() {
+            return previousCol;
+        }
+
+        public String getSymbol() {
+            return symbol;
+        }
+
+        public int getColor() {
+            return color;
+        }
+
+        public int getType() {
+            return type;
+        }
+
+        public int getRow() {
+            return row;
+        }
+
+        public int getCol() {
+            return col;
+        }
+
+        public int getSquare() {
+            return Bitboards.square(row, col);
+        }
+
+        /**
+         * Puts the piece back where it stood before a move, restoring the previous
+         * position as well so taking a move back leaves no trace.
+         */
+        public void restorePosition(int row, int col, int previousRow, int previousCol) {
+            this.row = row;
+            this.col = col;
+            this.previousRow = previousRow;
+            this.previousCol = previousCol;
+        }
+
+        /**
+         * Returns an independent copy of this piece, for use on a copied board.
+         */
+        public Piece copy() {
+            Piece piece = createPiece(type, row, col, color);
+            piece.previousRow = previousRow;
+            piece.previousCol = previousCol;
+            return piece;
+        }
+    }
+
+    /**
+     * Creates a piece of the given type.
+     */
+    private static Piece createPiece(int type, int row, int col, int color) {
+        return switch (type) {
+            case PAWN -> new Pawn(row, col, color);
+            case KNIGHT -> new Knight(row, col, color);
+            case BISHOP -> new Bishop(row, col, color);
+            case ROOK -> new Rook(row, col, color);
+            case QUEEN -> new Queen(row, col, color);
+            default -> new King(row, col, color);
+        };
+    }
+
+    /**
+     * The Pawn class with move logic including regular moves, captures, and en passant.
+     */
+    private static class Pawn extends Piece {
+
+        public Pawn(int row, int col, int color) {
+            super(row, col, color, PAWN);
+            symbol = color == 0 ? "♙" : "♟";
+        }
+
+        @Override
+        public boolean isValidMove(int newRow, int newCol, Board board) {
+            int direction = color == 0 ? 1 : -1;
+            int startRow = color == 0 ? 1 : 6;
+            long empty = ~board.getOccupied();
+
+            // Regular move forward.
+            if (col == newCol && (empty & Bitboards.bit(newRow, newCol)) != 0) {
+                if (newRow == row + direction) {
+                    return true;
+                }
+                if (row == startRow && newRow == row + 2 * direction
+                        && (empty & Bitboards.bit(row + direction, col)) != 0) {
+                    return true;
+                }
+            }
+
+            // Capture move (including en passant).
+            if ((Bitboards.pawnAttacks(color, getSquare()) & Bitboards.bit(newRow, newCol)) != 0) {
+                if ((board.getColorPieces(1 - color) & Bitboards.bit(newRow, newCol)) != 0) {
+                    return true;
+                }
+                Piece beside = board.getPiece(row, newCol);
+                if (beside instanceof Pawn && beside == board.getEnPassantVulnerable()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public long getTargets(Board board) {
+            int direction = color == 0 ? 1 : -1;
+            int startRow = color == 0 ? 1 : 6;
+            long empty = ~board.getOccupied();
+            long targets = 0L;
+
+            // Forward moves.
+            long single = Bitboards.bit(row + direction, col);
+            if ((empty & single) != 0) {
+                targets |= single;
+                if (row == startRow && (empty & Bitboards.bit(row + 2 * direction, col)) != 0) {
+                    targets |= Bitboards.bit(row + 2 * direction, col);
+                }
+            }
+
+            // Diagonal captures.
+            long attacks = Bitboards.pawnAttacks(color, getSquare());
+            targets |= attacks & board.getColorPieces(1 - color);
+            // Note: En passant capture square is the same as a diagonal move.
+            Piece enPassantVulnerable = board.getEnPassantVulnerable();
+            if (enPassantVulnerable != null && enPassantVulnerable.getRow() == row
+                    && Math.abs(enPassantVulnerable.getCol() - col) == 1) {
+                targets |= Bitboards.bit(row + direction, enPassantVulnerable.getCol());
+            }
+            return targets;
+        }
+    }
+
+    /**
+     * The Rook class with straight-line movement.
+     */
+    private static class Rook extends Piece {
+        private boolean hasMoved = false;
+
+        public Rook(int row, int col, int color) {
+            super(row, col, color, ROOK);
+            symbol = color == 0 ? "♖" : "♜";
+        }
+
+        public boolean hasMoved() {
+            return hasMoved;
+        }
+
+        public void setMoved(boolean moved) {
+            this.hasMoved = moved;
+        }
+
+        @Override
+        public Piece copy() {
+            Rook rook = (Rook) super.copy();
+            rook.hasMoved = hasMoved;
+            return rook;
+        }
+
+        @Override
+        public boolean isValidMove(int newRow, int newCol, Board board) {
+            return (Bitboards.rookAttacks(getSquare(), board.getOccupied()) & Bitboards.bit(newRow, newCol)) != 0;
+        }
+
+        @Override
+        public long getTargets(Board board) {
+            return Bitboards.rookAttacks(getSquare(), board.getOccupied()) & ~board.getColorPieces(color);
+        }
+    }
+
+    /**
+     * The Knight class with L-shaped moves.
+     */
+    private static class Knight extends Piece {
+
+        public Knight(int row, int col, int color) {
+            super(row, col, color, KNIGHT);
+            symbol = color == 0 ? "♘" : "♞";
+        }
+
+        @Override
+        public boolean isValidMove(int newRow, int newCol, Board board) {
+            return (Bitboards.knightAttacks(getSquare()) & Bitboards.bit(newRow, newCol)) != 0;
+        }
+
+        @Override
+        public long getTargets(Board board) {
+            return Bitboards.knightAttacks(getSquare()) & ~board.getColorPieces(color);
+        }
+    }
+
+    /**
+     * The Bishop class with diagonal moves.
+     */
+    private static class Bishop extends Piece {
+
+        public Bishop(int row, int col, int color) {
+            super(row, col, color, BISHOP);
+            symbol = color == 0 ? "♗" : "♝";
+        }
+
+        @Override
+        public boolean isValidMove(int newRow, int newCol, Board board) {
+            return (Bitboards.bishopAttacks(getSquare(), board.getOccupied()) & Bitboards.bit(newRow, newCol)) != 0;
+        }
+
+        @Override
+        public long getTargets(Board board) {
+            return Bitboards.bishopAttacks(getSquare(), board.getOccupied()) & ~board.getColorPieces(color);
+        }
+    }
+
+    /**
+     * The Queen class that combines the moves of the Rook and Bishop.
+     */
+    private static class Queen extends Piece {
+
+        public Queen(int row, int col, int color) {
+            super(row, col, color, QUEEN);
+            symbol = color == 0 ? "♕" : "♛";
+        }
+
+        @Override
+        public boolean isValidMove(int newRow, int newCol, Board board) {
+            return (Bitboards.queenAttacks(getSquare(), board.getOccupied()) & Bitboards.bit(newRow, newCol)) != 0;
+        }
+
+        @Override
+        public long getTargets(Board board) {
+            return Bitboards.queenAttacks(getSquare(), board.getOccupied()) & ~board.getColorPieces(color);
+        }
+    }
+
+    /**
+     * The King class with normal moves and castling logic.
+     */
+    private static class King extends Piece {
+
+        public King(int row, int col, int color) {
+            super(row, col, color, KING);
+            symbol = color == 0 ? "♔" : "♚";
+        }
+
+        @Override
+        public boolean isValidMove(int newRow, int newCol, Board board) {
+            // Regular one-square move.
+            if ((Bitboards.kingAttacks(getSquare()) & Bitboards.bit(newRow, newCol)) != 0) {
+                return true;
+            }
+            // Castling: king moves two squares horizontally.
+            if (row == newRow && Math.abs(newCol - col) == 2) {
+                boolean kingside = newCol > col;
                 int rookCol = kingside ? 7 : 0;
-                Piece rook = grid[row][rookCol];
+                Piece rook = board.getPiece(row, rookCol);
                 if (rook instanceof Rook && !((Rook) rook).hasMoved()
-                        && !(color == 0 ? whiteKingMoved : blackKingMoved)) {
+                        && !board.hasKingMoved(color)) {
                     // Check that the squares between the king and rook are empty.
-                    int step = kingside ? 1 : -1;
-                    for (int c = col + step; c != rookCol; c += step) {
-                        if (grid[row][c] != null) {
-                            return false;
+                    long between = kingside
+                            ? Bitboards.bit(row, 5) | Bitboards.bit(row, 6)
+                            : Bitboards.bit(row, 1) | Bitboards.bit(row, 2) | Bitboards.bit(row, 3);
+                    // The king may not castle out of or through check; the square it lands
+                    // on is checked like any other move.
+                    long crossed = Bitboards.bit(row, col) | Bitboards.bit(row, kingside ? col + 1 : col - 1);
+                    return (board.getOccupied() & between) == 0
+                            && (board.getAttackMap(1 - color) & crossed) == 0;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public long getTargets(Board board) {
+            long targets = Bitboards.kingAttacks(getSquare()) & ~board.getColorPieces(color);
+            // Castling moves.
+            if (!board.hasKingMoved(color)) {
+                long occupied = board.getOccupied();
+                // Kingside castling.
+                Piece kingsideRook = board.getPiece(row, 7);
+                if ((occupied & (Bitboards.bit(row, 5) | Bitboards.bit(row, 6))) == 0
+                        && kingsideRook instanceof Rook && !((Rook) kingsideRook).hasMoved()) {
+                    targets |= Bitboards.bit(row, col + 2);
+                }
+                // Queenside castling.
+                Piece queensideRook = board.getPiece(row, 0);
+                if ((occupied & (Bitboards.bit(row, 1) | Bitboards.bit(row, 2) | Bitboards.bit(row, 3))) == 0
+                        && queensideRook instanceof Rook && !((Rook) queensideRook).hasMoved()) {
+                    targets |= Bitboards.bit(row, col - 2);
+                }
+            }
+            return targets;
+        }
+    }
+
+    /**
+     * Random keys for Zobrist hashing. A fixed seed keeps keys identical across runs.
+     */
+    private static final class Zobrist {
+        private static final long[][] PIECES = new long[12][64];
+        private static final long[] CASTLING = new long[16];
+        private static final long[] EN_PASSANT = new long[8];
+        private static final long SIDE;
+
+        static {
+            java.util.Random random = new java.util.Random(0x5EED_C0DEL);
+            for (long[] keys : PIECES) {
+                for (int sq = 0; sq < 64; sq++) {
+                    keys[sq] = random.nextLong();
+                }
+            }
+            // No castling rights hashes to zero so it drops out of the key.
+            for (int i = 1; i < CASTLING.length; i++) {
+                CASTLING[i] = random.nextLong();
+            }
+            for (int i = 0; i < EN_PASSANT.length; i++) {
+                EN_PASSANT[i] = random.nextLong();
+            }
+            SIDE = random.nextLong();
+        }
+
+        private Zobrist() {
+        }
+    }
+
+    /**
+     * A fixed-size hash table of search results, stored as two longs per entry in one
+     * primitive array. The first long holds key ^ data and the second holds data, so a
+     * read torn by a concurrent write fails the key check and is treated as a miss.
+     * That makes the table safe to share between search threads without locks.
+     */
+    private static final class TranspositionTable {
+        static final int EXACT = 1;
+        static final int LOWER_BOUND = 2;
+        static final int UPPER_BOUND = 3;
+
+        private final long[] table;
+        private final int mask;
+        private int age;
+
+        /**
+         * Creates a table using up to the given number of megabytes, rounded down to a
+         * power-of-two number of entries.
+         */
+        TranspositionTable(int megabytes) {
+            int entries = Integer.highestOneBit(Math.max(1, (int) Math.min(1L << 30, megabytes * (1L << 20) / 16)));
+            table = new long[entries * 2];
+            mask = entries - 1;
+        }
+
+        /**
+         * Starts a new search generation, so entries from earlier searches are replaced first.
+         */
+        void newSearch() {
+            age = (age + 1) & 0xFF;
+        }
+
+        void clear() {
+            java.util.Arrays.fill(table, 0L);
+        }
+
+        /**
+         * Fills line with the principal variation starting with firstMove: the stored
+         * best moves of the positions it leads to, up to maxLength moves and stopping at
+         * a missing entry or a repeated position. Returns its length; the board ends up
+         * as it was.
+         */
+        int principalVariation(Board board, int firstMove, int[] line, int maxLength) {
+            int length = 0;
+            for (int move = firstMove; move != Move.NONE && length < maxLength; ) {
+                line[length++] = move;
+                board.makeMove(move);
+                if (board.isRepetition()) {
+                    break;
+                }
+                long entry = probe(board.getZobristKey());
+                move = entry == 0 ? Move.NONE : board.findMove(move(entry));
+            }
+            for (int i = 0; i < length; i++) {
+                board.unmakeMove();
+            }
+            return length;
+        }
+
+        /**
+         * Returns the packed entry for the key, or 0 when the key is not stored.
+         */
+        long probe(long key) {
+            int index = ((int) key & mask) << 1;
+            long data = table[index + 1];
+            return (table[index] ^ data) == key ? data : 0L;
+        }
+
+        /**
+         * Stores a result. A slot holding another position is only replaced when it comes
+         * from an older search or was searched no deeper than this one.
+         */
+        void store(long key, int move, int score, int depth, int bound) {
+            int index = ((int) key & mask) << 1;
+            long oldData = table[index + 1];
+            boolean samePosition = (table[index] ^ oldData) == key;
+            if (!samePosition && oldData != 0 && age(oldData) == age && depth(oldData) > depth) {
+                return;
+            }
+            if (samePosition && move == 0) {
+                // Keep the best move we already know for this position.
+                move = move(oldData);
+            }
+            long data = (move & 0xFFFFL)
+                    | ((long) bound << 16)
+                    | ((long) (depth & 0xFF) << 18)
+                    | ((long) age << 26)
+                    | ((long) score << 34);
+            table[index] = key ^ data;
+            table[index + 1] = data;
+        }
+
+        static int move(long data) {
+            return (int) (data & 0xFFFF);
+        }
+
+        static int bound(long data) {
+            return (int) ((data >>> 16) & 3);
+        }
+
+        static int depth(long data) {
+            return (int) ((data >>> 18) & 0xFF);
+        }
+
+        static int age(long data) {
+            return (int) ((data >>> 26) & 0xFF);
+        }
+
+        static int score(long data) {
+            return (int) (data >> 34);
+        }
+    }
+
+    /**
+     * Moves are packed into ints so move lists can live in preallocated int arrays.
+     * Bits 0-5 hold the from square, bits 6-11 the to square and bits 12-14 the
+     * promotion type plus one; the bits above flag captures, en passant, castling
+     * and double pawn pushes. The low 15 bits identify the move on their own.
+     */
+    private static final class Move {
+        static final int NONE = 0;
+        static final int NO_PROMOTION = -1;
+        static final int[] PROMOTION_TYPES = {QUEEN, ROOK, BISHOP, KNIGHT};
+        static final int CAPTURE = 1 << 15;
+        static final int EN_PASSANT = 1 << 16;
+        static final int CASTLING = 1 << 17;
+        static final int DOUBLE_PUSH = 1 << 18;
+        // More than the most legal moves any chess position has.
+        static final int MAX_MOVES = 256;
+
+        private Move() {
+        }
+
+        static int create(int from, int to, int promotionType, int flags) {
+            return from | (to << 6) | ((promotionType + 1) << 12) | flags;
+        }
+
+        static int from(int move) {
+            return move & 63;
+        }
+
+        static int to(int move) {
+            return (move >>> 6) & 63;
+        }
+
+        static int fromRow(int move) {
+            return from(move) >>> 3;
+        }
+
+        static int fromCol(int move) {
+            return from(move) & 7;
+        }
+
+        static int toRow(int move) {
+            return to(move) >>> 3;
+        }
+
+        static int toCol(int move) {
+            return to(move) & 7;
+        }
+
+        static int promotionType(int move) {
+            return ((move >>> 12) & 7) - 1;
+        }
+
+        static boolean isCapture(int move) {
+            return (move & CAPTURE) != 0;
+        }
+
+        /**
+         * Returns the from, to and promotion bits, which is what the transposition
+         * table stores.
+         */
+        static int key(int move) {
+            return move & 0x7FFF;
+        }
+
+        /**
+         * Returns the algebraic name of a square, e.g. e4.
+         */
+        static String squareName(int row, int col) {
+            return "" + (char) ('a' + col) + (row + 1);
+        }
+
+        /**
+         * Returns the move in coordinate notation, e.g. e2e4 or e7e8q.
+         */
+        static String toString(int move) {
+            if (move == NONE) {
+                return "(none)";
+            }
+            String text = squareName(fromRow(move), fromCol(move)) + squareName(toRow(move), toCol(move));
+            int promotionType = promotionType(move);
+            return promotionType == NO_PROMOTION ? text : text + "pnbrqk".charAt(promotionType);
+        }
+    }
+
+    /**
+     * Material and piece-square evaluation, tapered between middlegame and endgame
+     * values by the material left on the board. The board keeps both sums and the phase
+     * up to date as pieces come and go, so evaluating a position costs a few
+     * multiplications instead of a scan of all 64 squares.
+     * Tables are written from White's side with rank 8 on top and mirrored for Black.
+     * Knights, bishops, rooks and queens use one table for both phases; pawns are pushed
+     * harder and the king comes to the centre in the endgame.
+     */
+    private static final class Evaluation {
+        static final int MAX_PHASE = 24;
+        static final int[] PHASE_WEIGHTS = {0, 1, 1, 2, 4, 0};
+        private static final int[] MIDGAME_VALUES = {100, 320, 330, 500, 900, 0};
+        private static final int[] ENDGAME_VALUES = {120, 300, 320, 520, 900, 0};
+
+        private static final int[] PAWN_MIDGAME = {
+             0,   0,   0,   0,   0,   0,   0,   0,
+            50,  50,  50,  50,  50,  50,  50,  50,
+            10,  10,  20,  30,  30,  20,  10,  10,
+             5,   5,  10,  25,  25,  10,   5,   5,
+             0,   0,   0,  20,  20,   0,   0,   0,
+             5,  -5, -10,   0,   0, -10,  -5,   5,
+             5,  10,  10, -20, -20,  10,  10,   5,
+             0,   0,   0,   0,   0,   0,   0,   0,
+        };
+        private static final int[] PAWN_ENDGAME = {
+             0,   0,   0,   0,   0,   0,   0,   0,
+            80,  80,  80,  80,  80,  80,  80,  80,
+            50,  50,  50,  50,  50,  50,  50,  50,
+            30,  30,  30,  30,  30,  30,  30,  30,
+            15,  15,  15,  15,  15,  15,  15,  15,
+             5,   5,   5,   5,   5,   5,   5,   5,
+             0,   0,   0,   0,   0,   0,   0,   0,
+             0,   0,   0,   0,   0,   0,   0,   0,
+        };
+        private static final int[] KNIGHT_TABLE = {
+            -50, -40, -30, -30, -30, -30, -40, -50,
+            -40, -20,   0,   0,   0,   0, -20, -40,
+            -30,   0,  10,  15,  15,  10,   0, -30,
+            -30,   5,  15,  20,  20,  15,   5, -30,
+            -30,   0,  15,  20,  20,  15,   0, -30,
+            -30,   5,  10,  15,  15,  10,   5, -30,
+            -40, -20,   0,   5,   5,   0, -20, -40,
+            -50, -40, -30, -30, -30, -30, -40, -50,
+        };
+        private static final int[] BISHOP_TABLE = {
+            -20, -10, -10, -10, -10, -10, -10, -20,
+            -10,   0,   0,   0,   0,   0,   0, -10,
+            -10,   0,   5,  10,  10,   5,   0, -10,
+            -10,   5,   5,  10,  10,   5,   5, -10,
+            -10,   0,  10,  10,  10,  10,   0, -10,
+            -10,  10,  10,  10,  10,  10,  10, -10,
+            -10,   5,   0,   0,   0,   0,   5, -10,
+            -20, -10, -10, -10, -10, -10, -10, -20,
+        };
+        private static final int[] ROOK_TABLE = {
+              0,   0,   0,   0,   0,   0,   0,   0,
+              5,  10,  10,  10,  10,  10,  10,   5,
+             -5,   0,   0,   0,   0,   0,   0,  -5,
+             -5,   0,   0,   0,   0,   0,   0,  -5,
+             -5,   0,   0,   0,   0,   0,   0,  -5,
+             -5,   0,   0,   0,   0,   0,   0,  -5,
+             -5,   0,   0,   0,   0,   0,   0,  -5,
+              0,   0,   0,   5,   5,   0,   0,   0,
+        };
+        private static final int[] QUEEN_TABLE = {
+            -20, -10, -10,  -5,  -5, -10, -10, -20,
+            -10,   0,   0,   0,   0,   0,   0, -10,
+            -10,   0,   5,   5,   5,   5,   0, -10,
+             -5,   0,   5,   5,   5,   5,   0,  -5,
+              0,   0,   5,   5,   5,   5,   0,  -5,
+            -10,   5,   5,   5,   5,   5,   0, -10,
+            -10,   0,   5,   0,   0,   0,   0, -10,
+            -20, -10, -10,  -5,  -5, -10, -10, -20,
+        };
+        private static final int[] KING_MIDGAME = {
+            -30, -40, -40, -50, -50, -40, -40, -30,
+            -30, -40, -40, -50, -50, -40, -40, -30,
+            -30, -40, -40, -50, -50, -40, -40, -30,
+            -30, -40, -40, -50, -50, -40, -40, -30,
+            -20, -30, -30, -40, -40, -30, -30, -20,
+            -10, -20, -20, -20, -20, -20, -20, -10,
+             20,  20,   0,   0,   0,   0,  20,  20,
+             20,  30,  10,   0,   0,  10,  30,  20,
+        };
+        private static final int[] KING_ENDGAME = {
+            -50, -40, -30, -20, -20, -30, -40, -50,
+            -30, -20, -10,   0,   0, -10, -20, -30,
+            -30, -10,  20,  30,  30,  20, -10, -30,
+            -30, -10,  30,  40,  40,  30, -10, -30,
+            -30, -10,  30,  40,  40,  30, -10, -30,
+            -30, -10,  20,  30,  30,  20, -10, -30,
+            -30, -30,   0,   0,   0,   0, -30, -30,
+            -50, -30, -30, -30, -30, -30, -30, -50,
+        };
+
+        // Value plus table entry for each piece index (color * 6 + type) and square,
+        // negated for Black, so the board can add and subtract them directly.
+        static final int[][] MIDGAME = new int[12][64];
+        static final int[][] ENDGAME = new int[12][64];
+
+        static {
+            int[][] midgameTables = {PAWN_MIDGAME, KNIGHT_TABLE, BISHOP_TABLE, ROOK_TABLE, QUEEN_TABLE, KING_MIDGAME};
+            int[][] endgameTables = {PAWN_ENDGAME, KNIGHT_TABLE, BISHOP_TABLE, ROOK_TABLE, QUEEN_TABLE, KING_ENDGAME};
+            for (int type = PAWN; type <= KING; type++) {
+                for (int sq = 0; sq < 64; sq++) {
+                    int row = sq >>> 3;
+                    int col = sq & 7;
+                    int white = (7 - row) * 8 + col;
+                    int black = row * 8 + col;
+                    MIDGAME[type][sq] = MIDGAME_VALUES[type] + midgameTables[type][white];
+                    ENDGAME[type][sq] = ENDGAME_VALUES[type] + endgameTables[type][white];
+                    MIDGAME[6 + type][sq] = -(MIDGAME_VALUES[type] + midgameTables[type][black]);
+                    ENDGAME[6 + type][sq] = -(ENDGAME_VALUES[type] + endgameTables[type][black]);
+                }
+            }
+        }
+
+        private Evaluation() {
+        }
+
+        /**
+         * Blends the board's middlegame and endgame scores by its phase and returns the
+         * result from the point of view of the side to move.
+         */
+        static int evaluate(Board board) {
+            int phase = Math.min(board.getPhase(), MAX_PHASE);
+            int score = (board.getMidgameScore() * phase + board.getEndgameScore() * (MAX_PHASE - phase)) / MAX_PHASE;
+            return board.getSideToMove() == 0 ? score : -score;
+        }
+    }
+
+    /**
+     * The outcome of a search: the best move found and how the search went.
+     */
+    private static final class SearchResult {
+        private final int bestMove;
+        private final int score;
+        private final int depth;
+        private final long nodes;
+        private final long nanos;
+        private final List<SearchResult> threadResults;
+
+        SearchResult(int bestMove, int score, int depth, long nodes, long nanos) {
+            this(bestMove, score, depth, nodes, nanos, null);
+        }
+
+        /**
+         * Creates the combined result of a multi-threaded search. The nodes are the total
+         * over all threads, and threadResults holds what each thread did on its own.
+         */
+        SearchResult(int bestMove, int score, int depth, long nodes, long nanos, List<SearchResult> threadResults) {
+            this.bestMove = bestMove;
+            this.score = score;
+            this.depth = depth;
+            this.nodes = nodes;
+            this.nanos = nanos;
+            this.threadResults = threadResults == null ? List.of(this) : List.copyOf(threadResults);
+        }
+
+        int getBestMove() {
+            return bestMove;
+        }
+
+        int getScore() {
+            return score;
+        }
+
+        int getDepth() {
+            return depth;
+        }
+
+        long getNodes() {
+            return nodes;
+        }
+
+        long getMillis() {
+            return nanos / 1_000_000L;
+        }
+
+        long getNodesPerSecond() {
+            return nanos == 0 ? 0 : nodes * 1_000_000_000L / nanos;
+        }
+
+        /**
+         * Returns the result of each search thread, main thread first. A single-threaded
+         * search has just itself.
+         */
+        List<SearchResult> getThreadResults() {
+            return threadResults;
+        }
+
+        @Override
+        public String toString() {
+            String text = String.format("%s, depth %d, score %d, %,d nodes/s",
+                    Move.toString(bestMove), depth, score, getNodesPerSecond());
+            return threadResults.size() > 1 ? text + ", " + threadResults.size() + " threads" : text;
+        }
+    }
+
+    /**
+     * Negamax alpha-beta search with iterative deepening, a quiescence search over
+     * captures and a time budget. Each Search instance belongs to one thread, but the
+     * transposition table and the stop signal may be shared, see LazySmp. Move lists and
+     * ordering scores live in per-ply arrays allocated once, so searching does not
+     * create garbage.
+     * Moves are ordered hash move first, then captures the static exchange evaluation
+     * does not lose by most valuable victim and least valuable attacker, then killer
+     * moves, then quiet moves by history, and losing captures last.
+     */
+    private static final class Search {
+        static final int MAX_DEPTH = 64;
+        static final int MATE_SCORE = 100_000;
+        private static final int MAX_PLY = 128;
+        private static final int INFINITY = 1_000_000;
+        private static final int[] PIECE_VALUES = {100, 320, 330, 500, 900, 0};
+
+        // Helper threads skip depths in these staggered patterns, one per helper and
+        // repeating after twenty, so the threads spread over neighbouring depths.
+        private static final int[] SKIP_SIZE = {1, 1, 2, 2, 2, 2, 3, 3, 3, 3, 3, 3, 4, 4, 4, 4, 4, 4, 4, 4};
+        private static final int[] SKIP_PHASE = {0, 1, 0, 1, 2, 3, 0, 1, 2, 3, 4, 5, 0, 1, 2, 3, 4, 5, 6, 7};
+
+        private final TranspositionTable table;
+        private final AtomicBoolean stopSignal;
+        private final int threadIndex;
+        private final int[][] moveStack = new int[MAX_PLY + 1][Move.MAX_MOVES];
+        private final int[][] scoreStack = new int[MAX_PLY + 1][Move.MAX_MOVES];
+        // Root move scores of the current iteration, and a copy to find the weakest line.
+        private final int[] rootScores = new int[Move.MAX_MOVES];
+        private final int[] floorScores = new int[Move.MAX_MOVES];
+        private int multiPv = 1;
+
+        // Ordering score bands, highest first. Quiet moves score their history, which is
+        // kept below KILLER_SCORE, and losing captures go below every quiet move.
+        private static final int HASH_MOVE_SCORE = 1 << 30;
+        private static final int GOOD_CAPTURE_SCORE = 1 << 28;
+        private static final int KILLER_SCORE = 1 << 27;
+        private static final int HISTORY_LIMIT = 1 << 26;
+        private static final int LOSING_CAPTURE_SCORE = -(1 << 28);
+
+        // Two killer move keys per ply: quiet moves that caused a cutoff at that ply.
+        private final int[] killers = new int[2 * (MAX_PLY + 1)];
+        // Cutoff counts for quiet moves, indexed by side to move and the from and to bits.
+        private final int[] history = new int[2 << 12];
+        // The gain of each step of an exchange, see staticExchange.
+        private final int[] exchangeGains = new int[33];
+        private long deadline;
+        private long nodes;
+        private long nodeLimit = Long.MAX_VALUE;
+        private Consumer<SearchResult> iterationListener;
+        private boolean stopped;
+        private int rootCount;
+
+        // Counts gathered since they were last added to Instrumentation, which happens
+        // every 1024 nodes and when the search ends.
+        private long publishedNodes;
+        private long tableProbes;
+        private long tableHits;
+        private long interiorNodes;
+        private long cutoffs;
+        private long firstMoveCutoffs;
+
+        Search(TranspositionTable table) {
+            this(table, new AtomicBoolean(), 0);
+        }
+
+        /**
+         * Creates a search that also stops once stopSignal is set. Thread index 0 is the
+         * main thread and searches every depth; the others skip depths.
+         */
+        Search(TranspositionTable table, AtomicBoolean stopSignal, int threadIndex) {
+            this.table = table;
+            this.stopSignal = stopSignal;
+            this.threadIndex = threadIndex;
+            Instrumentation.register();
+        }
+
+        /**
+         * Stops the search after about this many nodes; Long.MAX_VALUE means no limit.
+         */
+        void setNodeLimit(long nodeLimit) {
+            this.nodeLimit = nodeLimit;
+        }
+
+        /**
+         * Sets how many root moves get exact scores, best first; see getLines.
+         */
+        void setMultiPv(int multiPv) {
+            this.multiPv = Math.max(1, multiPv);
+        }
+
+        /**
+         * Copies the best root moves of the last completed iteration and their scores,
+         * best first, and returns how many there are: up to the multi-PV count. Meant
+         * for the iteration listener, while the root moves are still in place.
+         */
+        int getLines(int[] moves, int[] scores) {
+            int lines = Math.min(multiPv, rootCount);
+            System.arraycopy(moveStack[0], 0, moves, 0, lines);
+            System.arraycopy(rootScores, 0, scores, 0, lines);
+            return lines;
+        }
+
+        /**
+         * Sets a listener that gets the result of each completed iteration, on the
+         * searching thread and with the board back at the root position, or null for none.
+         */
+        void setIterationListener(Consumer<SearchResult> iterationListener) {
+            this.iterationListener = iterationListener;
+        }
+
+        /**
+         * Searches deeper and deeper until the time budget or maxDepth runs out, and
+         * returns the best move of the last completed iteration.
+         */
+        SearchResult search(Board board, long timeMillis, int maxDepth) {
+            table.newSearch();
+            return iterate(board, System.nanoTime(), timeMillis, maxDepth);
+        }
+
+        /**
+         * Runs the iterative deepening loop against a time budget counted from start,
+         * without starting a new table generation.
+         */
+        SearchResult iterate(Board board, long start, long timeMillis, int maxDepth) {
+            deadline = start + timeMillis * 1_000_000L;
+            nodes = 0;
+            publishedNodes = 0;
+            stopped = false;
+            java.util.Arrays.fill(killers, Move.NONE);
+            ageHistory();
+
+            int[] rootMoves = moveStack[0];
+            int count = board.generateLegalMoves(rootMoves);
+            rootCount = count;
+            if (count == 0) {
+                return new SearchResult(Move.NONE, board.isCheck(board.getSideToMove()) ? -MATE_SCORE : 0,
+                        0, 0, System.nanoTime() - start);
+            }
+            int bestMove = rootMoves[0];
+            int bestScore = 0;
+            int depthReached = 0;
+            long previousIterationNodes = 0;
+            for (int depth = 1; depth <= Math.min(maxDepth, MAX_DEPTH); depth++) {
+                long nodesBefore = nodes;
+                if (skipsDepth(depth)) {
+                    continue;
+                }
+                int alpha = -INFINITY;
+                int iterationBest = Move.NONE;
+                for (int i = 0; i < count; i++) {
+                    // With several lines wanted, a move only has to beat the weakest of them.
+                    int floor = multiPv > 1 ? lineFloor(i) : alpha;
+                    board.makeMove(rootMoves[i]);
+                    int score = -negamax(board, depth - 1, -INFINITY, -floor, 1);
+                    board.unmakeMove();
+                    if (stopped) {
+                        break;
+                    }
+                    rootScores[i] = score;
+                    if (score > alpha) {
+                        alpha = score;
+                        iterationBest = rootMoves[i];
+                    }
+                }
+                if (stopped) {
+                    break;
+                }
+                bestMove = iterationBest;
+                bestScore = alpha;
+                depthReached = depth;
+                table.store(board.getZobristKey(), Move.key(bestMove), bestScore, depth, TranspositionTable.EXACT);
+                // Search the best move, or the best lines, first on the next iteration.
+                if (multiPv > 1) {
+                    sortRootMoves(count);
+                } else {
+                    moveToFront(rootMoves, count, Move.key(bestMove));
+                    rootScores[0] = bestScore;
+                }
+                if (iterationListener != null) {
+                    iterationListener.accept(new SearchResult(bestMove, bestScore, depth, nodes, System.nanoTime() - start));
+                }
+                if (threadIndex == 0) {
+                    long iterationNodes = nodes - nodesBefore;
+                    Instrumentation.iterationCompleted(depth, iterationNodes, previousIterationNodes, nodes,
+                            System.nanoTime() - start);
+                    previousIterationNodes = iterationNodes;
+                }
+                if (Math.abs(bestScore) >= MATE_SCORE - MAX_DEPTH) {
+                    break;
+                }
+            }
+            publishCounters();
+            return new SearchResult(bestMove, bestScore, depthReached, nodes, System.nanoTime() - start);
+        }
+
+        private int negamax(Board board, int depth, int alpha, int beta, int ply) {
+            if (checkTime()) {
+                return 0;
+            }
+            if (board.isRepetition()) {
+                return 0;
+            }
+            if (depth <= 0 || ply >= MAX_PLY) {
+                return quiescence(board, alpha, beta, ply);
+            }
+
+            long key = board.getZobristKey();
+            long entry = table.probe(key);
+            int hashMove = Move.NONE;
+            tableProbes++;
+            if (entry != 0) {
+                tableHits++;
+                hashMove = TranspositionTable.move(entry);
+                if (TranspositionTable.depth(entry) >= depth) {
+                    int score = scoreFromTable(TranspositionTable.score(entry), ply);
+                    int bound = TranspositionTable.bound(entry);
+                    if (bound == TranspositionTable.EXACT
+                            || (bound == TranspositionTable.LOWER_BOUND && score >= beta)
+                            || (bound == TranspositionTable.UPPER_BOUND && score <= alpha)) {
+                        return score;
+                    }
+                }
+            }
+
+            int[] moves = moveStack[ply];
+            int[] scores = scoreStack[ply];
+            int count = board.generateLegalMoves(moves);
+            if (count == 0) {
+                return board.isCheck(board.getSideToMove()) ? -MATE_SCORE + ply : 0;
+            }
+            scoreMoves(board, moves, scores, count, hashMove, ply);
+            interiorNodes++;
+
+            int bestMove = Move.NONE;
+            for (int i = 0; i < count; i++) {
+                int move = pickBest(moves, scores, i, count);
+                board.makeMove(move);
+                int score = -negamax(board, depth - 1, -beta, -alpha, ply + 1);
+                board.unmakeMove();
+                if (stopped) {
+                    return 0;
+                }
+                if (score >= beta) {
+                    cutoffs++;
+                    if (i == 0) {
+                        firstMoveCutoffs++;
+                    }
+                    if (!Move.isCapture(move) && Move.promotionType(move) == Move.NO_PROMOTION) {
+                        recordQuietCutoff(board.getSideToMove(), move, depth, ply);
+                    }
+                    table.store(key, Move.key(move), scoreToTable(beta, ply), depth, TranspositionTable.LOWER_BOUND);
+                    return beta;
+                }
+                if (score > alpha) {
+                    alpha = score;
+                    bestMove = move;
+                }
+            }
+            table.store(key, Move.key(bestMove), scoreToTable(alpha, ply), depth,
+                    bestMove == Move.NONE ? TranspositionTable.UPPER_BOUND : TranspositionTable.EXACT);
+            return alpha;
+        }
+
+        /**
+         * Searches captures only until the position is quiet, so the static evaluation
+         * is never taken in the middle of an exchange.
+         */
+        private int quiescence(Board board, int alpha, int beta, int ply) {
+            if (checkTime()) {
+                return 0;
+            }
+            int standPat = evaluate(board);
+            if (standPat >= beta || ply >= MAX_PLY) {
+                return standPat >= beta ? beta : Math.max(alpha, standPat);
+            }
+            if (standPat > alpha) {
+                alpha = standPat;
+            }
+
+            // Keep only the captures that do not lose material, by MVV-LVA.
+            int[] moves = moveStack[ply];
+            int[] scores = scoreStack[ply];
+            int count = 0;
+            int generated = board.generateLegalMoves(moves);
+            for (int i = 0; i < generated; i++) {
+                int move = moves[i];
+                if (Move.isCapture(move) && staticExchange(board, move) >= 0) {
+                    scores[count] = mvvLva(board, move);
+                    moves[count++] = move;
+                }
+            }
+            for (int i = 0; i < count; i++) {
+                int move = pickBest(moves, scores, i, count);
+                board.makeMove(move);
+                int score = -quiescence(board, -beta, -alpha, ply + 1);
+                board.unmakeMove();
+                if (stopped) {
+                    return 0;
+                }
+                if (score >= beta) {
+                    return beta;
+                }
+                if (score > alpha) {
+                    alpha = score;
+                }
+            }
+            return alpha;
+        }
+
+        /**
+         * Gives each move its ordering score, see the class comment.
+         */
+        private void scoreMoves(Board board, int[] moves, int[] scores, int count, int hashMove, int ply) {
+            int historyBase = board.getSideToMove() << 12;
+            int killer0 = killers[2 * ply];
+            int killer1 = killers[2 * ply + 1];
+            for (int i = 0; i < count; i++) {
+                int move = moves[i];
+                int key = Move.key(move);
+                if (key == hashMove) {
+                    scores[i] = HASH_MOVE_SCORE;
+                } else if (Move.isCapture(move)) {
+                    scores[i] = (staticExchange(board, move) >= 0 ? GOOD_CAPTURE_SCORE : LOSING_CAPTURE_SCORE)
+                            + mvvLva(board, move);
+                } else if (Move.promotionType(move) == QUEEN) {
+                    scores[i] = GOOD_CAPTURE_SCORE;
+                } else if (key == killer0) {
+                    scores[i] = KILLER_SCORE + 1;
+                } else if (key == killer1) {
+                    scores[i] = KILLER_SCORE;
+                } else {
+                    scores[i] = history[historyBase | (move & 0xFFF)];
+                }
+            }
+        }
+
+        /**
+         * Remembers a quiet move that caused a cutoff as a killer for this ply and
+         * raises its history by the square of the remaining depth.
+         */
+        private void recordQuietCutoff(int color, int move, int depth, int ply) {
+            int key = Move.key(move);
+            if (killers[2 * ply] != key) {
+                killers[2 * ply + 1] = killers[2 * ply];
+                killers[2 * ply] = key;
+            }
+            int index = (color << 12) | (move & 0xFFF);
+            history[index] += depth * depth;
+            if (history[index] >= HISTORY_LIMIT) {
+                ageHistory();
+            }
+        }
+
+        /**
+         * Halves every history score, so old cutoffs count less than recent ones.
+         */
+        private void ageHistory() {
+            for (int i = 0; i < history.length; i++) {
+                history[i] >>= 1;
+            }
+        }
+
+        /**
+         * Most valuable victim first, and among equal victims the least valuable attacker.
+         */
+        private static int mvvLva(Board board, int move) {
+            return victimValue(board, move) * 8 - board.getPiece(Move.fromRow(move), Move.fromCol(move)).getType();
+        }
+
+        /**
+         * Returns the material the side to move wins, in centipawns, when both sides
+         * keep recapturing on the move's target square with their least valuable
+         * attacker and either may stop when going on would lose. Attackers behind others
+         * on the same line join in as the pieces in front leave.
+         */
+        int staticExchange(Board board, int move) {
+            int from = Move.from(move);
+            int to = Move.to(move);
+            int[] gain = exchangeGains;
+            int attackerType = board.getPiece(Move.fromRow(move), Move.fromCol(move)).getType();
+            long occupied = board.getOccupied() ^ (1L << from);
+            if ((move & Move.EN_PASSANT) != 0) {
+                // The captured pawn stands beside the target square, on the mover's row.
+                occupied ^= 1L << Bitboards.square(Move.fromRow(move), Move.toCol(move));
+            }
+            gain[0] = Move.isCapture(move) ? victimValue(board, move) : 0;
+            int attackerValue = PIECE_VALUES[attackerType];
+            if (Move.promotionType(move) != Move.NO_PROMOTION) {
+                attackerValue = PIECE_VALUES[Move.promotionType(move)];
+                gain[0] += attackerValue - PIECE_VALUES[PAWN];
+            }
+            int side = 1 - board.getSideToMove();
+            long attackers = board.attackersTo(to, occupied) & occupied;
+            int depth = 0;
+            while (true) {
+                depth++;
+                // What the last mover stands to lose if it is taken in turn.
+                gain[depth] = attackerValue - gain[depth - 1];
+                if (Math.max(-gain[depth - 1], gain[depth]) < 0) {
+                    break;
+                }
+                long mine = attackers & board.getColorPieces(side);
+                if (mine == 0) {
+                    break;
+                }
+                int type = PAWN;
+                long candidates = mine & board.getPieces(side, PAWN);
+                while (candidates == 0) {
+                    candidates = mine & board.getPieces(side, ++type);
+                }
+                long attacker = Long.lowestOneBit(candidates);
+                // The king may only take last, when nothing can take it back.
+                if (type == KING && (attackers & ~attacker & board.getColorPieces(1 - side)) != 0) {
+                    break;
+                }
+                occupied ^= attacker;
+                attackers = board.attackersTo(to, occupied) & occupied;
+                attackerValue = PIECE_VALUES[type];
+                side = 1 - side;
+            }
+            while (--depth > 0) {
+                gain[depth - 1] = -Math.max(-gain[depth - 1], gain[depth]);
+            }
+            return gain[0];
+        }
+
+        /**
+         * Returns the score the root move at index i must beat to be among the best
+         * multiPv moves searched so far; while fewer have been searched, any score does.
+         */
+        private int lineFloor(int i) {
+            if (i < multiPv) {
+                return -INFINITY;
+            }
+            System.arraycopy(rootScores, 0, floorScores, 0, i);
+            java.util.Arrays.sort(floorScores, 0, i);
+            return floorScores[i - multiPv];
+        }
+
+        /**
+         * Sorts the root moves by their scores, best first, keeping the order of equal
+         * scores. Insertion sort, as the list is short and mostly sorted already.
+         */
+        private void sortRootMoves(int count) {
+            int[] rootMoves = moveStack[0];
+            for (int i = 1; i < count; i++) {
+                int move = rootMoves[i];
+                int score = rootScores[i];
+                int j = i - 1;
+                for (; j >= 0 && rootScores[j] < score; j--) {
+                    rootMoves[j + 1] = rootMoves[j];
+                    rootScores[j + 1] = rootScores[j];
+                }
+                rootMoves[j + 1] = move;
+                rootScores[j + 1] = score;
+            }
+        }
+
+        /**
+         * Swaps the highest scored move in [start, count) into position start and returns it.
+         */
+        private static int pickBest(int[] moves, int[] scores, int start, int count) {
+            int best = start;
+            for (int i = start + 1; i < count; i++) {
+                if (scores[i] > scores[best]) {
+                    best = i;
+                }
+            }
+            int move = moves[best];
+            moves[best] = moves[start];
+            moves[start] = move;
+            int score = scores[best];
+            scores[best] = scores[start];
+            scores[start] = score;
+            return move;
+        }
+
+        /**
+         * Moves the entry matching the key to the front, keeping the others in order.
+         */
+        private static void moveToFront(int[] moves, int count, int key) {
+            for (int i = 0; i < count; i++) {
+                if (Move.key(moves[i]) == key) {
+                    int move = moves[i];
+                    System.arraycopy(moves, 0, moves, 1, i);
+                    moves[0] = move;
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Mate scores are stored relative to the node rather than the root, so they stay
+         * correct when the entry is found again at a different ply.
+         */
+        private static int scoreToTable(int score, int ply) {
+            if (score >= MATE_SCORE - MAX_DEPTH * 2) {
+                return score + ply;
+            }
+            if (score <= -MATE_SCORE + MAX_DEPTH * 2) {
+                return score - ply;
+            }
+            return score;
+        }
+
+        private static int scoreFromTable(int score, int ply) {
+            if (score >= MATE_SCORE - MAX_DEPTH * 2) {
+                return score - ply;
+            }
+            if (score <= -MATE_SCORE + MAX_DEPTH * 2) {
+                return score + ply;
+            }
+            return score;
+        }
+
+        private boolean skipsDepth(int depth) {
+            if (threadIndex == 0 || depth == 1) {
+                return false;
+            }
+            int pattern = (threadIndex - 1) % SKIP_SIZE.length;
+            return ((depth + SKIP_PHASE[pattern]) / SKIP_SIZE[pattern]) % 2 != 0;
+        }
+
+        /**
+         * Counts the node and reports whether the time budget or node limit has run out
+         * or another thread has called the search off.
+         */
+        private boolean checkTime() {
+            if ((++nodes & 1023) == 0) {
+                publishCounters();
+                if (System.nanoTime() > deadline || nodes >= nodeLimit || stopSignal.get()) {
+                    stopped = true;
+                }
+            }
+            return stopped;
+        }
+
+        /**
+         * Adds the counts gathered since the last call to the process-wide totals.
+         */
+        private void publishCounters() {
+            Instrumentation.addSearchCounts(nodes - publishedNodes, tableProbes, tableHits, interiorNodes, cutoffs,
+                    firstMoveCutoffs);
+            publishedNodes = nodes;
+            tableProbes = 0;
+            tableHits = 0;
+            interiorNodes = 0;
+            cutoffs = 0;
+            firstMoveCutoffs = 0;
+        }
+
+        private static int victimValue(Board board, int move) {
+            Piece victim = board.getPiece(Move.toRow(move), Move.toCol(move));
+            return victim == null ? PIECE_VALUES[PAWN] : PIECE_VALUES[victim.getType()];
+        }
+
+        /**
+         * The static evaluation from the point of view of the side to move, see Evaluation.
+         */
+        static int evaluate(Board board) {
+            return Evaluation.evaluate(board);
+        }
+    }
+
+    /**
+     * Lazy SMP: several threads search the same position at once, each on its own copy
+     * of the board, and share what they learn only through the transposition table.
+     * Helper threads skip depths in staggered patterns, so some run ahead of the main
+     * thread and leave entries it can cut off on. When the main thread's time is up it
+     * raises the stop signal and the deepest completed result wins.
+     * Usage: search <milliseconds> [threads] [fen].
+     */
+    private static final class LazySmp {
+        static final int DEFAULT_THREADS = Runtime.getRuntime().availableProcessors();
+
+        private final TranspositionTable table;
+        private final AtomicBoolean stopSignal = new AtomicBoolean();
+        private final Search[] workers;
+        private final ExecutorService helpers;
+
+        LazySmp(TranspositionTable table, int threads) {
+            if (threads < 1) {
+                throw new IllegalArgumentException("Need at least one search thread, got " + threads);
+            }
+            this.table = table;
+            workers = new Search[threads];
+            for (int i = 0; i < threads; i++) {
+                workers[i] = new Search(table, stopSignal, i);
+            }
+            helpers = threads == 1 ? null : Executors.newFixedThreadPool(threads - 1, task -> {
+                Thread thread = new Thread(task, "search-helper");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        int getThreadCount() {
+            return workers.length;
+        }
+
+        /**
+         * Limits the nodes of the main thread, which calls off the helpers when it stops.
+         */
+        void setNodeLimit(long nodeLimit) {
+            workers[0].setNodeLimit(nodeLimit);
+        }
+
+        /**
+         * Reports each iteration the main thread completes, see Search.setIterationListener.
+         */
+        void setIterationListener(Consumer<SearchResult> iterationListener) {
+            workers[0].setIterationListener(iterationListener);
+        }
+
+        /**
+         * Searches the board with every thread. The main thread searches the board itself
+         * and leaves it as it was; helpers get copies. Not safe to call concurrently.
+         */
+        SearchResult search(Board board, long timeMillis, int maxDepth) {
+            return search(board, timeMillis, maxDepth, null);
+        }
+
+        /**
+         * Like search, but also gives up once cancel is set. Setting cancel and then
+         * calling stop ends the search whether or not it has started yet.
+         */
+        SearchResult search(Board board, long timeMillis, int maxDepth, AtomicBoolean cancel) {
+            long start = System.nanoTime();
+            table.newSearch();
+            stopSignal.set(false);
+            if (cancel != null && cancel.get()) {
+                stopSignal.set(true);
+            }
+            List<Future<SearchResult>> futures = new ArrayList<>();
+            for (int i = 1; i < workers.length; i++) {
+                Search worker = workers[i];
+                Board copy = new Board(board);
+                futures.add(helpers.submit(() -> worker.iterate(copy, start, timeMillis, maxDepth)));
+            }
+            SearchResult best = workers[0].iterate(board, start, timeMillis, maxDepth);
+            stopSignal.set(true);
+
+            List<SearchResult> results = new ArrayList<>();
+            results.add(best);
+            long nodes = best.getNodes();
+            for (Future<SearchResult> future : futures) {
+                SearchResult result;
+                try {
+                    result = future.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException("Search thread failed", e.getCause());
+                }
+                results.add(result);
+                nodes += result.getNodes();
+                if (result.getDepth() > best.getDepth() && result.getBestMove() != Move.NONE) {
+                    best = result;
+                }
+            }
+            return new SearchResult(best.getBestMove(), best.getScore(), best.getDepth(), nodes,
+                    System.nanoTime() - start, results);
+        }
+
+        /**
+         * Stops the running search, which then returns its last completed iteration.
+         */
+        void stop() {
+            stopSignal.set(true);
+        }
+
+        /**
+         * Lets the helper threads finish their current search and end.
+         */
+        void shutdown() {
+            if (helpers != null) {
+                helpers.shutdown();
+            }
+        }
+
+        static void run(String[] args) {
+            if (args.length < 2) {
+                System.err.println("Usage: ChessGame search <milliseconds> [threads] [fen]");
+                System.exit(2);
+            }
+            long timeMillis = Long.parseLong(args[1]);
+            int threads = args.length >= 3 ? Integer.parseInt(args[2]) : DEFAULT_THREADS;
+            String fen = args.length >= 4
+                    ? String.join(" ", java.util.Arrays.copyOfRange(args, 3, args.length))
+                    : Perft.START_FEN;
+            Instrumentation.awaitRegistration();
+            LazySmp smp = new LazySmp(new TranspositionTable(64), threads);
+            SearchResult result = smp.search(new Board(fen), timeMillis, Search.MAX_DEPTH);
+            List<SearchResult> threadResults = result.getThreadResults();
+            for (int i = 0; i < threadResults.size(); i++) {
+                SearchResult thread = threadResults.get(i);
+                System.out.printf("  thread %d: depth %d, %,d nodes, %,d nodes/s%n",
+                        i, thread.getDepth(), thread.getNodes(), thread.getNodesPerSecond());
+            }
+            System.out.printf("Best move: %s  Score: %d  Depth: %d  Nodes: %,d  %,d nodes/s%n",
+                    Move.toString(result.getBestMove()), result.getScore(), result.getDepth(),
+                    result.getNodes(), result.getNodesPerSecond());
+            smp.shutdown();
+        }
+    }
+
+    /**
+     * Process-wide search counters and method timers, published as the MXBean
+     * ChessGame:type=Search and as JFR events. Searches count in plain fields and add
+     * them here every 1024 nodes, so the counters cost nothing per node. Method timing
+     * calls System.nanoTime twice per call, so it is off unless switched on through the
+     * TimingEnabled attribute or -Dchessgame.timing=true; timed methods that call each
+     * other are counted in both.
+     * JFR is loaded on the registration thread only. Iteration events are built only
+     * while a recording runs, so a search never pays for starting JFR in its time budget.
+     */
+    private static final class Instrumentation {
+        static final int IS_CHECK = 0;
+        static final int IS_SQUARE_UNDER_ATTACK = 1;
+        static final int IS_VALID_MOVE = 2;
+        static final int GET_VALID_MOVES = 3;
+        static final int GENERATE_LEGAL_MOVES = 4;
+        static final String[] TIMED_METHODS = {
+            "isCheck", "isSquareUnderAttack", "isValidMove", "getValidMoves", "generateLegalMoves"
+        };
+        static final String OBJECT_NAME = "ChessGame:type=Search";
+
+        private static volatile boolean timing = Boolean.getBoolean("chessgame.timing");
+        private static final LongAdder[] calls = newAdders(TIMED_METHODS.length);
+        private static final LongAdder[] nanos = newAdders(TIMED_METHODS.length);
+
+        private static final LongAdder nodes = new LongAdder();
+        private static final LongAdder tableProbes = new LongAdder();
+        private static final LongAdder tableHits = new LongAdder();
+        private static final LongAdder interiorNodes = new LongAdder();
+        private static final LongAdder cutoffs = new LongAdder();
+        private static final LongAdder firstMoveCutoffs = new LongAdder();
+        // From the last iteration a main search thread completed.
+        private static volatile int depthReached;
+        private static volatile double branchingFactor;
+        private static boolean registered;
+        private static final CountDownLatch registration = new CountDownLatch(1);
+        // Whether any JFR recording is running, kept up to date by a FlightRecorderListener.
+        private static volatile boolean recording;
+
+        private Instrumentation() {
+        }
+
+        private static LongAdder[] newAdders(int count) {
+            LongAdder[] adders = new LongAdder[count];
+            for (int i = 0; i < count; i++) {
+                adders[i] = new LongAdder();
+            }
+            return adders;
+        }
+
+        /**
+         * Returns the time to pass to stopTimer, or 0 when timing is off.
+         */
+        static long startTimer() {
+            return timing ? System.nanoTime() : 0L;
+        }
+
+        static void stopTimer(int method, long start) {
+            if (start != 0) {
+                calls[method].increment();
+                nanos[method].add(System.nanoTime() - start);
+            }
+        }
+
+        static void addSearchCounts(long nodeCount, long probes, long hits, long interior, long cutoffCount,
+                                    long firstMoveCutoffCount) {
+            nodes.add(nodeCount);
+            tableProbes.add(probes);
+            tableHits.add(hits);
+            interiorNodes.add(interior);
+            cutoffs.add(cutoffCount);
+            firstMoveCutoffs.add(firstMoveCutoffCount);
+        }
+
+        /**
+         * Records an iteration of a main search thread. The branching factor is the ratio
+         * of this iteration's nodes to the previous one's.
+         */
+        static void iterationCompleted(int depth, long iterationNodes, long previousIterationNodes, long searchNodes,
+                                       long searchNanos) {
+            depthReached = depth;
+            if (previousIterationNodes > 0) {
+                branchingFactor = (double) iterationNodes / previousIterationNodes;
+            }
+            if (!recording) {
+                return;
+            }
+            SearchIterationEvent event = new SearchIterationEvent();
+            if (event.isEnabled()) {
+                event.depth = depth;
+                event.nodes = searchNodes;
+                event.iterationNodes = iterationNodes;
+                event.nodesPerSecond = searchNanos == 0 ? 0 : searchNodes * 1_000_000_000L / searchNanos;
+                event.branchingFactor = previousIterationNodes > 0 ? (double) iterationNodes / previousIterationNodes : 0;
+                event.commit();
+            }
+        }
+
+        static double ratio(long count, long total) {
+            return total == 0 ? 0 : (double) count / total;
+        }
+
+        /**
+         * Registers the MXBean and the periodic JFR counter event once per process, on a
+         * daemon thread because starting the platform MBean server takes a few hundred
+         * milliseconds. A failure only costs the monitoring, so it is reported and
+         * otherwise ignored.
+         */
+        static synchronized void register() {
+            if (registered) {
+                return;
+            }
+            registered = true;
+            Thread thread = new Thread(Instrumentation::registerNow, "instrumentation");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        /**
+         * Registers, if not done yet, and waits until registration has finished. Modes
+         * that search against the clock call this before their first search, so the
+         * registration thread does not compete with it for the CPU.
+         */
+        static void awaitRegistration() {
+            register();
+            try {
+                registration.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private static void registerNow() {
+            try {
+                registerBeans();
+            } finally {
+                registration.countDown();
+            }
+        }
+
+        private static void registerBeans() {
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(new SearchMonitor(), new ObjectName(OBJECT_NAME));
+            } catch (JMException e) {
+                System.err.println("Could not register " + OBJECT_NAME + ": " + e.getMessage());
+            }
+            jdk.jfr.FlightRecorder.addListener(new jdk.jfr.FlightRecorderListener() {
+                @Override
+                public void recorderInitialized(jdk.jfr.FlightRecorder recorder) {
+                    recordingStateChanged(null);
+                }
+
+                @Override
+                public void recordingStateChanged(jdk.jfr.Recording changed) {
+                    recording = jdk.jfr.FlightRecorder.getFlightRecorder().getRecordings().stream()
+                            .anyMatch(r -> r.getState() == jdk.jfr.RecordingState.RUNNING);
+                }
+            });
+            jdk.jfr.FlightRecorder.addPeriodicEvent(SearchCountersEvent.class, () -> {
+                SearchCountersEvent event = new SearchCountersEvent();
+                event.nodes = nodes.sum();
+                event.tableHitRate = ratio(tableHits.sum(), tableProbes.sum());
+                event.cutoffRate = ratio(cutoffs.sum(), interiorNodes.sum());
+                event.firstMoveCutoffRate = ratio(firstMoveCutoffs.sum(), cutoffs.sum());
+                event.depthReached = depthReached;
+                event.branchingFactor = branchingFactor;
+                event.isCheckNanos = nanos[IS_CHECK].sum();
+                event.isSquareUnderAttackNanos = nanos[IS_SQUARE_UNDER_ATTACK].sum();
+                event.isValidMoveNanos = nanos[IS_VALID_MOVE].sum();
+                event.getValidMovesNanos = nanos[GET_VALID_MOVES].sum();
+                event.generateLegalMovesNanos = nanos[GENERATE_LEGAL_MOVES].sum();
+                event.commit();
+            });
+        }
+    }
+
+    /**
+     * The management interface of Instrumentation, for JConsole, VisualVM or any JMX
+     * client. It is public because JMX only introspects public interfaces.
+     */
+    public interface SearchMonitorMXBean {
+        long getNodesSearched();
+
+        /**
+         * Nodes per second over the last second or more, across all search threads.
+         */
+        long getNodesPerSecond();
+
+        /**
+         * The share of transposition table probes that found the position.
+         */
+        double getTableHitRate();
+
+        /**
+         * The share of searched interior nodes that ended in a beta cutoff.
+         */
+        double getCutoffRate();
+
+        /**
+         * The share of beta cutoffs made by the first move searched.
+         */
+        double getFirstMoveCutoffRate();
+
+        double getBranchingFactor();
+
+        int getDepthReached();
+
+        boolean isTimingEnabled();
+
+        void setTimingEnabled(boolean enabled);
+
+        /**
+         * Calls to each timed method while timing was on.
+         */
+        Map<String, Long> getMethodCalls();
+
+        /**
+         * Nanoseconds spent in each timed method while timing was on.
+         */
+        Map<String, Long> getMethodNanos();
+
+        void resetCounters();
+    }
+
+    private static final class SearchMonitor implements SearchMonitorMXBean {
+        private long sampleNanos = System.nanoTime();
+        private long sampleNodes;
+        private long nodesPerSecond;
+
+        @Override
+        public long getNodesSearched() {
+            return Instrumentation.nodes.sum();
+        }
+
+        @Override
+        public synchronized long getNodesPerSecond() {
+            long now = System.nanoTime();
+            if (now - sampleNanos >= 1_000_000_000L) {
+                long total = Instrumentation.nodes.sum();
+                nodesPerSecond = (total - sampleNodes) * 1_000_000_000L / (now - sampleNanos);
+                sampleNanos = now;
+                sampleNodes = total;
+            }
+            return nodesPerSecond;
+        }
+
+        @Override
+        public double getTableHitRate() {
+            return Instrumentation.ratio(Instrumentation.tableHits.sum(), Instrumentation.tableProbes.sum());
+        }
+
+        @Override
+        public double getCutoffRate() {
+            return Instrumentation.ratio(Instrumentation.cutoffs.sum(), Instrumentation.interiorNodes.sum());
+        }
+
+        @Override
+        public double getFirstMoveCutoffRate() {
+            return Instrumentation.ratio(Instrumentation.firstMoveCutoffs.sum(), Instrumentation.cutoffs.sum());
+        }
+
+        @Override
+        public double getBranchingFactor() {
+            return Instrumentation.branchingFactor;
+        }
+
+        @Override
+        public int getDepthReached() {
+            return Instrumentation.depthReached;
+        }
+
+        @Override
+        public boolean isTimingEnabled() {
+            return Instrumentation.timing;
+        }
+
+        @Override
+        public void setTimingEnabled(boolean enabled) {
+            Instrumentation.timing = enabled;
+        }
+
+        @Override
+        public Map<String, Long> getMethodCalls() {
+            return sums(Instrumentation.calls);
+        }
+
+        @Override
+        public Map<String, Long> getMethodNanos() {
+            return sums(Instrumentation.nanos);
+        }
+
+        private static Map<String, Long> sums(LongAdder[] adders) {
+            Map<String, Long> sums = new LinkedHashMap<>();
+            for (int i = 0; i < adders.length; i++) {
+                sums.put(Instrumentation.TIMED_METHODS[i], adders[i].sum());
+            }
+            return sums;
+        }
+
+        @Override
+        public synchronized void resetCounters() {
+            for (LongAdder adder : new LongAdder[] {Instrumentation.nodes, Instrumentation.tableProbes,
+                    Instrumentation.tableHits, Instrumentation.interiorNodes, Instrumentation.cutoffs,
+                    Instrumentation.firstMoveCutoffs}) {
+                adder.reset();
+            }
+            for (int i = 0; i < Instrumentation.TIMED_METHODS.length; i++) {
+                Instrumentation.calls[i].reset();
+                Instrumentation.nanos[i].reset();
+            }
+            sampleNanos = System.nanoTime();
+            sampleNodes = 0;
+            nodesPerSecond = 0;
+        }
+    }
+
+    /**
+     * JFR event for each iteration a main search thread completes.
+     */
+    @jdk.jfr.Name("chessgame.SearchIteration")
+    @jdk.jfr.Label("Search Iteration")
+    @jdk.jfr.Category("ChessGame")
+    private static final class SearchIterationEvent extends jdk.jfr.Event {
+        @jdk.jfr.Label("Depth")
+        int depth;
+        @jdk.jfr.Label("Nodes")
+        long nodes;
+        @jdk.jfr.Label("Iteration Nodes")
+        long iterationNodes;
+        @jdk.jfr.Label("Nodes per Second")
+        long nodesPerSecond;
+        @jdk.jfr.Label("Branching Factor")
+        double branchingFactor;
+    }
+
+    /**
+     * JFR event sampling the Instrumentation totals, once a second by default.
+     */
+    @jdk.jfr.Name("chessgame.SearchCounters")
+    @jdk.jfr.Label("Search Counters")
+    @jdk.jfr.Category("ChessGame")
+    @jdk.jfr.Period("1 s")
+    private static final class SearchCountersEvent extends jdk.jfr.Event {
+        @jdk.jfr.Label("Nodes")
+        long nodes;
+        @jdk.jfr.Label("Table Hit Rate")
+        double tableHitRate;
+        @jdk.jfr.Label("Cutoff Rate")
+        double cutoffRate;
+        @jdk.jfr.Label("First Move Cutoff Rate")
+        double firstMoveCutoffRate;
+        @jdk.jfr.Label("Depth Reached")
+        int depthReached;
+        @jdk.jfr.Label("Branching Factor")
+        double branchingFactor;
+        @jdk.jfr.Label("isCheck Time")
+        @jdk.jfr.Timespan
+        long isCheckNanos;
+        @jdk.jfr.Label("isSquareUnderAttack Time")
+        @jdk.jfr.Timespan
+        long isSquareUnderAttackNanos;
+        @jdk.jfr.Label("isValidMove Time")
+        @jdk.jfr.Timespan
+        long isValidMoveNanos;
+        @jdk.jfr.Label("getValidMoves Time")
+        @jdk.jfr.Timespan
+        long getValidMovesNanos;
+        @jdk.jfr.Label("generateLegalMoves Time")
+        @jdk.jfr.Timespan
+        long generateLegalMovesNanos;
+    }
+
+    /**
+     * Proves or refutes mate in N with proof-number search. The tree is kept in memory
+     * and grown one leaf at a time: a node's proof number is how many leaves at least
+     * must still turn out to be mates to prove it, its disproof number how many must
+     * turn out not to be, and each step expands the most-proving leaf, reached by
+     * following the smallest proof number where the attacker moves and the smallest
+     * disproof number where the defender does. Moves are made and taken back on one
+     * board while walking the tree. The attacker is the side to move at the root, and
+     * a line fails once the attacker has used N moves without mating. The node budget
+     * bounds memory and time; the cancel flag and progress callback let the UI stay
+     * responsive on deep puzzles.
+     * Usage: mate <moves> [nodes=<budget>] <fen>
+     */
+    private static final class MateSolver {
+        static final int DEFAULT_NODE_BUDGET = 2_000_000;
+        static final int PROGRESS_INTERVAL = 50_000;
+        // Half the int range, so adding two numbers never overflows.
+        static final int INFINITY = Integer.MAX_VALUE / 2;
+
+        private final int nodeBudget;
+        private final AtomicBoolean cancel;
+        private final Consumer<Progress> progress;
+        private final int[] moves = new int[Move.MAX_MOVES];
+        private final int[] replies = new int[Move.MAX_MOVES];
+        private long nodes;
+
+        MateSolver(int nodeBudget, AtomicBoolean cancel, Consumer<Progress> progress) {
+            this.nodeBudget = nodeBudget;
+            this.cancel = cancel;
+            this.progress = progress;
+        }
+
+        /**
+         * A position in the tree. Attacker nodes are proved by one proved child and
+         * defender nodes by all of them; movesLeft counts the attacker moves still
+         * allowed.
+         */
+        private static final class Node {
+            final int move;
+            final Node parent;
+            final boolean attacker;
+            final int movesLeft;
+            Node[] children;
+            int proof = 1;
+            int disproof = 1;
+
+            Node(int move, Node parent, boolean attacker, int movesLeft) {
+                this.move = move;
+                this.parent = parent;
+                this.attacker = attacker;
+                this.movesLeft = movesLeft;
+            }
+        }
+
+        /**
+         * Where a running search stands.
+         */
+        static final class Progress {
+            final long nodes;
+            final int proof;
+            final int disproof;
+            final long millis;
+
+            Progress(long nodes, int proof, int disproof, long millis) {
+                this.nodes = nodes;
+                this.proof = proof;
+                this.disproof = disproof;
+                this.millis = millis;
+            }
+
+            @Override
+            public String toString() {
+                return String.format("%,d nodes, proof %s, disproof %s, %.1fs", nodes, number(proof), number(disproof),
+                        millis / 1000.0);
+            }
+        }
+
+        private static String number(int value) {
+            return value >= INFINITY ? "inf" : String.valueOf(value);
+        }
+
+        /**
+         * How a search ended. A mate comes with its length, which may be shorter than
+         * asked for, and the line in SAN against the defender's longest resistance.
+         * Neither mate nor refuted means the search stopped first.
+         */
+        static final class Result {
+            final int moves;
+            final boolean mate;
+            final boolean refuted;
+            final int mateLength;
+            final String line;
+            final long nodes;
+            final long millis;
+
+            Result(int moves, boolean mate, boolean refuted, int mateLength, String line, long nodes, long millis) {
+                this.moves = moves;
+                this.mate = mate;
+                this.refuted = refuted;
+                this.mateLength = mateLength;
+                this.line = line;
+                this.nodes = nodes;
+                this.millis = millis;
+            }
+
+            @Override
+            public String toString() {
+                String outcome = mate ? "Mate in " + mateLength + ": " + line
+                        : refuted ? "No mate in " + moves : "Mate in " + moves + " unresolved";
+                return String.format("%s  (%,d nodes, %.2fs)", outcome, nodes, millis / 1000.0);
+            }
+        }
+
+        /**
+         * Searches for a mate in the given number of moves by the side to move. The
+         * board is copied, never changed. Stops unsolved when the node budget runs out
+         * or the cancel flag is set.
+         */
+        Result solve(Board position, int mateMoves) {
+            long start = System.nanoTime();
+            Board board = new Board(position);
+            Node root = new Node(Move.NONE, null, true, mateMoves);
+            nodes = 1;
+            if (mateMoves <= 0 || board.generateLegalMoves(moves) == 0) {
+                root.proof = INFINITY;
+                root.disproof = 0;
+            }
+            long nextProgress = PROGRESS_INTERVAL;
+            while (root.proof != 0 && root.disproof != 0 && nodes < nodeBudget && !cancel.get()) {
+                Node node = root;
+                while (node.children != null) {
+                    node = mostProvingChild(node);
+                    board.makeMove(node.move);
+                }
+                expand(node, board);
+                // Back the new numbers up to the root, taking the moves back on the way.
+                for (; node != root; node = node.parent) {
+                    update(node);
+                    board.unmakeMove();
+                }
+                update(root);
+                if (nodes >= nextProgress && progress != null) {
+                    nextProgress = nodes + PROGRESS_INTERVAL;
+                    progress.accept(new Progress(nodes, root.proof, root.disproof,
+                            (System.nanoTime() - start) / 1_000_000L));
+                }
+            }
+
+            long millis = (System.nanoTime() - start) / 1_000_000L;
+            if (root.proof != 0) {
+                return new Result(mateMoves, false, root.disproof == 0, 0, "", nodes, millis);
+            }
+            // Follow the quickest mate, against the defence that puts it off longest.
+            StringBuilder line = new StringBuilder();
+            for (Node node = root; node.children != null; ) {
+                Node next = null;
+                for (Node child : node.children) {
+                    if (child.proof == 0 && (next == null || (node.attacker
+                            ? mateLength(child) < mateLength(next) : mateLength(child) > mateLength(next)))) {
+                        next = child;
+                    }
+                }
+                if (board.getSideToMove() == 0 || line.length() == 0) {
+                    line.append(board.getFullmoveNumber()).append(board.getSideToMove() == 0 ? ". " : "... ");
+                }
+                line.append(board.toSan(next.move)).append(' ');
+                board.makeMove(next.move);
+                node = next;
+            }
+            return new Result(mateMoves, true, false, mateLength(root), line.toString().trim(), nodes, millis);
+        }
+
+        private static Node mostProvingChild(Node node) {
+            Node best = node.children[0];
+            for (Node child : node.children) {
+                if (node.attacker ? child.proof < best.proof : child.disproof < best.disproof) {
+                    best = child;
+                }
+            }
+            return best;
+        }
+
+        /**
+         * Adds the node's children, settling the ones that end the line on the spot.
+         * The others start from their move counts: an attacker with many moves is hard
+         * to disprove and a defender with many replies is hard to prove.
+         */
+        private void expand(Node node, Board board) {
+            int count = board.generateLegalMoves(moves);
+            Node[] children = new Node[count];
+            for (int i = 0; i < count; i++) {
+                Node child = new Node(moves[i], node, !node.attacker,
+                        node.attacker ? node.movesLeft - 1 : node.movesLeft);
+                board.makeMove(moves[i]);
+                int side = board.getSideToMove();
+                if (child.movesLeft == 0) {
+                    // The attacker's last move: only mate counts, and the king-escape test is cheap.
+                    boolean mate = board.isCheckmate(side);
+                    child.proof = mate ? 0 : INFINITY;
+                    child.disproof = mate ? INFINITY : 0;
+                } else {
+                    int replyCount = board.generateLegalMoves(replies);
+                    if (replyCount == 0) {
+                        // Mate or stalemate; either way the attacker cannot win from here.
+                        boolean mate = !child.attacker && board.isCheck(side);
+                        child.proof = mate ? 0 : INFINITY;
+                        child.disproof = mate ? INFINITY : 0;
+                    } else if (child.attacker) {
+                        child.disproof = replyCount;
+                    } else {
+                        child.proof = replyCount;
+                    }
+                }
+                board.unmakeMove();
+                children[i] = child;
+            }
+            nodes += count;
+            node.children = children;
+        }
+
+        /**
+         * Recomputes the node's numbers from its children. A disproved subtree is
+         * dropped, since only proofs are needed afterwards.
+         */
+        private static void update(Node node) {
+            if (node.children == null) {
+                return;
+            }
+            int min = INFINITY;
+            int sum = 0;
+            for (Node child : node.children) {
+                min = Math.min(min, node.attacker ? child.proof : child.disproof);
+                sum = Math.min(INFINITY, sum + (node.attacker ? child.disproof : child.proof));
+            }
+            node.proof = node.attacker ? min : sum;
+            node.disproof = node.attacker ? sum : min;
+            if (node.disproof == 0) {
+                node.children = null;
+            }
+        }
+
+        /**
+         * Returns how many attacker moves the proved node needs to mate: the fastest
+         * proved move for the attacker, the slowest reply for the defender.
+         */
+        private static int mateLength(Node node) {
+            if (node.children == null) {
+                return 0;
+            }
+            int length = node.attacker ? INFINITY : 0;
+            for (Node child : node.children) {
+                if (child.proof == 0) {
+                    length = node.attacker ? Math.min(length, mateLength(child)) : Math.max(length, mateLength(child));
+                }
+            }
+            return node.attacker ? length + 1 : length;
+        }
+
+        static void run(String[] args) {
+            int budget = DEFAULT_NODE_BUDGET;
+            int fenStart = 2;
+            if (args.length > 2 && args[2].startsWith("nodes=")) {
+                budget = Integer.parseInt(args[2].substring("nodes=".length()));
+                fenStart = 3;
+            }
+            if (args.length <= fenStart) {
+                System.err.println("Usage: ChessGame mate <moves> [nodes=<budget>] <fen>");
+                System.exit(2);
+            }
+            try {
+                int mateMoves = Integer.parseInt(args[1]);
+                Board board = new Board(String.join(" ", java.util.Arrays.copyOfRange(args, fenStart, args.length)));
+                MateSolver solver = new MateSolver(budget, new AtomicBoolean(), p -> System.out.println("info " + p));
+                System.out.println(solver.solve(board, mateMoves));
+            } catch (IllegalArgumentException e) {
+                System.err.println(e.getMessage());
+                System.exit(1);
+            }
+        }
+    }
+
+    /**
+     * An opening book in the Polyglot .bin format: 16-byte big-endian entries of key,
+     * move, weight and learn data, sorted by key. The file is memory-mapped and searched
+     * in place, so opening a book costs no heap and a probe reads a few pages.
+     * Usage: book <file> [fen].
+     */
+    private static final class PolyglotBook {
+        static final String DEFAULT_FILE = "book.bin";
+        private static final int ENTRY_SIZE = 16;
+
+        // The Polyglot keys: 768 for pieces (kind * 64 + square, where black pawn is kind 0,
+        // white pawn 1 and so on up to white king 11), 4 castling, 8 en passant, 1 turn.
+        private static final long[] RANDOM64 = {
+            0x9D39247E33776D41L, 0x2AF7398005AAA5C7L, 0x44DB015024623547L, 0x9C15F73E62A76AE2L,
+            0x75834465489C0C89L, 0x3290AC3A203001BFL, 0x0FBBAD1F61042279L, 0xE83A908FF2FB60CAL,
+            0x0D7E765D58755C10L, 0x1A083822CEAFE02DL, 0x9605D5F0E25EC3B0L, 0xD021FF5CD13A2ED5L,
+            0x40BDF15D4A672E32L, 0x011355146FD56395L, 0x5DB4832046F3D9E5L, 0x239F8B2D7FF719CCL,
+            0x05D1A1AE85B49AA1L, 0x679F848F6E8FC971L, 0x7449BBFF801FED0BL, 0x7D11CDB1C3B7ADF0L,
+            0x82C7709E781EB7CCL, 0xF3218F1C9510786CL, 0x331478F3AF51BBE6L, 0x4BB38DE5E7219443L,
+            0xAA649C6EBCFD50FCL, 0x8DBD98A352AFD40BL, 0x87D2074B81D79217L, 0x19F3C751D3E92AE1L,
+            0xB4AB30F062B19ABFL, 0x7B0500AC42047AC4L, 0xC9452CA81A09D85DL, 0x24AA6C514DA27500L,
+            0x4C9F34427501B447L, 0x14A68FD73C910841L, 0xA71B9B83461CBD93L, 0x03488B95B0F1850FL,
+            0x637B2B34FF93C040L, 0x09D1BC9A3DD90A94L, 0x3575668334A1DD3BL, 0x735E2B97A4C45A23L,
+            0x18727070F1BD400BL, 0x1FCBACD259BF02E7L, 0xD310A7C2CE9B6555L, 0xBF983FE0FE5D8244L,
+            0x9F74D14F7454A824L, 0x51EBDC4AB9BA3035L, 0x5C82C505DB9AB0FAL, 0xFCF7FE8A3430B241L,
+            0x3253A729B9BA3DDEL, 0x8C74C368081B3075L, 0xB9BC6C87167C33E7L, 0x7EF48F2B83024E20L,
+            0x11D505D4C351BD7FL, 0x6568FCA92C76A243L, 0x4DE0B0F40F32A7B8L, 0x96D693460CC37E5DL,
+            0x42E240CB63689F2FL, 0x6D2BDCDAE2919661L, 0x42880B0236E4D951L, 0x5F0F4A5898171BB6L,
+            0x39F890F579F92F88L, 0x93C5B5F47356388BL, 0x63DC359D8D231B78L, 0xEC16CA8AEA98AD76L,
+            0x5355F900C2A82DC7L, 0x07FB9F855A997142L, 0x5093417AA8A7ED5EL, 0x7BCBC38DA25A7F3CL,
+            0x19FC8A768CF4B6D4L, 0x637A7780DECFC0D9L, 0x8249A47AEE0E41F7L, 0x79AD695501E7D1E8L,
+            0x14ACBAF4777D5776L, 0xF145B6BECCDEA195L, 0xDABF2AC8201752FCL, 0x24C3C94DF9C8D3F6L,
+            0xBB6E2924F03912EAL, 0x0CE26C0B95C980D9L, 0xA49CD132BFBF7CC4L, 0xE99D662AF4243939L,
+            0x27E6AD7891165C3FL, 0x8535F040B9744FF1L, 0x54B3F4FA5F40D873L, 0x72B12C32127FED2BL,
+            0xEE954D3C7B411F47L, 0x9A85AC909A24EAA1L, 0x70AC4CD9F04F21F5L, 0xF9B89D3E99A075C2L,
+            0x87B3E2B2B5C907B1L, 0xA366E5B8C54F48B8L, 0xAE4A9346CC3F7CF2L, 0x1920C04D47267BBDL,
+            0x87BF02C6B49E2AE9L, 0x092237AC237F3859L, 0xFF07F64EF8ED14D0L, 0x8DE8DCA9F03CC54EL,
+            0x9C1633264DB49C89L, 0xB3F22C3D0B0B38EDL, 0x390E5FB44D01144BL, 0x5BFEA5B4712768E9L,
+            0x1E1032911FA78984L, 0x9A74ACB964E78CB3L, 0x4F80F7A035DAFB04L, 0x6304D09A0B3738C4L,
+            0x2171E64683023A08L, 0x5B9B63EB9CEFF80CL, 0x506AACF489889342L, 0x1881AFC9A3A701D6L,
+            0x6503080440750644L, 0xDFD395339CDBF4A7L, 0xEF927DBCF00C20F2L, 0x7B32F7D1E03680ECL,
+            0xB9FD7620E7316243L, 0x05A7E8A57DB91B77L, 0xB5889C6E15630A75L, 0x4A750A09CE9573F7L,
+            0xCF464CEC899A2F8AL, 0xF538639CE705B824L, 0x3C79A0FF5580EF7FL, 0xEDE6C87F8477609DL,
+            0x799E81F05BC93F31L, 0x86536B8CF3428A8CL, 0x97D7374C60087B73L, 0xA246637CFF328532L,
+            0x043FCAE60CC0EBA0L, 0x920E449535DD359EL, 0x70EB093B15B290CCL, 0x73A1921916591CBDL,
+            0x56436C9FE1A1AA8DL, 0xEFAC4B70633B8F81L, 0xBB215798D45DF7AFL, 0x45F20042F24F1768L,
+            0x930F80F4E8EB7462L, 0xFF6712FFCFD75EA1L, 0xAE623FD67468AA70L, 0xDD2C5BC84BC8D8FCL,
+            0x7EED120D54CF2DD9L, 0x22FE545401165F1CL, 0xC91800E98FB99929L, 0x808BD68E6AC10365L,
+            0xDEC468145B7605F6L, 0x1BEDE3A3AEF53302L, 0x43539603D6C55602L, 0xAA969B5C691CCB7AL,
+            0xA87832D392EFEE56L, 0x65942C7B3C7E11AEL, 0xDED2D633CAD004F6L, 0x21F08570F420E565L,
+            0xB415938D7DA94E3CL, 0x91B859E59ECB6350L, 0x10CFF333E0ED804AL, 0x28AED140BE0BB7DDL,
+            0xC5CC1D89724FA456L, 0x5648F680F11A2741L, 0x2D255069F0B7DAB3L, 0x9BC5A38EF729ABD4L,
+            0xEF2F054308F6A2BCL, 0xAF2042F5CC5C2858L, 0x480412BAB7F5BE2AL, 0xAEF3AF4A563DFE43L,
+            0x19AFE59AE451497FL, 0x52593803DFF1E840L, 0xF4F076E65F2CE6F0L, 0x11379625747D5AF3L,
+            0xBCE5D2248682C115L, 0x9DA4243DE836994FL, 0x066F70B33FE09017L, 0x4DC4DE189B671A1CL,
+            0x51039AB7712457C3L, 0xC07A3F80C31FB4B4L, 0xB46EE9C5E64A6E7CL, 0xB3819A42ABE61C87L,
+            0x21A007933A522A20L, 0x2DF16F761598AA4FL, 0x763C4A1371B368FDL, 0xF793C46702E086A0L,
+            0xD7288E012AEB8D31L, 0xDE336A2A4BC1C44BL, 0x0BF692B38D079F23L, 0x2C604A7A177326B3L,
+            0x4850E73E03EB6064L, 0xCFC447F1E53C8E1BL, 0xB05CA3F564268D99L, 0x9AE182C8BC9474E8L,
+            0xA4FC4BD4FC5558CAL, 0xE755178D58FC4E76L, 0x69B97DB1A4C03DFEL, 0xF9B5B7C4ACC67C96L,
+            0xFC6A82D64B8655FBL, 0x9C684CB6C4D24417L, 0x8EC97D2917456ED0L, 0x6703DF9D2924E97EL,
+            0xC547F57E42A7444EL, 0x78E37644E7CAD29EL, 0xFE9A44E9362F05FAL, 0x08BD35CC38336615L,
+            0x9315E5EB3A129ACEL, 0x94061B871E04DF75L, 0xDF1D9F9D784BA010L, 0x3BBA57B68871B59DL,
+            0xD2B7ADEEDED1F73FL, 0xF7A255D83BC373F8L, 0xD7F4F2448C0CEB81L, 0xD95BE88CD210FFA7L,
+            0x336F52F8FF4728E7L, 0xA74049DAC312AC71L, 0xA2F61BB6E437FDB5L, 0x4F2A5CB07F6A35B3L,
+            0x87D380BDA5BF7859L, 0x16B9F7E06C453A21L, 0x7BA2484C8A0FD54EL, 0xF3A678CAD9A2E38CL,
+            0x39B0BF7DDE437BA2L, 0xFCAF55C1BF8A4424L, 0x18FCF680573FA594L, 0x4C0563B89F495AC3L,
+            0x40E087931A00930DL, 0x8CFFA9412EB642C1L, 0x68CA39053261169FL, 0x7A1EE967D27579E2L,
+            0x9D1D60E5076F5B6FL, 0x3810E399B6F65BA2L, 0x32095B6D4AB5F9B1L, 0x35CAB62109DD038AL,
+            0xA90B24499FCFAFB1L, 0x77A225A07CC2C6BDL, 0x513E5E634C70E331L, 0x4361C0CA3F692F12L,
+            0xD941ACA44B20A45BL, 0x528F7C8602C5807BL, 0x52AB92BEB9613989L, 0x9D1DFA2EFC557F73L,
+            0x722FF175F572C348L, 0x1D1260A51107FE97L, 0x7A249A57EC0C9BA2L, 0x04208FE9E8F7F2D6L,
+            0x5A110C6058B920A0L, 0x0CD9A497658A5698L, 0x56FD23C8F9715A4CL, 0x284C847B9D887AAEL,
+            0x04FEABFBBDB619CBL, 0x742E1E651C60BA83L, 0x9A9632E65904AD3CL, 0x881B82A13B51B9E2L,
+            0x506E6744CD974924L, 0xB0183DB56FFC6A79L, 0x0ED9B915C66ED37EL, 0x5E11E86D5873D484L,
+            0xF678647E3519AC6EL, 0x1B85D488D0F20CC5L, 0xDAB9FE6525D89021L, 0x0D151D86ADB73615L,
+            0xA865A54EDCC0F019L, 0x93C42566AEF98FFBL, 0x99E7AFEABE000731L, 0x48CBFF086DDF285AL,
+            0x7F9B6AF1EBF78BAFL, 0x58627E1A149BBA21L, 0x2CD16E2ABD791E33L, 0xD363EFF5F0977996L,
+            0x0CE2A38C344A6EEDL, 0x1A804AADB9CFA741L, 0x907F30421D78C5DEL, 0x501F65EDB3034D07L,
+            0x37624AE5A48FA6E9L, 0x957BAF61700CFF4EL, 0x3A6C27934E31188AL, 0xD49503536ABCA345L,
+            0x088E049589C432E0L, 0xF943AEE7FEBF21B8L, 0x6C3B8E3E336139D3L, 0x364F6FFA464EE52EL,
+            0xD60F6DCEDC314222L, 0x56963B0DCA418FC0L, 0x16F50EDF91E513AFL, 0xEF1955914B609F93L,
+            0x565601C0364E3228L, 0xECB53939887E8175L, 0xBAC7A9A18531294BL, 0xB344C470397BBA52L,
+            0x65D34954DAF3CEBDL, 0xB4B81B3FA97511E2L, 0xB422061193D6F6A7L, 0x071582401C38434DL,
+            0x7A13F18BBEDC4FF5L, 0xBC4097B116C524D2L, 0x59B97885E2F2EA28L, 0x99170A5DC3115544L,
+            0x6F423357E7C6A9F9L, 0x325928EE6E6F8794L, 0xD0E4366228B03343L, 0x565C31F7DE89EA27L,
+            0x30F5611484119414L, 0xD873DB391292ED4FL, 0x7BD94E1D8E17DEBCL, 0xC7D9F16864A76E94L,
+            0x947AE053EE56E63CL, 0xC8C93882F9475F5FL, 0x3A9BF55BA91F81CAL, 0xD9A11FBB3D9808E4L,
+            0x0FD22063EDC29FCAL, 0xB3F256D8ACA0B0B9L, 0xB03031A8B4516E84L, 0x35DD37D5871448AFL,
+            0xE9F6082B05542E4EL, 0xEBFAFA33D7254B59L, 0x9255ABB50D532280L, 0xB9AB4CE57F2D34F3L,
+            0x693501D628297551L, 0xC62C58F97DD949BFL, 0xCD454F8F19C5126AL, 0xBBE83F4ECC2BDECBL,
+            0xDC842B7E2819E230L, 0xBA89142E007503B8L, 0xA3BC941D0A5061CBL, 0xE9F6760E32CD8021L,
+            0x09C7E552BC76492FL, 0x852F54934DA55CC9L, 0x8107FCCF064FCF56L, 0x098954D51FFF6580L,
+            0x23B70EDB1955C4BFL, 0xC330DE426430F69DL, 0x4715ED43E8A45C0AL, 0xA8D7E4DAB780A08DL,
+            0x0572B974F03CE0BBL, 0xB57D2E985E1419C7L, 0xE8D9ECBE2CF3D73FL, 0x2FE4B17170E59750L,
+            0x11317BA87905E790L, 0x7FBF21EC8A1F45ECL, 0x1725CABFCB045B00L, 0x964E915CD5E2B207L,
+            0x3E2B8BCBF016D66DL, 0xBE7444E39328A0ACL, 0xF85B2B4FBCDE44B7L, 0x49353FEA39BA63B1L,
+            0x1DD01AAFCD53486AL, 0x1FCA8A92FD719F85L, 0xFC7C95D827357AFAL, 0x18A6A990C8B35EBDL,
+            0xCCCB7005C6B9C28DL, 0x3BDBB92C43B17F26L, 0xAA70B5B4F89695A2L, 0xE94C39A54A98307FL,
+            0xB7A0B174CFF6F36EL, 0xD4DBA84729AF48ADL, 0x2E18BC1AD9704A68L, 0x2DE0966DAF2F8B1CL,
+            0xB9C11D5B1E43A07EL, 0x64972D68DEE33360L, 0x94628D38D0C20584L, 0xDBC0D2B6AB90A559L,
+            0xD2733C4335C6A72FL, 0x7E75D99D94A70F4DL, 0x6CED1983376FA72BL, 0x97FCAACBF030BC24L,
+            0x7B77497B32503B12L, 0x8547EDDFB81CCB94L, 0x79999CDFF70902CBL, 0xCFFE1939438E9B24L,
+            0x829626E3892D95D7L, 0x92FAE24291F2B3F1L, 0x63E22C147B9C3403L, 0xC678B6D860284A1CL,
+            0x5873888850659AE7L, 0x0981DCD296A8736DL, 0x9F65789A6509A440L, 0x9FF38FED72E9052FL,
+            0xE479EE5B9930578CL, 0xE7F28ECD2D49EECDL, 0x56C074A581EA17FEL, 0x5544F7D774B14AEFL,
+            0x7B3F0195FC6F290FL, 0x12153635B2C0CF57L, 0x7F5126DBBA5E0CA7L, 0x7A76956C3EAFB413L,
+            0x3D5774A11D31AB39L, 0x8A1B083821F40CB4L, 0x7B4A38E32537DF62L, 0x950113646D1D6E03L,
+            0x4DA8979A0041E8A9L, 0x3BC36E078F7515D7L, 0x5D0A12F27AD310D1L, 0x7F9D1A2E1EBE1327L,
+            0xDA3A361B1C5157B1L, 0xDCDD7D20903D0C25L, 0x36833336D068F707L, 0xCE68341F79893389L,
+            0xAB9090168DD05F34L, 0x43954B3252DC25E5L, 0xB438C2B67F98E5E9L, 0x10DCD78E3851A492L,
+            0xDBC27AB5447822BFL, 0x9B3CDB65F82CA382L, 0xB67B7896167B4C84L, 0xBFCED1B0048EAC50L,
+            0xA9119B60369FFEBDL, 0x1FFF7AC80904BF45L, 0xAC12FB171817EEE7L, 0xAF08DA9177DDA93DL,
+            0x1B0CAB936E65C744L, 0xB559EB1D04E5E932L, 0xC37B45B3F8D6F2BAL, 0xC3A9DC228CAAC9E9L,
+            0xF3B8B6675A6507FFL, 0x9FC477DE4ED681DAL, 0x67378D8ECCEF96CBL, 0x6DD856D94D259236L,
+            0xA319CE15B0B4DB31L, 0x073973751F12DD5EL, 0x8A8E849EB32781A5L, 0xE1925C71285279F5L,
+            0x74C04BF1790C0EFEL, 0x4DDA48153C94938AL, 0x9D266D6A1CC0542CL, 0x7440FB816508C4FEL,
+            0x13328503DF48229FL, 0xD6BF7BAEE43CAC40L, 0x4838D65F6EF6748FL, 0x1E152328F3318DEAL,
+            0x8F8419A348F296BFL, 0x72C8834A5957B511L, 0xD7A023A73260B45CL, 0x94EBC8ABCFB56DAEL,
+            0x9FC10D0F989993E0L, 0xDE68A2355B93CAE6L, 0xA44CFE79AE538BBEL, 0x9D1D84FCCE371425L,
+            0x51D2B1AB2DDFB636L, 0x2FD7E4B9E72CD38CL, 0x65CA5B96B7552210L, 0xDD69A0D8AB3B546DL,
+            0x604D51B25FBF70E2L, 0x73AA8A564FB7AC9EL, 0x1A8C1E992B941148L, 0xAAC40A2703D9BEA0L,
+            0x764DBEAE7FA4F3A6L, 0x1E99B96E70A9BE8BL, 0x2C5E9DEB57EF4743L, 0x3A938FEE32D29981L,
+            0x26E6DB8FFDF5ADFEL, 0x469356C504EC9F9DL, 0xC8763C5B08D1908CL, 0x3F6C6AF859D80055L,
+            0x7F7CC39420A3A545L, 0x9BFB227EBDF4C5CEL, 0x89039D79D6FC5C5CL, 0x8FE88B57305E2AB6L,
+            0xA09E8C8C35AB96DEL, 0xFA7E393983325753L, 0xD6B6D0ECC617C699L, 0xDFEA21EA9E7557E3L,
+            0xB67C1FA481680AF8L, 0xCA1E3785A9E724E5L, 0x1CFC8BED0D681639L, 0xD18D8549D140CAEAL,
+            0x4ED0FE7E9DC91335L, 0xE4DBF0634473F5D2L, 0x1761F93A44D5AEFEL, 0x53898E4C3910DA55L,
+            0x734DE8181F6EC39AL, 0x2680B122BAA28D97L, 0x298AF231C85BAFABL, 0x7983EED3740847D5L,
+            0x66C1A2A1A60CD889L, 0x9E17E49642A3E4C1L, 0xEDB454E7BADC0805L, 0x50B704CAB602C329L,
+            0x4CC317FB9CDDD023L, 0x66B4835D9EAFEA22L, 0x219B97E26FFC81BDL, 0x261E4E4C0A333A9DL,
+            0x1FE2CCA76517DB90L, 0xD7504DFA8816EDBBL, 0xB9571FA04DC089C8L, 0x1DDC0325259B27DEL,
+            0xCF3F4688801EB9AAL, 0xF4F5D05C10CAB243L, 0x38B6525C21A42B0EL, 0x36F60E2BA4FA6800L,
+            0xEB3593803173E0CEL, 0x9C4CD6257C5A3603L, 0xAF0C317D32ADAA8AL, 0x258E5A80C7204C4BL,
+            0x8B889D624D44885DL, 0xF4D14597E660F855L, 0xD4347F66EC8941C3L, 0xE699ED85B0DFB40DL,
+            0x2472F6207C2D0484L, 0xC2A1E7B5B459AEB5L, 0xAB4F6451CC1D45ECL, 0x63767572AE3D6174L,
+            0xA59E0BD101731A28L, 0x116D0016CB948F09L, 0x2CF9C8CA052F6E9FL, 0x0B090A7560A968E3L,
+            0xABEEDDB2DDE06FF1L, 0x58EFC10B06A2068DL, 0xC6E57A78FBD986E0L, 0x2EAB8CA63CE802D7L,
+            0x14A195640116F336L, 0x7C0828DD624EC390L, 0xD74BBE77E6116AC7L, 0x804456AF10F5FB53L,
+            0xEBE9EA2ADF4321C7L, 0x03219A39EE587A30L, 0x49787FEF17AF9924L, 0xA1E9300CD8520548L,
+            0x5B45E522E4B1B4EFL, 0xB49C3B3995091A36L, 0xD4490AD526F14431L, 0x12A8F216AF9418C2L,
+            0x001F837CC7350524L, 0x1877B51E57A764D5L, 0xA2853B80F17F58EEL, 0x993E1DE72D36D310L,
+            0xB3598080CE64A656L, 0x252F59CF0D9F04BBL, 0xD23C8E176D113600L, 0x1BDA0492E7E4586EL,
+            0x21E0BD5026C619BFL, 0x3B097ADAF088F94EL, 0x8D14DEDB30BE846EL, 0xF95CFFA23AF5F6F4L,
+            0x3871700761B3F743L, 0xCA672B91E9E4FA16L, 0x64C8E531BFF53B55L, 0x241260ED4AD1E87DL,
+            0x106C09B972D2E822L, 0x7FBA195410E5CA30L, 0x7884D9BC6CB569D8L, 0x0647DFEDCD894A29L,
+            0x63573FF03E224774L, 0x4FC8E9560F91B123L, 0x1DB956E450275779L, 0xB8D91274B9E9D4FBL,
+            0xA2EBEE47E2FBFCE1L, 0xD9F1F30CCD97FB09L, 0xEFED53D75FD64E6BL, 0x2E6D02C36017F67FL,
+            0xA9AA4D20DB084E9BL, 0xB64BE8D8B25396C1L, 0x70CB6AF7C2D5BCF0L, 0x98F076A4F7A2322EL,
+            0xBF84470805E69B5FL, 0x94C3251F06F90CF3L, 0x3E003E616A6591E9L, 0xB925A6CD0421AFF3L,
+            0x61BDD1307C66E300L, 0xBF8D5108E27E0D48L, 0x240AB57A8B888B20L, 0xFC87614BAF287E07L,
+            0xEF02CDD06FFDB432L, 0xA1082C0466DF6C0AL, 0x8215E577001332C8L, 0xD39BB9C3A48DB6CFL,
+            0x2738259634305C14L, 0x61CF4F94C97DF93DL, 0x1B6BACA2AE4E125BL, 0x758F450C88572E0BL,
+            0x959F587D507A8359L, 0xB063E962E045F54DL, 0x60E8ED72C0DFF5D1L, 0x7B64978555326F9FL,
+            0xFD080D236DA814BAL, 0x8C90FD9B083F4558L, 0x106F72FE81E2C590L, 0x7976033A39F7D952L,
+            0xA4EC0132764CA04BL, 0x733EA705FAE4FA77L, 0xB4D8F77BC3E56167L, 0x9E21F4F903B33FD9L,
+            0x9D765E419FB69F6DL, 0xD30C088BA61EA5EFL, 0x5D94337FBFAF7F5BL, 0x1A4E4822EB4D7A59L,
+            0x6FFE73E81B637FB3L, 0xDDF957BC36D8B9CAL, 0x64D0E29EEA8838B3L, 0x08DD9BDFD96B9F63L,
+            0x087E79E5A57D1D13L, 0xE328E230E3E2B3FBL, 0x1C2559E30F0946BEL, 0x720BF5F26F4D2EAAL,
+            0xB0774D261CC609DBL, 0x443F64EC5A371195L, 0x4112CF68649A260EL, 0xD813F2FAB7F5C5CAL,
+            0x660D3257380841EEL, 0x59AC2C7873F910A3L, 0xE846963877671A17L, 0x93B633ABFA3469F8L,
+            0xC0C0F5A60EF4CDCFL, 0xCAF21ECD4377B28CL, 0x57277707199B8175L, 0x506C11B9D90E8B1DL,
+            0xD83CC2687A19255FL, 0x4A29C6465A314CD1L, 0xED2DF21216235097L, 0xB5635C95FF7296E2L,
+            0x22AF003AB672E811L, 0x52E762596BF68235L, 0x9AEBA33AC6ECC6B0L, 0x944F6DE09134DFB6L,
+            0x6C47BEC883A7DE39L, 0x6AD047C430A12104L, 0xA5B1CFDBA0AB4067L, 0x7C45D833AFF07862L,
+            0x5092EF950A16DA0BL, 0x9338E69C052B8E7BL, 0x455A4B4CFE30E3F5L, 0x6B02E63195AD0CF8L,
+            0x6B17B224BAD6BF27L, 0xD1E0CCD25BB9C169L, 0xDE0C89A556B9AE70L, 0x50065E535A213CF6L,
+            0x9C1169FA2777B874L, 0x78EDEFD694AF1EEDL, 0x6DC93D9526A50E68L, 0xEE97F453F06791EDL,
+            0x32AB0EDB696703D3L, 0x3A6853C7E70757A7L, 0x31865CED6120F37DL, 0x67FEF95D92607890L,
+            0x1F2B1D1F15F6DC9CL, 0xB69E38A8965C6B65L, 0xAA9119FF184CCCF4L, 0xF43C732873F24C13L,
+            0xFB4A3D794A9A80D2L, 0x3550C2321FD6109CL, 0x371F77E76BB8417EL, 0x6BFA9AAE5EC05779L,
+            0xCD04F3FF001A4778L, 0xE3273522064480CAL, 0x9F91508BFFCFC14AL, 0x049A7F41061A9E60L,
+            0xFCB6BE43A9F2FE9BL, 0x08DE8A1C7797DA9BL, 0x8F9887E6078735A1L, 0xB5B4071DBFC73A66L,
+            0x230E343DFBA08D33L, 0x43ED7F5A0FAE657DL, 0x3A88A0FBBCB05C63L, 0x21874B8B4D2DBC4FL,
+            0x1BDEA12E35F6A8C9L, 0x53C065C6C8E63528L, 0xE34A1D250E7A8D6BL, 0xD6B04D3B7651DD7EL,
+            0x5E90277E7CB39E2DL, 0x2C046F22062DC67DL, 0xB10BB459132D0A26L, 0x3FA9DDFB67E2F199L,
+            0x0E09B88E1914F7AFL, 0x10E8B35AF3EEAB37L, 0x9EEDECA8E272B933L, 0xD4C718BC4AE8AE5FL,
+            0x81536D601170FC20L, 0x91B534F885818A06L, 0xEC8177F83F900978L, 0x190E714FADA5156EL,
+            0xB592BF39B0364963L, 0x89C350C893AE7DC1L, 0xAC042E70F8B383F2L, 0xB49B52E587A1EE60L,
+            0xFB152FE3FF26DA89L, 0x3E666E6F69AE2C15L, 0x3B544EBE544C19F9L, 0xE805A1E290CF2456L,
+            0x24B33C9D7ED25117L, 0xE74733427B72F0C1L, 0x0A804D18B7097475L, 0x57E3306D881EDB4FL,
+            0x4AE7D6A36EB5DBCBL, 0x2D8D5432157064C8L, 0xD1E649DE1E7F268BL, 0x8A328A1CEDFE552CL,
+            0x07A3AEC79624C7DAL, 0x84547DDC3E203C94L, 0x990A98FD5071D263L, 0x1A4FF12616EEFC89L,
+            0xF6F7FD1431714200L, 0x30C05B1BA332F41CL, 0x8D2636B81555A786L, 0x46C9FEB55D120902L,
+            0xCCEC0A73B49C9921L, 0x4E9D2827355FC492L, 0x19EBB029435DCB0FL, 0x4659D2B743848A2CL,
+            0x963EF2C96B33BE31L, 0x74F85198B05A2E7DL, 0x5A0F544DD2B1FB18L, 0x03727073C2E134B1L,
+            0xC7F6AA2DE59AEA61L, 0x352787BAA0D7C22FL, 0x9853EAB63B5E0B35L, 0xABBDCDD7ED5C0860L,
+            0xCF05DAF5AC8D77B0L, 0x49CAD48CEBF4A71EL, 0x7A4C10EC2158C4A6L, 0xD9E92AA246BF719EL,
+            0x13AE978D09FE5557L, 0x730499AF921549FFL, 0x4E4B705B92903BA4L, 0xFF577222C14F0A3AL,
+            0x55B6344CF97AAFAEL, 0xB862225B055B6960L, 0xCAC09AFBDDD2CDB4L, 0xDAF8E9829FE96B5FL,
+            0xB5FDFC5D3132C498L, 0x310CB380DB6F7503L, 0xE87FBB46217A360EL, 0x2102AE466EBB1148L,
+            0xF8549E1A3AA5E00DL, 0x07A69AFDCC42261AL, 0xC4C118BFE78FEAAEL, 0xF9F4892ED96BD438L,
+            0x1AF3DBE25D8F45DAL, 0xF5B4B0B0D2DEEEB4L, 0x962ACEEFA82E1C84L, 0x046E3ECAAF453CE9L,
+            0xF05D129681949A4CL, 0x964781CE734B3C84L, 0x9C2ED44081CE5FBDL, 0x522E23F3925E319EL,
+            0x177E00F9FC32F791L, 0x2BC60A63A6F3B3F2L, 0x222BBFAE61725606L, 0x486289DDCC3D6780L,
+            0x7DC7785B8EFDFC80L, 0x8AF38731C02BA980L, 0x1FAB64EA29A2DDF7L, 0xE4D9429322CD065AL,
+            0x9DA058C67844F20CL, 0x24C0E332B70019B0L, 0x233003B5A6CFE6ADL, 0xD586BD01C5C217F6L,
+            0x5E5637885F29BC2BL, 0x7EBA726D8C94094BL, 0x0A56A5F0BFE39272L, 0xD79476A84EE20D06L,
+            0x9E4C1269BAA4BF37L, 0x17EFEE45B0DEE640L, 0x1D95B0A5FCF90BC6L, 0x93CBE0B699C2585DL,
+            0x65FA4F227A2B6D79L, 0xD5F9E858292504D5L, 0xC2B5A03F71471A6FL, 0x59300222B4561E00L,
+            0xCE2F8642CA0712DCL, 0x7CA9723FBB2E8988L, 0x2785338347F2BA08L, 0xC61BB3A141E50E8CL,
+            0x150F361DAB9DEC26L, 0x9F6A419D382595F4L, 0x64A53DC924FE7AC9L, 0x142DE49FFF7A7C3DL,
+            0x0C335248857FA9E7L, 0x0A9C32D5EAE45305L, 0xE6C42178C4BBB92EL, 0x71F1CE2490D20B07L,
+            0xF1BCC3D275AFE51AL, 0xE728E8C83C334074L, 0x96FBF83A12884624L, 0x81A1549FD6573DA5L,
+            0x5FA7867CAF35E149L, 0x56986E2EF3ED091BL, 0x917F1DD5F8886C61L, 0xD20D8C88C8FFE65FL,
+            0x31D71DCE64B2C310L, 0xF165B587DF898190L, 0xA57E6339DD2CF3A0L, 0x1EF6E6DBB1961EC9L,
+            0x70CC73D90BC26E24L, 0xE21A6B35DF0C3AD7L, 0x003A93D8B2806962L, 0x1C99DED33CB890A1L,
+            0xCF3145DE0ADD4289L, 0xD0E4427A5514FB72L, 0x77C621CC9FB3A483L, 0x67A34DAC4356550BL,
+            0xF8D626AAAF278509L
+        };
+        private static final int CASTLING_OFFSET = 768;
+        private static final int EN_PASSANT_OFFSET = 772;
+        private static final int TURN_OFFSET = 780;
+
+        private final MappedByteBuffer entries;
+        private final int size;
+
+        PolyglotBook(Path path) throws IOException {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                long length = channel.size();
+                if (length % ENTRY_SIZE != 0 || length / ENTRY_SIZE > Integer.MAX_VALUE / ENTRY_SIZE) {
+                    throw new IOException("Not a Polyglot book: " + path);
+                }
+                // The mapping stays valid after the channel is closed.
+                entries = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+                size = (int) (length / ENTRY_SIZE);
+            }
+        }
+
+        int size() {
+            return size;
+        }
+
+        /**
+         * Computes the Polyglot key of the position. En passant only counts when a pawn of
+         * the side to move stands beside the pawn that just advanced two squares.
+         */
+        static long hash(Board board) {
+            long key = 0L;
+            for (int color = 0; color < 2; color++) {
+                for (int type = PAWN; type <= KING; type++) {
+                    int kind = type * 2 + (color == 0 ? 1 : 0);
+                    for (long b = board.getPieces(color, type); b != 0; b &= b - 1) {
+                        key ^= RANDOM64[kind * 64 + Long.numberOfTrailingZeros(b)];
+                    }
+                }
+            }
+            int rights = board.getCastlingRights();
+            for (int i = 0; i < 4; i++) {
+                if ((rights & (1 << i)) != 0) {
+                    key ^= RANDOM64[CASTLING_OFFSET + i];
+                }
+            }
+            Piece pushed = board.getEnPassantVulnerable();
+            if (pushed != null) {
+                long beside = (pushed.getCol() > 0 ? Bitboards.bit(pushed.getRow(), pushed.getCol() - 1) : 0L)
+                        | (pushed.getCol() < 7 ? Bitboards.bit(pushed.getRow(), pushed.getCol() + 1) : 0L);
+                if ((beside & board.getPieces(board.getSideToMove(), PAWN)) != 0) {
+                    key ^= RANDOM64[EN_PASSANT_OFFSET + pushed.getCol()];
+                }
+            }
+            if (board.getSideToMove() == 0) {
+                key ^= RANDOM64[TURN_OFFSET];
+            }
+            return key;
+        }
+
+        /**
+         * Fills the arrays with the legal book moves for the position and their weights,
+         * and returns how many there are.
+         */
+        int findMoves(Board board, int[] moves, int[] weights) {
+            long key = hash(board);
+            // Find the first entry with the key; keys compare as unsigned numbers.
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (Long.compareUnsigned(entries.getLong(mid * ENTRY_SIZE), key) < 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            int[] legal = new int[Move.MAX_MOVES];
+            int legalCount = board.generateLegalMoves(legal);
+            int count = 0;
+            for (int i = low; i < size && entries.getLong(i * ENTRY_SIZE) == key && count < moves.length; i++) {
+                int move = toMove(board, entries.getShort(i * ENTRY_SIZE + 8) & 0xFFFF, legal, legalCount);
+                if (move != Move.NONE) {
+                    moves[count] = move;
+                    weights[count++] = entries.getShort(i * ENTRY_SIZE + 10) & 0xFFFF;
+                }
+            }
+            return count;
+        }
+
+        /**
+         * Returns the book move with the highest weight, or Move.NONE when the position is
+         * not in the book.
+         */
+        int bestMove(Board board) {
+            int[] moves = new int[Move.MAX_MOVES];
+            int[] weights = new int[Move.MAX_MOVES];
+            int count = findMoves(board, moves, weights);
+            int best = Move.NONE;
+            int bestWeight = -1;
+            for (int i = 0; i < count; i++) {
+                if (weights[i] > bestWeight) {
+                    best = moves[i];
+                    bestWeight = weights[i];
+                }
+            }
+            return best;
+        }
+
+        /**
+         * Matches a Polyglot move against the legal moves. Polyglot writes castling as
+         * the king taking its own rook, e.g. e1h1, and numbers promotions from knight up.
+         */
+        private static int toMove(Board board, int bookMove, int[] legal, int legalCount) {
+            int to = bookMove & 63;
+            int from = (bookMove >>> 6) & 63;
+            int promotion = (bookMove >>> 12) & 7;
+            Piece piece = board.getPiece(from >>> 3, from & 7);
+            if (piece instanceof King && (from & 7) == 4 && ((to & 7) == 7 || (to & 7) == 0)
+                    && (from >>> 3) == (to >>> 3)) {
+                to = (to & 7) == 7 ? from + 2 : from - 2;
+            }
+            int promotionType = promotion == 0 ? Move.NO_PROMOTION : promotion;
+            for (int i = 0; i < legalCount; i++) {
+                int move = legal[i];
+                if (Move.from(move) == from && Move.to(move) == to && Move.promotionType(move) == promotionType) {
+                    return move;
+                }
+            }
+            return Move.NONE;
+        }
+
+        static void run(String[] args) {
+            if (args.length < 2) {
+                System.err.println("Usage: ChessGame book <file> [fen]");
+                System.exit(2);
+            }
+            String fen = args.length >= 3
+                    ? String.join(" ", java.util.Arrays.copyOfRange(args, 2, args.length))
+                    : Perft.START_FEN;
+            Board board = new Board(fen);
+            PolyglotBook book;
+            try {
+                book = new PolyglotBook(Path.of(args[1]));
+            } catch (IOException e) {
+                System.err.println("Could not open book: " + e.getMessage());
+                System.exit(1);
+                return;
+            }
+            int[] moves = new int[Move.MAX_MOVES];
+            int[] weights = new int[Move.MAX_MOVES];
+            int count = book.findMoves(board, moves, weights);
+            System.out.printf("Key: %016x  Entries: %,d%n", hash(board), book.size());
+            for (int i = 0; i < count; i++) {
+                System.out.println(Move.toString(moves[i]) + ": " + weights[i]);
+            }
+        }
+    }
+
+    /**
+     * One game from a PGN file: its tag pairs, its moves in SAN and its result.
+     */
+    private static final class PgnGame {
+        private final Map<String, String> tags;
+        private final List<String> sanMoves;
+        private final String result;
+
+        PgnGame(Map<String, String> tags, List<String> sanMoves, String result) {
+            this.tags = tags;
+            this.sanMoves = sanMoves;
+            this.result = result;
+        }
+
+        String getTag(String name) {
+            return tags.get(name);
+        }
+
+        Map<String, String> getTags() {
+            return tags;
+        }
+
+        List<String> getSanMoves() {
+            return sanMoves;
+        }
+
+        String getResult() {
+            return result;
+        }
+
+        /**
+         * Returns the position the game starts from, which is the FEN tag if there is one.
+         */
+        Board startingBoard() {
+            String fen = tags.get("FEN");
+            return fen == null ? new Board() : new Board(fen);
+        }
+
+        /**
+         * Plays the game's moves on a fresh board and returns it. Each move goes through
+         * the board's move validation, so an illegal or garbled move throws
+         * IllegalArgumentException naming the move number.
+         */
+        Board replay() {
+            Board board = startingBoard();
+            play(board);
+            return board;
+        }
+
+        /**
+         * Plays the game's moves on the board, which should be at the starting position,
+         * and returns them. Throws IllegalArgumentException like replay.
+         */
+        int[] play(Board board) {
+            int[] moves = new int[sanMoves.size()];
+            for (int i = 0; i < moves.length; i++) {
+                try {
+                    moves[i] = board.parseSan(sanMoves.get(i));
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException("Move " + (i / 2 + 1) + ": " + e.getMessage(), e);
+                }
+                board.makeMove(moves[i]);
+            }
+            return moves;
+        }
+
+        /**
+         * Returns the result the board shows: decided by mate or stalemate, else "*".
+         */
+        static String resultOf(Board board) {
+            int side = board.getSideToMove();
+            return board.isCheckmate(side) ? (side == 0 ? "0-1" : "1-0") : board.isStalemate(side) ? "1/2-1/2" : "*";
+        }
+
+        /**
+         * Writes the game played on the board as PGN, with the result the board shows.
+         */
+        static void write(Board board, Writer out) throws IOException {
+            write(board, resultOf(board), out);
+        }
+
+        /**
+         * Writes the game played on the board as PGN. The board's moves are taken back to
+         * find the starting position and replayed to write them, so the board ends up as
+         * it was.
+         */
+        static void write(Board board, String result, Writer out) throws IOException {
+            List<Integer> moves = new ArrayList<>();
+            while (board.canUndo()) {
+                moves.add(0, board.unmakeMove());
+            }
+            String startFen = board.toFen();
+            StringBuilder movetext = new StringBuilder();
+            for (int move : moves) {
+                if (board.getSideToMove() == 0 || movetext.length() == 0) {
+                    movetext.append(board.getFullmoveNumber()).append(board.getSideToMove() == 0 ? ". " : "... ");
+                }
+                movetext.append(board.toSan(move)).append(' ');
+                board.makeMove(move);
+            }
+            movetext.append(result);
+
+            out.write("[Event \"?\"]\n[Site \"?\"]\n[Date \"????.??.??\"]\n[Round \"?\"]\n"
+                    + "[White \"?\"]\n[Black \"?\"]\n[Result \"" + result + "\"]\n");
+            if (!startFen.equals(Perft.START_FEN)) {
+                out.write("[SetUp \"1\"]\n[FEN \"" + startFen + "\"]\n");
+            }
+            out.write('\n');
+            // Wrap the movetext before 80 columns.
+            int lineLength = 0;
+            for (String token : movetext.toString().split(" ")) {
+                if (lineLength > 0 && lineLength + 1 + token.length() > 79) {
+                    out.write('\n');
+                    lineLength = 0;
+                } else if (lineLength > 0) {
+                    out.write(' ');
+                    lineLength++;
+                }
+                out.write(token);
+                lineLength += token.length();
+            }
+            out.write("\n\n");
+        }
+    }
+
+    /**
+     * An append-only archive of games with every move packed into 16 bits, and a side
+     * index from position keys to the games that reached them, so finding the games
+     * through a position is a few binary searches instead of replaying the archive. The
+     * archive is memory-mapped for reading; the index is read through a channel and is
+     * never mapped, so it can be appended to or replaced while an archive is open. The
+     * index sits next to the archive with an ".idx" suffix and is brought up to date
+     * when the archive is opened: the games added since are indexed and appended as
+     * sorted runs of bounded size, and the runs are merged into one once there are
+     * MAX_RUNS of them.
+     * An archive holds at most 2 GB; appending past that fails.
+     * Archive: the magic "CGA1", then per game a u16 FEN length and the starting FEN in
+     * ASCII (empty for the standard start), a u8 result (0 unfinished, 1 White won,
+     * 2 Black won, 3 drawn), a u16 ply count and one u16 Move.key per ply.
+     * Index: the magic "CGI2" and a u32 run count, then per run the archive length it
+     * covers as a u64, a u32 entry count and 16-byte entries of Zobrist key and game
+     * offset sorted by unsigned key, one entry for each distinct position of each game
+     * the run covers. Numbers are big-endian.
+     * Usage: archive import <archive> <pgn file>..., archive find <archive> [fen],
+     * archive show <archive> <offset>.
+     */
+    private static final class GameArchive {
+        static final String DEFAULT_FILE = "games.cga";
+        static final String[] RESULTS = {"*", "1-0", "0-1", "1/2-1/2"};
+        private static final int ARCHIVE_MAGIC = 0x43474131;
+        private static final int INDEX_MAGIC = 0x43474932;
+        private static final int INDEX_HEADER_SIZE = 8;
+        private static final int RUN_HEADER_SIZE = 12;
+        private static final int ENTRY_SIZE = 16;
+        private static final int MAX_RUNS = 64;
+        // Entries per run written by an update; sorting a run takes 24 bytes an entry.
+        private static final int INDEX_BITS = 22;
+        private static final int RUN_ENTRIES = 1 << INDEX_BITS;
+        private static final long INDEX_MASK = RUN_ENTRIES - 1;
+        private static final int MAX_PLIES = 0xFFFF;
+        // The archive is mapped in one piece and addressed with ints, so append refuses
+        // to grow it past this. A game has at most one index entry per archive byte, so
+        // entry counts fit in an int too.
+        private static final long MAX_ARCHIVE_SIZE = Integer.MAX_VALUE;
+
+        private final MappedByteBuffer games;
+        private final Path indexPath;
+
+        /**
+         * Opens the archive, first bringing its index up to date.
+         */
+        GameArchive(Path path) throws IOException {
+            updateIndex(path);
+            games = map(path);
+            indexPath = indexPath(path);
+        }
+
+        static Path indexPath(Path archive) {
+            return archive.resolveSibling(archive.getFileName() + ".idx");
+        }
+
+        private static MappedByteBuffer map(Path path) throws IOException {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                if (channel.size() > MAX_ARCHIVE_SIZE) {
+                    throw new IOException(path + " is larger than the 2 GB an archive may hold");
+                }
+                // The mapping stays valid after the channel is closed.
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+        }
+
+        private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(length);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0) {
+                    throw new IOException("The index ends early");
+                }
+            }
+            return buffer;
+        }
+
+        /**
+         * The sorted runs of an index file: where each run's entries start, how many
+         * there are, and the archive length the whole index covers.
+         */
+        private static final class IndexRuns {
+            final long[] starts;
+            final int[] sizes;
+            final long covered;
+            // Where the next run goes.
+            final long end;
+
+            IndexRuns(long[] starts, int[] sizes, long covered, long end) {
+                this.starts = starts;
+                this.sizes = sizes;
+                this.covered = covered;
+                this.end = end;
+            }
+        }
+
+        /**
+         * Reads the run headers of an index, or returns null when it is not a valid
+         * index for an archive of this length.
+         */
+        private static IndexRuns readRuns(FileChannel channel, long archiveLength) throws IOException {
+            long size = channel.size();
+            if (size < INDEX_HEADER_SIZE) {
+                return null;
+            }
+            ByteBuffer header = read(channel, 0, INDEX_HEADER_SIZE);
+            int count = header.getInt(4);
+            if (header.getInt(0) != INDEX_MAGIC || count < 0 || count > MAX_RUNS) {
+                return null;
+            }
+            long[] starts = new long[count];
+            int[] sizes = new int[count];
+            long covered = 4;
+            long position = INDEX_HEADER_SIZE;
+            for (int i = 0; i < count; i++) {
+                if (position + RUN_HEADER_SIZE > size) {
+                    return null;
+                }
+                ByteBuffer run = read(channel, position, RUN_HEADER_SIZE);
+                starts[i] = position + RUN_HEADER_SIZE;
+                sizes[i] = run.getInt(8);
+                position = starts[i] + (long) sizes[i] * ENTRY_SIZE;
+                // Each run covers at least one more game than the one before.
+                if (run.getLong(0) <= covered || run.getLong(0) > archiveLength || sizes[i] < 0 || position > size) {
+                    return null;
+                }
+                covered = run.getLong(0);
+            }
+            return new IndexRuns(starts, sizes, covered, position);
+        }
+
+        /**
+         * Reads one sorted run of an index in order, an entry at a time.
+         */
+        private static final class RunReader {
+            private final FileChannel channel;
+            private final ByteBuffer buffer = ByteBuffer.allocate(1024 * ENTRY_SIZE);
+            private long position;
+            private long remaining;
+            long key;
+            long offset;
+
+            RunReader(FileChannel channel, long position, long entries) {
+                this.channel = channel;
+                this.position = position;
+                remaining = entries;
+                buffer.limit(0);
+            }
+
+            /**
+             * Moves to the next entry, or returns false at the end of the run.
+             */
+            boolean advance() throws IOException {
+                if (remaining == 0) {
+                    return false;
+                }
+                if (!buffer.hasRemaining()) {
+                    buffer.clear().limit((int) Math.min(buffer.capacity(), remaining * ENTRY_SIZE));
+                    while (buffer.hasRemaining()) {
+                        int read = channel.read(buffer, position);
+                        if (read < 0) {
+                            throw new IOException("The index ends early");
+                        }
+                        position += read;
+                    }
+                    buffer.flip();
+                }
+                key = buffer.getLong();
+                offset = buffer.getLong();
+                remaining--;
+                return true;
+            }
+        }
+
+        /**
+         * Returns the result code of a PGN result string; anything else is unfinished.
+         */
+        static int resultCode(String result) {
+            int code = java.util.Arrays.asList(RESULTS).indexOf(result);
+            return Math.max(code, 0);
+        }
+
+        /**
+         * Appends the game played on the board and returns its offset. The board's moves
+         * are taken back to find the starting position and replayed, so the board ends up
+         * as it was.
+         */
+        static long append(Path path, Board board, String result) throws IOException {
+            List<Integer> moves = new ArrayList<>();
+            while (board.canUndo()) {
+                moves.add(0, board.unmakeMove());
+            }
+            String fen = board.toFen();
+            for (int move : moves) {
+                board.makeMove(move);
+            }
+            try (FileChannel channel = openForAppend(path)) {
+                return write(channel, path, fen, moves.stream().mapToInt(Integer::intValue).toArray(), result);
+            }
+        }
+
+        /**
+         * Opens the archive for appending, creating it with just the magic if need be.
+         */
+        private static FileChannel openForAppend(Path path) throws IOException {
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.APPEND);
+            try {
+                if (channel.size() == 0) {
+                    channel.write(ByteBuffer.allocate(4).putInt(0, ARCHIVE_MAGIC));
+                }
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+            return channel;
+        }
+
+        /**
+         * Writes the record of a game played from the FEN to the end of the archive open
+         * on the channel and returns the record's offset.
+         */
+        private static long write(FileChannel channel, Path path, String fen, int[] moves, String result)
+                throws IOException {
+            if (moves.length > MAX_PLIES) {
+                throw new IOException("Too many moves to archive: " + moves.length);
+            }
+            byte[] fenBytes = fen.equals(Perft.START_FEN) ? new byte[0] : fen.getBytes(StandardCharsets.US_ASCII);
+            ByteBuffer record = ByteBuffer.allocate(2 + fenBytes.length + 1 + 2 + 2 * moves.length);
+            record.putShort((short) fenBytes.length).put(fenBytes);
+            record.put((byte) resultCode(result)).putShort((short) moves.length);
+            for (int move : moves) {
+                record.putShort((short) Move.key(move));
+            }
+            record.flip();
+            long offset = channel.size();
+            if (offset + record.remaining() > MAX_ARCHIVE_SIZE) {
+                throw new IOException("The archive " + path + " is full at " + offset + " bytes");
+            }
+            while (record.hasRemaining()) {
+                channel.write(record);
+            }
+            return offset;
+        }
+
+        /**
+         * Indexes the games added to the archive since the index was last written and
+         * appends them to it as new runs of at most RUN_ENTRIES entries, so an import of
+         * any size is indexed in bounded memory. The index is rebuilt from scratch when
+         * it is missing or does not fit the archive.
+         */
+        static void updateIndex(Path path) throws IOException {
+            MappedByteBuffer games = map(path);
+            if (games.capacity() < 4 || games.getInt(0) != ARCHIVE_MAGIC) {
+                throw new IOException("Not a game archive: " + path);
+            }
+            Path indexPath = indexPath(path);
+            IndexRuns runs = null;
+            if (Files.exists(indexPath)) {
+                try (FileChannel channel = FileChannel.open(indexPath, StandardOpenOption.READ)) {
+                    runs = readRuns(channel, games.capacity());
+                }
+            }
+            if (runs != null && runs.covered == games.capacity()) {
+                return;
+            }
+            if (runs == null) {
+                // Start over from an index without runs.
+                Path temporary = indexPath.resolveSibling(indexPath.getFileName() + ".tmp");
+                Files.write(temporary, ByteBuffer.allocate(INDEX_HEADER_SIZE).putInt(INDEX_MAGIC).array());
+                Files.move(temporary, indexPath, StandardCopyOption.REPLACE_EXISTING);
+                runs = new IndexRuns(new long[0], new int[0], 4, INDEX_HEADER_SIZE);
+            }
+
+            // Collect the new games' entries in archive order, a run's worth at a time.
+            long[] keys = new long[1024];
+            long[] offsets = new long[1024];
+            int count = 0;
+            for (int offset = (int) runs.covered; offset < games.capacity(); offset = nextRecord(games, offset)) {
+                long[] gameKeys = positionKeys(games, offset);
+                if (count + gameKeys.length > RUN_ENTRIES) {
+                    runs = addRun(indexPath, runs, offset, keys, offsets, count);
+                    count = 0;
+                }
+                if (count + gameKeys.length > keys.length) {
+                    int capacity = Math.min(RUN_ENTRIES, Math.max(keys.length * 2, count + gameKeys.length));
+                    keys = java.util.Arrays.copyOf(keys, capacity);
+                    offsets = java.util.Arrays.copyOf(offsets, capacity);
+                }
+                for (long key : gameKeys) {
+                    keys[count] = key;
+                    offsets[count++] = offset;
+                }
+            }
+            if (count > 0) {
+                addRun(indexPath, runs, games.capacity(), keys, offsets, count);
+            }
+        }
+
+        /**
+         * Returns the order of the first count entries sorted by unsigned key, with each
+         * key's entries kept in archive order. A long holds the top bits of the key,
+         * flipped so signed order is unsigned order, above the entry's index, so one
+         * primitive sort does nearly all the work; only entries whose keys share the top
+         * bits need another look at the full keys.
+         */
+        private static long[] sortedOrder(long[] keys, int count) {
+            long[] order = new long[count];
+            for (int i = 0; i < count; i++) {
+                order[i] = ((keys[i] & ~INDEX_MASK) ^ Long.MIN_VALUE) | i;
+            }
+            java.util.Arrays.sort(order);
+            // Insertion sort each group of equal top bits by full key; it is already in
+            // index order, so equal keys stay that way.
+            for (int start = 0, end; start < count; start = end) {
+                for (end = start + 1; end < count && (order[end] & ~INDEX_MASK) == (order[start] & ~INDEX_MASK); end++) {
+                    long entry = order[end];
+                    long key = keys[(int) (entry & INDEX_MASK)];
+                    int i = end;
+                    while (i > start && Long.compareUnsigned(keys[(int) (order[i - 1] & INDEX_MASK)], key) > 0) {
+                        order[i] = order[i - 1];
+                        i--;
+                    }
+                    order[i] = entry;
+                }
+            }
+            return order;
+        }
+
+        /**
+         * Adds the entries, which cover the archive up to the given length, as one more
+         * run and returns the index's runs afterwards. When the index already has
+         * MAX_RUNS runs, they are merged with the entries into a single run instead,
+         * streaming the old entries from disk.
+         */
+        private static IndexRuns addRun(Path indexPath, IndexRuns runs, long covered, long[] keys, long[] offsets,
+                int count) throws IOException {
+            long[] order = sortedOrder(keys, count);
+            if (runs.starts.length < MAX_RUNS) {
+                // Write the run past the last one and only then count it in the header, so
+                // an interrupted update leaves the index as it was.
+                try (FileChannel channel = FileChannel.open(indexPath, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                    java.io.DataOutputStream out = new java.io.DataOutputStream(new java.io.BufferedOutputStream(
+                            java.nio.channels.Channels.newOutputStream(channel.position(runs.end)), 1 << 16));
+                    out.writeLong(covered);
+                    out.writeInt(count);
+                    for (int i = 0; i < count; i++) {
+                        int entry = (int) (order[i] & INDEX_MASK);
+                        out.writeLong(keys[entry]);
+                        out.writeLong(offsets[entry]);
+                    }
+                    out.flush();
+                    channel.force(false);
+                    channel.write(ByteBuffer.allocate(4).putInt(0, runs.starts.length + 1), 4);
+                    return readRuns(channel, covered);
+                }
+            }
+
+            // Merge the old runs and the new entries into a fresh single-run index.
+            Path temporary = indexPath.resolveSibling(indexPath.getFileName() + ".tmp");
+            try (FileChannel channel = FileChannel.open(indexPath, StandardOpenOption.READ);
+                    java.io.DataOutputStream out = new java.io.DataOutputStream(
+                            new java.io.BufferedOutputStream(Files.newOutputStream(temporary), 1 << 16))) {
+                RunReader[] readers = new RunReader[runs.starts.length];
+                long total = count;
+                for (int i = 0; i < readers.length; i++) {
+                    readers[i] = new RunReader(channel, runs.starts[i], runs.sizes[i]);
+                    readers[i] = readers[i].advance() ? readers[i] : null;
+                    total += runs.sizes[i];
+                }
+                out.writeInt(INDEX_MAGIC);
+                out.writeInt(1);
+                if (total > Integer.MAX_VALUE) {
+                    throw new IOException("Too many entries for one index run: " + total);
+                }
+                out.writeLong(covered);
+                out.writeInt((int) total);
+                int next = 0;
+                while (true) {
+                    // Older runs come first on equal keys, keeping each key's games in
+                    // archive order.
+                    int best = -1;
+                    for (int i = 0; i < readers.length; i++) {
+                        if (readers[i] != null
+                                && (best < 0 || Long.compareUnsigned(readers[i].key, readers[best].key) < 0)) {
+                            best = i;
+                        }
+                    }
+                    int entry = next < count ? (int) (order[next] & INDEX_MASK) : -1;
+                    if (best >= 0 && (entry < 0 || Long.compareUnsigned(readers[best].key, keys[entry]) <= 0)) {
+                        out.writeLong(readers[best].key);
+                        out.writeLong(readers[best].offset);
+                        readers[best] = readers[best].advance() ? readers[best] : null;
+                    } else if (entry >= 0) {
+                        out.writeLong(keys[entry]);
+                        out.writeLong(offsets[entry]);
+                        next++;
+                    } else {
+                        break;
+                    }
+                }
+            }
+            Files.move(temporary, indexPath, StandardCopyOption.REPLACE_EXISTING);
+            try (FileChannel channel = FileChannel.open(indexPath, StandardOpenOption.READ)) {
+                return readRuns(channel, covered);
+            }
+        }
+
+        private static int nextRecord(ByteBuffer games, int offset) {
+            int movesStart = offset + 2 + (games.getShort(offset) & 0xFFFF) + 3;
+            return movesStart + 2 * (games.getShort(movesStart - 2) & 0xFFFF);
+        }
+
+        /**
+         * Returns the keys of the distinct positions the game at the offset went through.
+         */
+        private static long[] positionKeys(ByteBuffer games, int offset) throws IOException {
+            Board board = startingBoard(games, offset);
+            int plies = plies(games, offset);
+            int movesStart = nextRecord(games, offset) - 2 * plies;
+            long[] keys = new long[plies + 1];
+            keys[0] = board.getZobristKey();
+            for (int i = 0; i < plies; i++) {
+                board.makeMove(decode(board, games, movesStart + 2 * i, offset));
+                keys[i + 1] = board.getZobristKey();
+            }
+            java.util.Arrays.sort(keys);
+            int distinct = 0;
+            for (int i = 0; i < keys.length; i++) {
+                if (i == 0 || keys[i] != keys[i - 1]) {
+                    keys[distinct++] = keys[i];
+                }
+            }
+            return java.util.Arrays.copyOf(keys, distinct);
+        }
+
+        private static Board startingBoard(ByteBuffer games, int offset) throws IOException {
+            int fenLength = games.getShort(offset) & 0xFFFF;
+            if (fenLength == 0) {
+                return new Board();
+            }
+            byte[] fen = new byte[fenLength];
+            games.get(offset + 2, fen);
+            try {
+                return new Board(new String(fen, StandardCharsets.US_ASCII));
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Bad starting position in the game at offset " + offset + ": " + e.getMessage());
+            }
+        }
+
+        private static int plies(ByteBuffer games, int offset) {
+            return games.getShort(offset + 2 + (games.getShort(offset) & 0xFFFF) + 1) & 0xFFFF;
+        }
+
+        private static int decode(Board board, ByteBuffer games, int position, int offset) throws IOException {
+            int move = board.findMove(games.getShort(position) & 0xFFFF);
+            if (move == Move.NONE) {
+                throw new IOException("Illegal move in the game at offset " + offset);
+            }
+            return move;
+        }
+
+        /**
+         * Returns the offsets of the archived games that reached the position with this
+         * Zobrist key, in archive order. The index is read afresh, so a merge since the
+         * archive was opened does no harm; games appended since then are left out.
+         */
+        long[] findGames(long key) throws IOException {
+            long[] found = new long[0];
+            int count = 0;
+            try (FileChannel channel = FileChannel.open(indexPath, StandardOpenOption.READ)) {
+                IndexRuns runs = readRuns(channel, Long.MAX_VALUE);
+                if (runs == null) {
+                    throw new IOException("Not a game archive index: " + indexPath);
+                }
+                // Runs are in archive order, and so are each key's entries within a run.
+                for (int run = 0; run < runs.starts.length; run++) {
+                    // Find the run's first entry with the key; keys compare as unsigned numbers.
+                    long start = runs.starts[run];
+                    int low = 0;
+                    int high = runs.sizes[run];
+                    while (low < high) {
+                        int mid = (low + high) >>> 1;
+                        if (Long.compareUnsigned(read(channel, start + (long) mid * ENTRY_SIZE, 8).getLong(0), key) < 0) {
+                            low = mid + 1;
+                        } else {
+                            high = mid;
+                        }
+                    }
+                    RunReader reader = new RunReader(channel, start + (long) low * ENTRY_SIZE, runs.sizes[run] - low);
+                    while (reader.advance() && reader.key == key) {
+                        if (reader.offset < games.capacity()) {
+                            if (count == found.length) {
+                                found = java.util.Arrays.copyOf(found, Math.max(16, count * 2));
+                            }
+                            found[count++] = reader.offset;
+                        }
+                    }
+                }
+            }
+            return java.util.Arrays.copyOf(found, count);
+        }
+
+        String getResult(long offset) {
+            return RESULTS[games.get((int) offset + 2 + (games.getShort((int) offset) & 0xFFFF)) & 3];
+        }
+
+        int getPlies(long offset) {
+            return plies(games, (int) offset);
+        }
+
+        String describe(long offset) {
+            return "Game at " + offset + ": " + getResult(offset) + ", " + getPlies(offset) + " plies";
+        }
+
+        /**
+         * Plays the game at the offset and returns the board after its last move.
+         */
+        Board replay(long offset) throws IOException {
+            if (offset < 4 || offset >= games.capacity()) {
+                throw new IllegalArgumentException("No game at offset " + offset);
+            }
+            int start = (int) offset;
+            Board board = startingBoard(games, start);
+            int plies = plies(games, start);
+            int movesStart = nextRecord(games, start) - 2 * plies;
+            for (int i = 0; i < plies; i++) {
+                board.makeMove(decode(board, games, movesStart + 2 * i, start));
+            }
+            return board;
+        }
+
+        static void run(String[] args) {
+            if (args.length < 3 || !List.of("import", "find", "show").contains(args[1])
+                    || (args[1].equals("show") && args.length != 4)) {
+                System.err.println("Usage: ChessGame archive import <archive> <pgn file>...");
+                System.err.println("       ChessGame archive find <archive> [fen]");
+                System.err.println("       ChessGame archive show <archive> <offset>");
+                System.exit(2);
+            }
+            Path path = Path.of(args[2]);
+            try {
+                if (args[1].equals("import")) {
+                    importPgn(path, java.util.Arrays.copyOfRange(args, 3, args.length));
+                } else if (args[1].equals("find")) {
+                    Board board = args.length >= 4
+                            ? new Board(String.join(" ", java.util.Arrays.copyOfRange(args, 3, args.length)))
+                            : new Board();
+                    long start = System.nanoTime();
+                    GameArchive archive = new GameArchive(path);
+                    long opened = System.nanoTime();
+                    long[] offsets = archive.findGames(board.getZobristKey());
+                    long found = System.nanoTime();
+                    for (long offset : offsets) {
+                        System.out.println(archive.describe(offset));
+                    }
+                    System.out.printf("%,d games reached the position. Opening took %.3f ms, the lookup %.3f ms.%n",
+                            offsets.length, (opened - start) / 1e6, (found - opened) / 1e6);
+                } else {
+                    GameArchive archive = new GameArchive(path);
+                    long offset = Long.parseLong(args[3]);
+                    Writer out = new java.io.OutputStreamWriter(System.out, StandardCharsets.ISO_8859_1);
+                    PgnGame.write(archive.replay(offset), archive.getResult(offset), out);
+                    out.flush();
+                }
+            } catch (IOException | IllegalArgumentException e) {
+                System.err.println(e.getMessage());
+                System.exit(1);
+            }
+        }
+
+        private static void importPgn(Path path, String[] pgnFiles) throws IOException {
+            long start = System.nanoTime();
+            int imported = 0;
+            int skipped = 0;
+            try (FileChannel channel = openForAppend(path)) {
+                for (String file : pgnFiles) {
+                    try (PgnReader reader = PgnReader.open(Path.of(file))) {
+                        PgnGame game;
+                        while ((game = reader.next()) != null) {
+                            // The moves are recorded as they are played, with no replay to
+                            // recover them from the board.
+                            int[] moves;
+                            String fen;
+                            try {
+                                Board board = game.startingBoard();
+                                fen = board.toFen();
+                                moves = game.play(board);
+                            } catch (IllegalArgumentException e) {
+                                skipped++;
+                                continue;
+                            }
+                            write(channel, path, fen, moves, game.getResult());
+                            imported++;
+                        }
+                    }
+                }
+            }
+            long appended = System.nanoTime();
+            updateIndex(path);
+            long indexed = System.nanoTime();
+            System.out.printf("Imported %,d games (%,d skipped) in %.3fs, indexed in %.3fs%n",
+                    imported, skipped, (appended - start) / 1e9, (indexed - appended) / 1e9);
+        }
+    }
+
+    /**
+     * Reads PGN one game at a time, so collections of any size stream through in the
+     * memory of a single game. Comments, variations, NAGs, move numbers and escape
+     * lines are skipped; only the tag pairs and the main line's SAN moves are kept.
+     * Usage: pgn <file>, which replays every game and reports the errors.
+     */
+    private static final class PgnReader implements Closeable {
+        private final BufferedReader reader;
+        // A tag line of the next game, read while looking for the end of this one.
+        private String pendingLine;
+        private long lineNumber;
+
+        // Movetext scanning state for the game being read.
+        private boolean inComment;
+        private int variationDepth;
+        private String result;
+
+        PgnReader(Reader in) {
+            reader = in instanceof BufferedReader ? (BufferedReader) in : new BufferedReader(in, 1 << 16);
+        }
+
+        /**
+         * Opens a PGN file. PGN is specified as Latin-1, which also reads UTF-8 files
+         * without failing; the movetext is plain ASCII either way.
+         */
+        static PgnReader open(Path path) throws IOException {
+            return new PgnReader(Files.newBufferedReader(path, StandardCharsets.ISO_8859_1));
+        }
+
+        /**
+         * Returns the line number the reader has reached, for error messages.
+         */
+        long getLineNumber() {
+            return lineNumber;
+        }
+
+        /**
+         * Reads the next game, or returns null at the end of the input.
+         */
+        PgnGame next() throws IOException {
+            Map<String, String> tags = new LinkedHashMap<>();
+            List<String> moves = new ArrayList<>();
+            inComment = false;
+            variationDepth = 0;
+            result = null;
+            boolean inMovetext = false;
+
+            String line;
+            while (result == null && (line = readLine()) != null) {
+                if (line.startsWith("%")) {
+                    continue;
+                }
+                String trimmed = line.trim();
+                if (!inComment && trimmed.startsWith("[")) {
+                    if (inMovetext) {
+                        // A game without a result marker; this tag starts the next one.
+                        pendingLine = line;
+                        break;
+                    }
+                    parseTag(trimmed, tags);
+                } else if (!trimmed.isEmpty()) {
+                    inMovetext = true;
+                    scanMovetext(trimmed, moves);
+                }
+            }
+            if (tags.isEmpty() && moves.isEmpty() && result == null) {
+                return null;
+            }
+            return new PgnGame(tags, moves, result == null ? "*" : result);
+        }
+
+        private String readLine() throws IOException {
+            String line = pendingLine;
+            if (line != null) {
+                pendingLine = null;
+                return line;
+            }
+            line = reader.readLine();
+            if (line != null) {
+                lineNumber++;
+            }
+            return line;
+        }
+
+        private static void parseTag(String line, Map<String, String> tags) {
+            int space = line.indexOf(' ');
+            int open = line.indexOf('"');
+            int close = line.lastIndexOf('"');
+            if (space < 0 || open < 0 || close <= open) {
+                return;
+            }
+            String value = line.substring(open + 1, close).replace("\\\"", "\"").replace("\\\\", "\\");
+            tags.put(line.substring(1, space), value);
+        }
+
+        /**
+         * Splits a line of movetext into tokens and keeps the moves of the main line.
+         * Brace comments may run over several lines; a semicolon comments out the rest
+         * of the line.
+         */
+        private void scanMovetext(String line, List<String> moves) {
+            int i = 0;
+            int length = line.length();
+            while (i < length && result == null) {
+                char c = line.charAt(i);
+                if (inComment) {
+                    inComment = c != '}';
+                    i++;
+                } else if (c == '{') {
+                    inComment = true;
+                    i++;
+                } else if (c == ';') {
+                    return;
+                } else if (c == '(') {
+                    variationDepth++;
+                    i++;
+                } else if (c == ')') {
+                    variationDepth = Math.max(0, variationDepth - 1);
+                    i++;
+                } else if (Character.isWhitespace(c)) {
+                    i++;
+                } else {
+                    int start = i;
+                    while (i < length && "{}();".indexOf(line.charAt(i)) < 0
+                            && !Character.isWhitespace(line.charAt(i))) {
+                        i++;
+                    }
+                    if (variationDepth == 0) {
+                        addToken(line.substring(start, i), moves);
+                    }
+                }
+            }
+        }
+
+        private void addToken(String token, List<String> moves) {
+            if (token.equals("1-0") || token.equals("0-1") || token.equals("1/2-1/2") || token.equals("*")) {
+                result = token;
+                return;
+            }
+            if (token.charAt(0) == '$') {
+                return;
+            }
+            // Strip a move number such as 12. or 12... and keep whatever follows it.
+            int start = 0;
+            while (start < token.length() && Character.isDigit(token.charAt(start))) {
+                start++;
+            }
+            if (start > 0 && start < token.length() && token.charAt(start) == '.') {
+                while (start < token.length() && token.charAt(start) == '.') {
+                    start++;
+                }
+                token = token.substring(start);
+            } else if (start == token.length()) {
+                return;
+            }
+            if (!token.isEmpty()) {
+                moves.add(token);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            reader.close();
+        }
+
+        static void run(String[] args) {
+            if (args.length < 2) {
+                System.err.println("Usage: ChessGame pgn <file>");
+                System.exit(2);
+            }
+            long start = System.nanoTime();
+            long games = 0;
+            long moves = 0;
+            long errors = 0;
+            try (PgnReader reader = open(Path.of(args[1]))) {
+                PgnGame game;
+                while ((game = reader.next()) != null) {
+                    games++;
+                    try {
+                        game.replay();
+                        moves += game.getSanMoves().size();
+                    } catch (IllegalArgumentException e) {
+                        errors++;
+                        System.err.println("Game " + games + " (ending at line " + reader.getLineNumber() + "): "
+                                + e.getMessage());
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("Could not read " + args[1] + ": " + e.getMessage());
+                System.exit(1);
+            }
+            long nanos = System.nanoTime() - start;
+            System.out.printf("Games: %,d  Moves: %,d  Errors: %,d  Time: %.3fs  %,d games/s%n",
+                    games, moves, errors, nanos / 1e9, nanos == 0 ? 0 : games * 1_000_000_000L / nanos);
+        }
+    }
+
+    /**
+     * Headless batch analysis of PGN collections on a fork-join pool. Files are split
+     * between workers, and each file's games are read in order and handed out in
+     * batches, so a single huge file keeps every core busy while only a bounded number
+     * of batches is held in memory. One CSV line per game goes to standard output, in
+     * order within each file; the totals go to standard error.
+     * Usage: analyze <directory> [threads].
+     */
+    private static final class BatchAnalyzer {
+        private static final int BATCH_SIZE = 256;
+        private static final String CSV_HEADER =
+                "file,game,white,black,result,plies,captures,checks,mate,material_swing,error";
+
+        private final ForkJoinPool pool;
+        private final int maxPendingBatches;
+        private final java.io.PrintStream out;
+        private Path root;
+
+        BatchAnalyzer(int threads, java.io.PrintStream out) {
+            pool = new ForkJoinPool(threads);
+            maxPendingBatches = 2 * threads;
+            this.out = out;
+        }
+
+        /**
+         * What one game did. Material is counted from White's side with the search's
+         * piece values, and the swing is the gap between its highest and lowest point.
+         */
+        private static final class GameStats {
+            private String white = "?";
+            private String black = "?";
+            private String result = "*";
+            private int plies;
+            private int captures;
+            private int checks;
+            private boolean mate;
+            private int materialSwing;
+            private String error;
+        }
+
+        /**
+         * Running totals over many games.
+         */
+        private static final class Totals {
+            private long games;
+            private long errors;
+            private long plies;
+            private long captures;
+            private long checks;
+            private long mates;
+            private int largestSwing;
+
+            void add(GameStats stats) {
+                games++;
+                errors += stats.error == null ? 0 : 1;
+                plies += stats.plies;
+                captures += stats.captures;
+                checks += stats.checks;
+                mates += stats.mate ? 1 : 0;
+                largestSwing = Math.max(largestSwing, stats.materialSwing);
+            }
+
+            void add(Totals other) {
+                games += other.games;
+                errors += other.errors;
+                plies += other.plies;
+                captures += other.captures;
+                checks += other.checks;
+                mates += other.mates;
+                largestSwing = Math.max(largestSwing, other.largestSwing);
+            }
+        }
+
+        /**
+         * Analyzes every .pgn file below the directory and returns the totals.
+         */
+        Totals analyze(Path directory) throws IOException {
+            List<Path> files;
+            try (java.util.stream.Stream<Path> walk = Files.walk(directory)) {
+                files = walk.filter(path -> path.toString().toLowerCase().endsWith(".pgn"))
+                        .sorted()
+                        .collect(java.util.stream.Collectors.toList());
+            }
+            root = directory;
+            out.println(CSV_HEADER);
+            try {
+                return pool.invoke(new FilesTask(files, 0, files.size()));
+            } finally {
+                pool.shutdown();
+            }
+        }
+
+        /**
+         * Splits the file list in half until one file is left.
+         */
+        private final class FilesTask extends RecursiveTask<Totals> {
+            private final List<Path> files;
+            private final int from;
+            private final int to;
+
+            FilesTask(List<Path> files, int from, int to) {
+                this.files = files;
+                this.from = from;
+                this.to = to;
+            }
+
+            @Override
+            protected Totals compute() {
+                if (to - from == 0) {
+                    return new Totals();
+                }
+                if (to - from == 1) {
+                    return analyzeFile(files.get(from));
+                }
+                int middle = (from + to) >>> 1;
+                FilesTask second = new FilesTask(files, middle, to);
+                second.fork();
+                Totals totals = new FilesTask(files, from, middle).compute();
+                totals.add(second.join());
+                return totals;
+            }
+        }
+
+        /**
+         * Analyzes a batch of consecutive games from one file.
+         */
+        private final class BatchTask extends RecursiveTask<Totals> {
+            private final String fileName;
+            private final long firstIndex;
+            private final List<PgnGame> games;
+            private final StringBuilder lines = new StringBuilder();
+
+            BatchTask(String fileName, long firstIndex, List<PgnGame> games) {
+                this.fileName = fileName;
+                this.firstIndex = firstIndex;
+                this.games = games;
+            }
+
+            @Override
+            protected Totals compute() {
+                Totals totals = new Totals();
+                for (int i = 0; i < games.size(); i++) {
+                    GameStats stats = analyzeGame(games.get(i));
+                    totals.add(stats);
+                    appendCsv(lines, fileName, firstIndex + i, stats);
+                }
+                return totals;
+            }
+        }
+
+        /**
+         * Reads a file's games in order and forks a task per batch, joining the oldest
+         * batch whenever too many are waiting.
+         */
+        private Totals analyzeFile(Path file) {
+            Totals totals = new Totals();
+            String fileName = root.relativize(file).toString();
+            ArrayDeque<BatchTask> pending = new ArrayDeque<>();
+            long index = 1;
+            try (PgnReader reader = PgnReader.open(file)) {
+                List<PgnGame> batch = new ArrayList<>(BATCH_SIZE);
+                PgnGame game;
+                while ((game = reader.next()) != null) {
+                    batch.add(game);
+                    if (batch.size() == BATCH_SIZE) {
+                        pending.add(forkBatch(fileName, index, batch));
+                        index += batch.size();
+                        batch = new ArrayList<>(BATCH_SIZE);
+                        if (pending.size() >= maxPendingBatches) {
+                            totals.add(joinBatch(pending.poll()));
                         }
                     }
-                    // (Optional improvement: also check that the king does not pass through check.)
-                    return true;
                 }
+                if (!batch.isEmpty()) {
+                    pending.add(forkBatch(fileName, index, batch));
+                }
+            } catch (IOException e) {
+                System.err.println("Could not read " + file + ": " + e.getMessage());
+            }
+            while (!pending.isEmpty()) {
+                totals.add(joinBatch(pending.poll()));
+            }
+            return totals;
+        }
+
+        /**
+         * Waits for a batch and prints its lines. Batches of a file are joined in the
+         * order they were read, so its games come out in order.
+         */
+        private Totals joinBatch(BatchTask task) {
+            Totals totals = task.join();
+            synchronized (out) {
+                out.print(task.lines);
+            }
+            return totals;
+        }
+
+        private BatchTask forkBatch(String fileName, long firstIndex, List<PgnGame> games) {
+            BatchTask task = new BatchTask(fileName, firstIndex, games);
+            task.fork();
+            return task;
+        }
+
+        /**
+         * Replays a game move by move through the board's validation, counting as it goes.
+         * The first illegal move ends the game and is reported as its error.
+         */
+        static GameStats analyzeGame(PgnGame game) {
+            GameStats stats = new GameStats();
+            stats.white = game.getTags().getOrDefault("White", "?");
+            stats.black = game.getTags().getOrDefault("Black", "?");
+            stats.result = game.getResult();
+            Board board;
+            try {
+                board = game.startingBoard();
+            } catch (IllegalArgumentException e) {
+                stats.error = "Bad FEN tag: " + e.getMessage();
+                return stats;
+            }
+            int material = material(board);
+            int lowest = material;
+            int highest = material;
+            for (String san : game.getSanMoves()) {
+                int move;
+                try {
+                    move = board.parseSan(san);
+                } catch (IllegalArgumentException e) {
+                    stats.error = "Ply " + (stats.plies + 1) + ": " + e.getMessage();
+                    return stats;
+                }
+                board.makeMove(move);
+                stats.plies++;
+                if (Move.isCapture(move) || Move.promotionType(move) != Move.NO_PROMOTION) {
+                    stats.captures += Move.isCapture(move) ? 1 : 0;
+                    material = material(board);
+                    lowest = Math.min(lowest, material);
+                    highest = Math.max(highest, material);
+                }
+                if (board.isCheck(board.getSideToMove())) {
+                    stats.checks++;
+                }
+            }
+            stats.mate = board.isCheckmate(board.getSideToMove());
+            stats.materialSwing = highest - lowest;
+            return stats;
+        }
+
+        private static int material(Board board) {
+            int score = 0;
+            for (int type = PAWN; type < KING; type++) {
+                score += Search.PIECE_VALUES[type]
+                        * (Long.bitCount(board.getPieces(0, type)) - Long.bitCount(board.getPieces(1, type)));
+            }
+            return score;
+        }
+
+        private static void appendCsv(StringBuilder line, String fileName, long index, GameStats stats) {
+            line.append(csv(fileName)).append(',').append(index).append(',')
+                    .append(csv(stats.white)).append(',').append(csv(stats.black)).append(',')
+                    .append(stats.result).append(',').append(stats.plies).append(',')
+                    .append(stats.captures).append(',').append(stats.checks).append(',')
+                    .append(stats.mate).append(',').append(stats.materialSwing).append(',')
+                    .append(stats.error == null ? "" : csv(stats.error)).append('\n');
+        }
+
+        /**
+         * Quotes a field when it holds a comma, quote or line break.
+         */
+        private static String csv(String field) {
+            if (field.indexOf(',') < 0 && field.indexOf('"') < 0 && field.indexOf('\n') < 0) {
+                return field;
+            }
+            return '"' + field.replace("\"", "\"\"") + '"';
+        }
+
+        static void run(String[] args) {
+            if (args.length < 2) {
+                System.err.println("Usage: ChessGame analyze <directory> [threads]");
+                System.exit(2);
+            }
+            int threads = args.length >= 3 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+            java.io.PrintStream out = new java.io.PrintStream(
+                    new java.io.BufferedOutputStream(new java.io.FileOutputStream(java.io.FileDescriptor.out), 1 << 16),
+                    false);
+            long start = System.nanoTime();
+            Totals totals;
+            try {
+                totals = new BatchAnalyzer(threads, out).analyze(Path.of(args[1]));
+            } catch (IOException e) {
+                System.err.println("Could not list " + args[1] + ": " + e.getMessage());
+                System.exit(1);
+                return;
+            }
+            out.flush();
+            long nanos = System.nanoTime() - start;
+            System.err.printf("Games: %,d  Errors: %,d  Plies: %,d  Captures: %,d  Checks: %,d  Mates: %,d"
+                    + "  Largest material swing: %d%n", totals.games, totals.errors, totals.plies,
+                    totals.captures, totals.checks, totals.mates, totals.largestSwing);
+            System.err.printf("Time: %.3fs  %,d games/s on %d threads%n",
+                    nanos / 1e9, nanos == 0 ? 0 : totals.games * 1_000_000_000L / nanos, threads);
+        }
+    }
+
+    /**
+     * Headless UCI engine on standard input and output, so tournament managers can play
+     * it without the Swing UI. Commands are read on the calling thread, and each go runs
+     * on a search thread that prints an info line per iteration and then bestmove, so
+     * stop and isready are answered while the engine thinks. Node limits count the main
+     * search thread only.
+     * Usage: uci.
+     */
+    private static final class Uci {
+        private static final String NAME = "ChessGame";
+        private static final int DEFAULT_HASH_MB = 64;
+        private static final int MAX_HASH_MB = 4096;
+        private static final int MAX_THREADS = 256;
+        // Stands in for "no time limit" without overflowing the search deadline.
+        private static final long INFINITE_MILLIS = 365L * 24 * 60 * 60 * 1000;
+        // Kept back from the clock on every move, so a slow pipe does not lose on time.
+        private static final long MOVE_OVERHEAD_MS = 30;
+        // Assumed moves left in the game when the GUI does not send movestogo.
+        private static final int DEFAULT_MOVES_TO_GO = 30;
+
+        private final BufferedReader in;
+        private final java.io.PrintStream out;
+        private TranspositionTable table = new TranspositionTable(DEFAULT_HASH_MB);
+        private LazySmp searcher = new LazySmp(table, LazySmp.DEFAULT_THREADS);
+        private Board board = new Board();
+
+        // The running go, if any: its thread, the flag stop sets before stopping the
+        // searcher, and a latch an infinite search waits on before reporting bestmove.
+        private Thread searchThread;
+        private AtomicBoolean stopRequested;
+        private CountDownLatch stopLatch;
+
+        Uci(BufferedReader in, java.io.PrintStream out) {
+            this.in = in;
+            this.out = out;
+        }
+
+        /**
+         * Reads commands until quit or the end of input.
+         */
+        void loop() throws IOException {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] tokens = line.trim().split("\\s+");
+                switch (tokens[0]) {
+                    case "uci":
+                        out.println("id name " + NAME);
+                        out.println("id author ChessGame authors");
+                        out.println("option name Hash type spin default " + DEFAULT_HASH_MB + " min 1 max " + MAX_HASH_MB);
+                        out.println("option name Threads type spin default " + LazySmp.DEFAULT_THREADS
+                                + " min 1 max " + MAX_THREADS);
+                        // Registration loads JFR and JMX; get it out of the way before any clock runs.
+                        Instrumentation.awaitRegistration();
+                        out.println("uciok");
+                        break;
+                    case "isready":
+                        out.println("readyok");
+                        break;
+                    case "setoption":
+                        endSearch();
+                        setOption(line);
+                        break;
+                    case "ucinewgame":
+                        endSearch();
+                        table.clear();
+                        break;
+                    case "position":
+                        endSearch();
+                        setPosition(tokens);
+                        break;
+                    case "go":
+                        endSearch();
+                        go(tokens);
+                        break;
+                    case "stop":
+                        requestStop();
+                        break;
+                    case "quit":
+                        endSearch();
+                        searcher.shutdown();
+                        return;
+                    case "":
+                    case "debug":
+                    case "ponderhit":
+                        break;
+                    default:
+                        out.println("info string Unknown command: " + tokens[0]);
+                }
+            }
+            endSearch();
+            searcher.shutdown();
+        }
+
+        /**
+         * Handles "setoption name <name> value <value>" for Hash and Threads.
+         */
+        private void setOption(String line) {
+            int nameIndex = line.indexOf(" name ");
+            int valueIndex = line.indexOf(" value ");
+            if (nameIndex < 0 || valueIndex < nameIndex) {
+                out.println("info string Expected setoption name <name> value <value>");
+                return;
+            }
+            String name = line.substring(nameIndex + 6, valueIndex).trim();
+            int value;
+            try {
+                value = Integer.parseInt(line.substring(valueIndex + 7).trim());
+            } catch (NumberFormatException e) {
+                out.println("info string Not a number: " + line.substring(valueIndex + 7).trim());
+                return;
+            }
+            if (name.equalsIgnoreCase("Hash")) {
+                table = new TranspositionTable(Math.max(1, Math.min(MAX_HASH_MB, value)));
+                replaceSearcher(searcher.getThreadCount());
+            } else if (name.equalsIgnoreCase("Threads")) {
+                replaceSearcher(Math.max(1, Math.min(MAX_THREADS, value)));
+            } else {
+                out.println("info string Unknown option: " + name);
+            }
+        }
+
+        private void replaceSearcher(int threads) {
+            searcher.shutdown();
+            searcher = new LazySmp(table, threads);
+        }
+
+        /**
+         * Handles "position [startpos | fen <fen>] [moves <move>...]". An illegal move
+         * leaves the position as it was before the move.
+         */
+        private void setPosition(String[] tokens) {
+            int movesIndex = tokens.length;
+            for (int i = 1; i < tokens.length; i++) {
+                if (tokens[i].equals("moves")) {
+                    movesIndex = i;
+                    break;
+                }
+            }
+            Board position;
+            try {
+                if (tokens.length >= 2 && tokens[1].equals("fen")) {
+                    position = new Board(String.join(" ", java.util.Arrays.copyOfRange(tokens, 2, movesIndex)));
+                } else {
+                    position = new Board();
+                }
+            } catch (IllegalArgumentException e) {
+                out.println("info string " + e.getMessage());
+                return;
+            }
+            int[] moves = new int[Move.MAX_MOVES];
+            for (int i = movesIndex + 1; i < tokens.length; i++) {
+                int move = findMove(position, moves, tokens[i]);
+                if (move == Move.NONE) {
+                    out.println("info string Illegal move: " + tokens[i]);
+                    break;
+                }
+                position.makeMove(move);
+            }
+            board = position;
+        }
+
+        private static int findMove(Board board, int[] moves, String text) {
+            int count = board.generateLegalMoves(moves);
+            for (int i = 0; i < count; i++) {
+                if (Move.toString(moves[i]).equals(text)) {
+                    return moves[i];
+                }
+            }
+            return Move.NONE;
+        }
+
+        /**
+         * Handles "go" with depth, nodes, movetime, infinite and the clock fields, and
+         * starts the search thread. Without any limit the search runs until stop. A
+         * field with a bad number is reported, and the first legal move is sent as
+         * bestmove without searching.
+         */
+        private void go(String[] tokens) {
+            int maxDepth = Search.MAX_DEPTH;
+            long nodeLimit = Long.MAX_VALUE;
+            long moveTime = -1;
+            long[] clock = {-1, -1};
+            long[] increment = {0, 0};
+            int movesToGo = 0;
+            boolean infinite = false;
+            try {
+                for (int i = 1; i < tokens.length; i++) {
+                    String value = i + 1 < tokens.length ? tokens[i + 1] : "";
+                    switch (tokens[i]) {
+                        case "depth": maxDepth = Math.max(1, Math.min(Search.MAX_DEPTH, Integer.parseInt(value))); i++; break;
+                        case "nodes": nodeLimit = Math.max(1, Long.parseLong(value)); i++; break;
+                        case "movetime": moveTime = Long.parseLong(value); i++; break;
+                        case "wtime": clock[0] = Long.parseLong(value); i++; break;
+                        case "btime": clock[1] = Long.parseLong(value); i++; break;
+                        case "winc": increment[0] = Long.parseLong(value); i++; break;
+                        case "binc": increment[1] = Long.parseLong(value); i++; break;
+                        case "movestogo": movesToGo = Integer.parseInt(value); i++; break;
+                        case "infinite": infinite = true; break;
+                        default: break;
+                    }
+                }
+            } catch (NumberFormatException e) {
+                // Searching with the limits parsed so far could mean searching without any,
+                // but every go still needs a bestmove: answer with the first legal move.
+                out.println("info string Bad go command, not searching: " + e.getMessage());
+                int[] moves = new int[Move.MAX_MOVES];
+                int count = board.generateLegalMoves(moves);
+                out.println("bestmove " + (count == 0 ? "0000" : Move.toString(moves[0])));
+                return;
             }
-            return false;
+
+            int side = board.getSideToMove();
+            long timeMillis;
+            if (infinite) {
+                timeMillis = INFINITE_MILLIS;
+            } else if (moveTime >= 0) {
+                timeMillis = Math.max(1, moveTime - MOVE_OVERHEAD_MS);
+            } else if (clock[side] >= 0) {
+                long budget = clock[side] / (movesToGo > 0 ? movesToGo : DEFAULT_MOVES_TO_GO) + increment[side] * 3 / 4;
+                timeMillis = Math.max(1, Math.min(budget, clock[side] - MOVE_OVERHEAD_MS));
+            } else {
+                // Only depth or nodes given, or nothing at all: those limits, or stop, end it.
+                infinite = maxDepth == Search.MAX_DEPTH && nodeLimit == Long.MAX_VALUE;
+                timeMillis = INFINITE_MILLIS;
+            }
+
+            Board position = board;
+            LazySmp smp = searcher;
+            AtomicBoolean stop = new AtomicBoolean();
+            CountDownLatch latch = new CountDownLatch(1);
+            boolean waitForStop = infinite;
+            int depthLimit = maxDepth;
+            smp.setNodeLimit(nodeLimit);
+            TranspositionTable pvTable = table;
+            smp.setIterationListener(result -> out.println(info(pvTable, position, result)));
+            stopRequested = stop;
+            stopLatch = latch;
+            searchThread = new Thread(() -> {
+                SearchResult result = smp.search(position, timeMillis, depthLimit, stop);
+                // In infinite mode bestmove may only be sent once the GUI says stop.
+                if (waitForStop) {
+                    try {
+                        latch.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                int best = result.getBestMove();
+                out.println("bestmove " + (best == Move.NONE ? "0000" : Move.toString(best)));
+            }, "uci-search");
+            searchThread.start();
         }
 
-        @Override
-        public List<Point> getValidMoves(Piece[][] grid) {
-            List<Point> moves = new ArrayList<>();
-            int[][] offsets = {
-                {1, 0}, {1, 1}, {0, 1}, {-1, 1},
-                {-1, 0}, {-1, -1}, {0, -1}, {1, -1}
-            };
-            for (int[] offset : offsets) {
-                int r = row + offset[0];
-                int c = col + offset[1];
-                if (r >= 0 && r < 8 && c >= 0 && c < 8) {
-                    if (grid[r][c] == null || grid[r][c].color != color) {
-                        moves.add(new Point(r, c));
+        private void requestStop() {
+            if (searchThread != null) {
+                stopRequested.set(true);
+                searcher.stop();
+                stopLatch.countDown();
+            }
+        }
+
+        /**
+         * Stops the running search, if any, and waits for it to print bestmove.
+         */
+        private void endSearch() {
+            if (searchThread == null) {
+                return;
+            }
+            requestStop();
+            try {
+                searchThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            searchThread = null;
+        }
+
+        /**
+         * Formats an iteration as an info line. The principal variation follows the best
+         * moves stored in the transposition table, stopping at a missing entry or a
+         * repeated position.
+         */
+        private static String info(TranspositionTable table, Board board, SearchResult result) {
+            StringBuilder line = new StringBuilder();
+            line.append("info depth ").append(result.getDepth())
+                    .append(" score ").append(formatScore(result.getScore()))
+                    .append(" nodes ").append(result.getNodes())
+                    .append(" nps ").append(result.getNodesPerSecond())
+                    .append(" time ").append(result.getMillis())
+                    .append(" pv");
+            int[] pv = new int[Search.MAX_DEPTH];
+            int length = table.principalVariation(board, result.getBestMove(), pv, result.getDepth());
+            for (int i = 0; i < length; i++) {
+                line.append(' ').append(Move.toString(pv[i]));
+            }
+            return line.toString();
+        }
+
+        /**
+         * Scores are in centipawns, or in moves to mate when a mate has been found.
+         */
+        private static String formatScore(int score) {
+            if (Math.abs(score) >= Search.MATE_SCORE - Search.MAX_DEPTH * 2) {
+                int moves = (Search.MATE_SCORE - Math.abs(score) + 1) / 2;
+                return "mate " + (score > 0 ? moves : -moves);
+            }
+            return "cp " + score;
+        }
+
+        static void run(String[] args) {
+            BufferedReader in = new BufferedReader(new java.io.InputStreamReader(System.in, StandardCharsets.UTF_8));
+            java.io.PrintStream out = new java.io.PrintStream(
+                    new java.io.FileOutputStream(java.io.FileDescriptor.out), true, StandardCharsets.UTF_8);
+            try {
+                new Uci(in, out).loop();
+            } catch (IOException e) {
+                System.err.println("Could not read commands: " + e.getMessage());
+                System.exit(1);
+            }
+        }
+    }
+
+    /**
+     * Self-play matches between two player settings, to check that a speed-up of the
+     * board and move generator turns into playing strength and not only nodes per
+     * second. Games run concurrently, one per pool thread, and each opening FEN is played
+     * twice with colors swapped. Results are counted from player A's side and reported
+     * with an Elo estimate and a sequential probability ratio test, which ends the match
+     * early once it has a verdict. Games still running then are finished; the rest are
+     * skipped.
+     * Usage: selfplay <games> <player A> <player B> [threads] [openings file].
+     * A player is time:<ms per move>, nodes:<nodes per move> or minimal:<depth>.
+     */
+    private static final class Tournament {
+        static final String[] DEFAULT_OPENINGS = {
+            "r1bqkbnr/1ppp1ppp/p1n5/1B2p3/4P3/5N2/PPPP1PPP/RNBQK2R w KQkq - 0 4",
+            "r1bqk1nr/pppp1ppp/2n5/2b1p3/2B1P3/5N2/PPPP1PPP/RNBQK2R w KQkq - 4 4",
+            "rnbqkbnr/pp2pppp/3p4/8/3pP3/5N2/PPP2PPP/RNBQKB1R w KQkq - 0 4",
+            "r1bqkbnr/pp1ppp1p/2n3p1/2p5/4P3/2N3P1/PPPP1P1P/R1BQKBNR w KQkq - 0 4",
+            "rnbqkb1r/ppp2ppp/4pn2/3p4/3PP3/2N5/PPP2PPP/R1BQKBNR w KQkq - 2 4",
+            "rn1qkbnr/pp2pppp/2p5/3pPb2/3P4/8/PPP2PPP/RNBQKBNR w KQkq - 1 4",
+            "rnb1kbnr/ppp1pppp/8/q7/8/2N5/PPPP1PPP/R1BQKBNR w KQkq - 2 4",
+            "rnbqkb1r/ppp2ppp/4pn2/3p4/2PP4/2N5/PP2PPPP/R1BQKBNR w KQkq - 2 4",
+            "rnbqkb1r/pp2pppp/2p2n2/3p4/2PP4/5N2/PP2PPPP/RNBQKB1R w KQkq - 2 4",
+            "rnbqk2r/ppppppbp/5np1/8/2PP4/2N5/PP2PPPP/R1BQKBNR w KQkq - 2 4",
+            "rnbqk2r/pppp1ppp/4pn2/8/1bPP4/2N5/PP2PPPP/R1BQKBNR w KQkq - 2 4",
+            "rnbqkb1r/ppppp2p/5np1/5p2/3P4/6P1/PPP1PPBP/RNBQK1NR w KQkq - 0 4",
+            "rnbqkb1r/ppp2ppp/5n2/3pp3/2P5/2N3P1/PP1PPP1P/R1BQKBNR w KQkq d6 0 4",
+            "rnbqkb1r/pp2pppp/2p2n2/3p4/8/5NP1/PPPPPPBP/RNBQK2R w KQkq - 0 4",
+            "rnbqkbnr/pppp1p1p/8/6p1/4Pp2/5N2/PPPP2PP/RNBQKB1R w KQkq g6 0 4",
+            "rnbqkb1r/pp2pppp/5n2/2pp4/3P1B2/4P3/PPP2PPP/RN1QKBNR w KQkq c6 0 4",
+        };
+        // Games still going after this many plies are scored as draws.
+        private static final int MAX_PLIES = 400;
+        private static final int TABLE_MB = 16;
+        // The SPRT tests H0: Elo difference ELO0 against H1: ELO1, with these error rates.
+        private static final double ELO0 = 0;
+        private static final double ELO1 = 10;
+        private static final double ALPHA = 0.05;
+        private static final double BETA = 0.05;
+
+        private static final int WIN = 0;
+        private static final int DRAW = 1;
+        private static final int LOSS = 2;
+
+        /**
+         * Picks a move in a position that has legal moves. Instances belong to one game
+         * and are not shared between threads.
+         */
+        interface Player {
+            int chooseMove(Board board);
+        }
+
+        /**
+         * The engine's own search, with its own transposition table, limited by time or
+         * by nodes per move.
+         */
+        private static final class SearchPlayer implements Player {
+            private final Search search = new Search(new TranspositionTable(TABLE_MB));
+            private final long timeMillis;
+
+            SearchPlayer(long timeMillis, long nodeLimit) {
+                this.timeMillis = timeMillis;
+                search.setNodeLimit(nodeLimit);
+            }
+
+            @Override
+            public int chooseMove(Board board) {
+                return search.search(board, timeMillis, Search.MAX_DEPTH).getBestMove();
+            }
+        }
+
+        /**
+         * A minimal baseline straight on the move generator: fixed-depth alpha-beta over
+         * material, with no table, no move ordering and no quiescence search.
+         */
+        private static final class MinimalPlayer implements Player {
+            private final int depth;
+            private final int[][] moveStack;
+
+            MinimalPlayer(int depth) {
+                this.depth = depth;
+                moveStack = new int[depth + 1][Move.MAX_MOVES];
+            }
+
+            @Override
+            public int chooseMove(Board board) {
+                int[] moves = moveStack[depth];
+                int count = board.generateLegalMoves(moves);
+                int bestMove = moves[0];
+                int alpha = -Search.MATE_SCORE - 1;
+                for (int i = 0; i < count; i++) {
+                    board.makeMove(moves[i]);
+                    int score = -negamax(board, depth - 1, -Search.MATE_SCORE - 1, -alpha);
+                    board.unmakeMove();
+                    if (score > alpha) {
+                        alpha = score;
+                        bestMove = moves[i];
                     }
                 }
+                return bestMove;
             }
-            // Castling moves.
-            if (!(color == 0 ? whiteKingMoved : blackKingMoved)) {
-                // Kingside castling.
-                if (grid[row][5] == null && grid[row][6] == null
-                        && grid[row][7] instanceof Rook && !((Rook) grid[row][7]).hasMoved()) {
-                    moves.add(new Point(row, col + 2));
+
+            private int negamax(Board board, int remaining, int alpha, int beta) {
+                if (remaining == 0) {
+                    return material(board);
                 }
-                // Queenside castling.
-                if (grid[row][1] == null && grid[row][2] == null && grid[row][3] == null
-                        && grid[row][0] instanceof Rook && !((Rook) grid[row][0]).hasMoved()) {
-                    moves.add(new Point(row, col - 2));
+                int[] moves = moveStack[remaining];
+                int count = board.generateLegalMoves(moves);
+                if (count == 0) {
+                    // Prefer the quickest mate: more depth left means fewer plies played.
+                    return board.isCheck(board.getSideToMove()) ? -Search.MATE_SCORE + depth - remaining : 0;
+                }
+                for (int i = 0; i < count; i++) {
+                    board.makeMove(moves[i]);
+                    int score = -negamax(board, remaining - 1, -beta, -alpha);
+                    board.unmakeMove();
+                    if (score >= beta) {
+                        return beta;
+                    }
+                    alpha = Math.max(alpha, score);
                 }
+                return alpha;
             }
-            return moves;
+
+            // Material only, so the baseline does not move with the evaluation under test.
+            private static int material(Board board) {
+                int score = 0;
+                for (int type = PAWN; type < KING; type++) {
+                    score += Search.PIECE_VALUES[type]
+                            * (Long.bitCount(board.getPieces(0, type)) - Long.bitCount(board.getPieces(1, type)));
+                }
+                return board.getSideToMove() == 0 ? score : -score;
+            }
+        }
+
+        /**
+         * How one game ended, from player A's side.
+         */
+        private static final class GameResult {
+            private final int game;
+            private final int opening;
+            private final boolean aWhite;
+            private final int outcome;
+            private final String reason;
+            private final int plies;
+
+            GameResult(int game, int opening, boolean aWhite, int outcome, String reason, int plies) {
+                this.game = game;
+                this.opening = opening;
+                this.aWhite = aWhite;
+                this.outcome = outcome;
+                this.reason = reason;
+                this.plies = plies;
+            }
+        }
+
+        /**
+         * Win, draw and loss counts for player A, with the Elo and SPRT arithmetic.
+         * The SPRT uses the normal approximation to the per-game score, so its
+         * log-likelihood ratio is N (s1 - s0) (2s - s0 - s1) / (2 var). It counts one
+         * extra win and loss, so the variance is never zero and a run of identical
+         * results still builds up evidence one game at a time.
+         */
+        private static final class Stats {
+            private final int[] counts = new int[3];
+
+            void add(int outcome) {
+                counts[outcome]++;
+            }
+
+            int games() {
+                return counts[WIN] + counts[DRAW] + counts[LOSS];
+            }
+
+            double score() {
+                return score(counts[WIN], counts[DRAW], counts[LOSS]);
+            }
+
+            /**
+             * The variance of one game's score around the mean score.
+             */
+            double variance() {
+                return variance(counts[WIN], counts[DRAW], counts[LOSS]);
+            }
+
+            double logLikelihoodRatio() {
+                int wins = counts[WIN] + 1;
+                int losses = counts[LOSS] + 1;
+                int games = wins + counts[DRAW] + losses;
+                double s0 = expectedScore(ELO0);
+                double s1 = expectedScore(ELO1);
+                return games * (s1 - s0) * (2 * score(wins, counts[DRAW], losses) - s0 - s1)
+                        / (2 * variance(wins, counts[DRAW], losses));
+            }
+
+            private static double score(int wins, int draws, int losses) {
+                return (wins + 0.5 * draws) / (wins + draws + losses);
+            }
+
+            private static double variance(int wins, int draws, int losses) {
+                double s = score(wins, draws, losses);
+                return (wins * (1 - s) * (1 - s) + draws * (0.5 - s) * (0.5 - s) + losses * s * s)
+                        / (wins + draws + losses);
+            }
+
+            /**
+             * Returns "H1", "H0" or null while the test has no verdict yet.
+             */
+            String verdict() {
+                double llr = logLikelihoodRatio();
+                if (llr >= Math.log((1 - BETA) / ALPHA)) {
+                    return "H1";
+                }
+                if (llr <= Math.log(BETA / (1 - ALPHA))) {
+                    return "H0";
+                }
+                return null;
+            }
+
+            @Override
+            public String toString() {
+                return "+" + counts[WIN] + " =" + counts[DRAW] + " -" + counts[LOSS];
+            }
+        }
+
+        private static double expectedScore(double elo) {
+            return 1 / (1 + Math.pow(10, -elo / 400));
+        }
+
+        private static double elo(double score) {
+            return -400 * Math.log10(1 / score - 1);
+        }
+
+        /**
+         * Parses a player setting into a factory, so each game gets fresh players.
+         */
+        static Supplier<Player> parsePlayer(String spec) {
+            int colon = spec.indexOf(':');
+            long value;
+            try {
+                value = Long.parseLong(spec.substring(colon + 1));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Bad player " + spec + ", expected time:<ms>, nodes:<n> or minimal:<depth>");
+            }
+            if (value < 1) {
+                throw new IllegalArgumentException("Player limit must be positive: " + spec);
+            }
+            switch (colon < 0 ? spec : spec.substring(0, colon)) {
+                case "time":
+                    return () -> new SearchPlayer(value, Long.MAX_VALUE);
+                case "nodes":
+                    return () -> new SearchPlayer(Uci.INFINITE_MILLIS, value);
+                case "minimal":
+                    int depth = (int) Math.min(value, Search.MAX_DEPTH);
+                    return () -> new MinimalPlayer(depth);
+                default:
+                    throw new IllegalArgumentException("Bad player " + spec + ", expected time:<ms>, nodes:<n> or minimal:<depth>");
+            }
+        }
+
+        /**
+         * Plays one game to the end and scores it for player A.
+         */
+        static GameResult playGame(int game, int opening, String fen, boolean aWhite,
+                                   Supplier<Player> playerA, Supplier<Player> playerB) {
+            Board board = new Board(fen);
+            Player a = playerA.get();
+            Player b = playerB.get();
+            int aColor = aWhite ? 0 : 1;
+            int[] moves = new int[Move.MAX_MOVES];
+            for (int plies = 0; ; plies++) {
+                int side = board.getSideToMove();
+                String draw = null;
+                if (board.generateLegalMoves(moves) == 0) {
+                    if (!board.isCheck(side)) {
+                        draw = "stalemate";
+                    } else {
+                        return new GameResult(game, opening, aWhite, side == aColor ? LOSS : WIN, "checkmate", plies);
+                    }
+                } else if (board.getHalfmoveClock() >= 100) {
+                    draw = "fifty-move rule";
+                } else if (board.countRepetitions() >= 2) {
+                    draw = "threefold repetition";
+                } else if (isInsufficientMaterial(board)) {
+                    draw = "insufficient material";
+                } else if (plies >= MAX_PLIES) {
+                    draw = "move limit";
+                }
+                if (draw != null) {
+                    return new GameResult(game, opening, aWhite, DRAW, draw, plies);
+                }
+                board.makeMove((side == aColor ? a : b).chooseMove(board));
+            }
+        }
+
+        /**
+         * Bare kings, or a single knight or bishop against a bare king.
+         */
+        private static boolean isInsufficientMaterial(Board board) {
+            int minors = 0;
+            for (int color = 0; color < 2; color++) {
+                if ((board.getPieces(color, PAWN) | board.getPieces(color, ROOK) | board.getPieces(color, QUEEN)) != 0) {
+                    return false;
+                }
+                minors += Long.bitCount(board.getPieces(color, KNIGHT) | board.getPieces(color, BISHOP));
+            }
+            return minors <= 1;
+        }
+
+        static List<String> readOpenings(Path path) throws IOException {
+            List<String> openings = new ArrayList<>();
+            List<String> lines = Files.readAllLines(path, StandardCharsets.UTF_8);
+            for (int i = 0; i < lines.size(); i++) {
+                String line = lines.get(i).trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                try {
+                    new Board(line);
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException(path + ":" + (i + 1) + ": " + e.getMessage());
+                }
+                openings.add(line);
+            }
+            if (openings.isEmpty()) {
+                throw new IllegalArgumentException(path + " has no opening FENs");
+            }
+            return openings;
+        }
+
+        static void run(String[] args) {
+            if (args.length < 4) {
+                System.err.println("Usage: ChessGame selfplay <games> <player A> <player B> [threads] [openings file]");
+                System.err.println("A player is time:<ms per move>, nodes:<nodes per move> or minimal:<depth>.");
+                System.exit(2);
+            }
+            int games = Integer.parseInt(args[1]);
+            String nameA = args[2];
+            String nameB = args[3];
+            int threads = args.length >= 5 ? Integer.parseInt(args[4]) : Runtime.getRuntime().availableProcessors();
+            Supplier<Player> playerA;
+            Supplier<Player> playerB;
+            List<String> openings;
+            try {
+                playerA = parsePlayer(nameA);
+                playerB = parsePlayer(nameB);
+                openings = args.length >= 6 ? readOpenings(Path.of(args[5])) : List.of(DEFAULT_OPENINGS);
+            } catch (IllegalArgumentException | IOException e) {
+                System.err.println(e.getMessage());
+                System.exit(2);
+                return;
+            }
+
+            Instrumentation.awaitRegistration();
+            ExecutorService pool = Executors.newFixedThreadPool(threads);
+            CompletionService<GameResult> completion = new ExecutorCompletionService<>(pool);
+            AtomicBoolean decided = new AtomicBoolean();
+            for (int game = 0; game < games; game++) {
+                int number = game + 1;
+                int opening = (game / 2) % openings.size();
+                boolean aWhite = game % 2 == 0;
+                completion.submit(() -> decided.get() ? null
+                        : playGame(number, opening + 1, openings.get(opening), aWhite, playerA, playerB));
+            }
+            pool.shutdown();
+
+            long start = System.nanoTime();
+            Stats stats = new Stats();
+            String verdict = null;
+            int decidedAfter = 0;
+            for (int i = 0; i < games; i++) {
+                GameResult result;
+                try {
+                    result = completion.take().get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException("Game failed", e.getCause());
+                }
+                if (result == null) {
+                    continue;
+                }
+                stats.add(result.outcome);
+                String white = result.aWhite ? nameA : nameB;
+                String black = result.aWhite ? nameB : nameA;
+                String score = result.outcome == DRAW ? "1/2-1/2" : (result.outcome == WIN) == result.aWhite ? "1-0" : "0-1";
+                System.out.printf("Game %d, opening %d: %s vs %s %s, %s after %d plies  %s%n", result.game,
+                        result.opening, white, black, score, result.reason, result.plies, stats);
+                if (verdict == null && (verdict = stats.verdict()) != null) {
+                    // The verdict stands; games already under way still finish and count.
+                    decidedAfter = stats.games();
+                    decided.set(true);
+                }
+            }
+
+            int played = stats.games();
+            if (played == 0) {
+                return;
+            }
+            double score = stats.score();
+            System.out.printf("%s vs %s: %s in %d games, score %.1f%%, %.1fs on %d threads%n", nameA, nameB,
+                    stats, played, 100 * score, (System.nanoTime() - start) / 1e9, threads);
+            if (score == 0 || score == 1) {
+                System.out.printf("Elo: %sinfinity%n", score == 1 ? "+" : "-");
+            } else {
+                double margin = 1.96 * Math.sqrt(stats.variance() / played);
+                double low = elo(Math.max(1e-6, score - margin));
+                double high = elo(Math.min(1 - 1e-6, score + margin));
+                System.out.printf("Elo: %+.1f (95%%: %+.1f to %+.1f)%n", elo(score), low, high);
+            }
+            System.out.printf("SPRT elo0=%.0f elo1=%.0f alpha=%.2f beta=%.2f: LLR %.2f (%.2f, %.2f), %s%n",
+                    ELO0, ELO1, ALPHA, BETA, stats.logLikelihoodRatio(), Math.log(BETA / (1 - ALPHA)),
+                    Math.log((1 - BETA) / ALPHA), verdict == null ? "inconclusive"
+                            : (verdict.equals("H1") ? "H1 accepted, A is stronger" : "H0 accepted, A is not stronger")
+                            + " after " + decidedAfter + " games");
+        }
+    }
+
+    /**
+     * Micro-benchmarks for the rules engine's hot paths: Board.isValidMove, isCheck,
+     * isCheckmate, isSquareUnderAttack and Piece.getValidMoves for each piece type,
+     * over a fixed corpus of middlegame and endgame positions. Modelled on JMH's
+     * throughput mode: each benchmark runs warmup iterations and then measured ones of
+     * a fixed length, calling its operation over the whole corpus again and again and
+     * feeding every result into a sink so the JIT cannot drop the calls. It reports
+     * operations per second with the spread over iterations, and the bytes allocated
+     * per operation and per second as read from the thread's allocation counter, like
+     * JMH's gc profiler.
+     * Usage: bench [name filter] [iterations] [iteration millis]
+     */
+    private static final class Bench {
+        static final String[] CORPUS = {
+            // Middlegames.
+            "r1bqkbnr/pppp1ppp/2n5/4p3/2B1P3/5N2/PPPP1PPP/RNBQK2R b KQkq - 3 3",
+            "r3k2r/p1ppqpb1/bn2pnp1/3PN3/1p2P3/2N2Q1p/PPPBBPPP/R3K2R w KQkq - 0 1",
+            "r4rk1/1pp1qppp/p1np1n2/2b1p1B1/2B1P1b1/P1NP1N2/1PP1QPPP/R4RK1 w - - 0 10",
+            "rnbq1k1r/pp1Pbppp/2p5/8/2B5/8/PPP1NnPP/RNBQK2R w KQ - 1 8",
+            "r1bqkb1r/pppp1Qpp/2n2n2/4p3/2B1P3/8/PPPP1PPP/RNB1K1NR b KQkq - 0 4",
+            // Endgames.
+            "8/2p5/3p4/KP5r/1R3p1k/8/4P1P1/8 w - - 0 1",
+            "8/5pk1/6p1/8/8/6P1/r4PK1/1R6 w - - 0 40",
+            "6k1/5pp1/7p/8/8/7P/5PPK/3Q4 w - - 0 45",
+            "8/8/4k3/3p4/3P4/4K3/8/8 w - - 0 60",
+            "8/8/8/3k4/8/8/3K4/3Q4 b - - 0 70"
+        };
+        static final int WARMUP_ITERATIONS = 3;
+        static final int MEASUREMENT_ITERATIONS = 5;
+        static final long ITERATION_MILLIS = 500;
+        private static final String[] TYPE_NAMES = {"Pawn", "Knight", "Bishop", "Rook", "Queen", "King"};
+
+        // Every result is folded in here, and printed, so no call is dead code.
+        private static long sink;
+
+        /**
+         * One benchmark: a batch calls the operation once per query in the corpus and
+         * returns a checksum of the results.
+         */
+        private static final class Benchmark {
+            final String name;
+            final int operationsPerBatch;
+            final LongSupplier batch;
+
+            Benchmark(String name, int operationsPerBatch, LongSupplier batch) {
+                this.name = name;
+                this.operationsPerBatch = operationsPerBatch;
+                this.batch = batch;
+            }
+        }
+
+        private Bench() {
+        }
+
+        /**
+         * Builds the benchmarks over fresh copies of the corpus positions.
+         */
+        static List<Benchmark> benchmarks() {
+            Board[] boards = new Board[CORPUS.length];
+            for (int i = 0; i < CORPUS.length; i++) {
+                boards[i] = new Board(CORPUS[i]);
+            }
+            List<Benchmark> benchmarks = new ArrayList<>();
+
+            // Every piece of the side to move, to every square, as a click in the UI would ask.
+            List<Piece> movers = new ArrayList<>();
+            List<Board> moverBoards = new ArrayList<>();
+            for (Board board : boards) {
+                for (Piece piece : pieces(board)) {
+                    if (piece.getColor() == board.getSideToMove()) {
+                        movers.add(piece);
+                        moverBoards.add(board);
+                    }
+                }
+            }
+            benchmarks.add(new Benchmark("isValidMove", movers.size() * 64, () -> {
+                long valid = 0;
+                for (int i = 0; i < movers.size(); i++) {
+                    Board board = moverBoards.get(i);
+                    Piece piece = movers.get(i);
+                    for (int square = 0; square < 64; square++) {
+                        valid += board.isValidMove(piece, square >>> 3, square & 7) ? 1 : 0;
+                    }
+                }
+                return valid;
+            }));
+            benchmarks.add(new Benchmark("isCheck", boards.length * 2, () -> {
+                long checks = 0;
+                for (Board board : boards) {
+                    checks += (board.isCheck(0) ? 1 : 0) + (board.isCheck(1) ? 1 : 0);
+                }
+                return checks;
+            }));
+            benchmarks.add(new Benchmark("isCheckmate", boards.length, () -> {
+                long mates = 0;
+                for (Board board : boards) {
+                    mates += board.isCheckmate(board.getSideToMove()) ? 1 : 0;
+                }
+                return mates;
+            }));
+            benchmarks.add(new Benchmark("isSquareUnderAttack", boards.length * 128, () -> {
+                long attacked = 0;
+                for (Board board : boards) {
+                    for (int square = 0; square < 64; square++) {
+                        attacked += (board.isSquareUnderAttack(square >>> 3, square & 7, 0) ? 1 : 0)
+                                + (board.isSquareUnderAttack(square >>> 3, square & 7, 1) ? 1 : 0);
+                    }
+                }
+                return attacked;
+            }));
+
+            // Piece.getValidMoves for each piece class, over every piece of that type in the corpus.
+            for (int type = PAWN; type <= KING; type++) {
+                List<Piece> typed = new ArrayList<>();
+                List<Board> typedBoards = new ArrayList<>();
+                for (Board board : boards) {
+                    for (Piece piece : pieces(board)) {
+                        if (piece.getType() == type) {
+                            typed.add(piece);
+                            typedBoards.add(board);
+                        }
+                    }
+                }
+                benchmarks.add(new Benchmark(TYPE_NAMES[type] + ".getValidMoves", typed.size(), () -> {
+                    long moves = 0;
+                    for (int i = 0; i < typed.size(); i++) {
+                        moves += typed.get(i).getValidMoves(typedBoards.get(i)).size();
+                    }
+                    return moves;
+                }));
+            }
+            return benchmarks;
+        }
+
+        private static List<Piece> pieces(Board board) {
+            List<Piece> pieces = new ArrayList<>();
+            for (int square = 0; square < 64; square++) {
+                Piece piece = board.getPiece(square >>> 3, square & 7);
+                if (piece != null) {
+                    pieces.add(piece);
+                }
+            }
+            return pieces;
+        }
+
+        /**
+         * Returns the bytes this thread has allocated so far, or -1 when the JVM does not
+         * count them.
+         */
+        private static long allocatedBytes() {
+            java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+            if (threads instanceof com.sun.management.ThreadMXBean) {
+                com.sun.management.ThreadMXBean counting = (com.sun.management.ThreadMXBean) threads;
+                if (counting.isThreadAllocatedMemorySupported() && counting.isThreadAllocatedMemoryEnabled()) {
+                    return counting.getCurrentThreadAllocatedBytes();
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Runs one iteration and returns its operations per second; the bytes it
+         * allocated go into allocation[0] and its length in nanoseconds into allocation[1].
+         */
+        private static double iteration(Benchmark benchmark, long millis, long[] allocation) {
+            long bytesBefore = allocatedBytes();
+            long start = System.nanoTime();
+            long deadline = start + millis * 1_000_000L;
+            long batches = 0;
+            long now;
+            do {
+                sink += benchmark.batch.getAsLong();
+                batches++;
+                now = System.nanoTime();
+            } while (now < deadline);
+            long bytesAfter = allocatedBytes();
+            allocation[0] = bytesBefore < 0 ? -1 : bytesAfter - bytesBefore;
+            allocation[1] = now - start;
+            return batches * benchmark.operationsPerBatch * 1e9 / (now - start);
+        }
+
+        static void run(String[] args) {
+            String filter = args.length > 1 ? args[1] : "";
+            int iterations = args.length > 2 ? Integer.parseInt(args[2]) : MEASUREMENT_ITERATIONS;
+            long millis = args.length > 3 ? Long.parseLong(args[3]) : ITERATION_MILLIS;
+            System.out.printf("%d corpus positions, %d warmup and %d measured iterations of %d ms each%n",
+                    CORPUS.length, WARMUP_ITERATIONS, iterations, millis);
+            System.out.printf("%-22s %16s %9s %10s %10s%n", "Benchmark", "ops/s", "error", "B/op", "MB/s");
+            long[] allocation = new long[2];
+            for (Benchmark benchmark : benchmarks()) {
+                if (!benchmark.name.toLowerCase().contains(filter.toLowerCase())) {
+                    continue;
+                }
+                for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+                    iteration(benchmark, millis, allocation);
+                }
+                double[] rates = new double[iterations];
+                double operations = 0;
+                long bytes = 0;
+                long nanos = 0;
+                for (int i = 0; i < iterations; i++) {
+                    rates[i] = iteration(benchmark, millis, allocation);
+                    operations += rates[i] * allocation[1] / 1e9;
+                    bytes = allocation[0] < 0 || bytes < 0 ? -1 : bytes + allocation[0];
+                    nanos += allocation[1];
+                }
+                double mean = 0;
+                for (double rate : rates) {
+                    mean += rate / iterations;
+                }
+                double variance = 0;
+                for (double rate : rates) {
+                    variance += (rate - mean) * (rate - mean) / Math.max(1, iterations - 1);
+                }
+                String perOperation = bytes < 0 ? "n/a" : String.format("%.1f", bytes / operations);
+                String perSecond = bytes < 0 ? "n/a" : String.format("%.1f", bytes / (nanos / 1e9) / (1 << 20));
+                System.out.printf("%-22s %,16.0f %8.1f%% %10s %10s%n", benchmark.name, mean,
+                        100 * Math.sqrt(variance) / mean, perOperation, perSecond);
+            }
+            // Printing the sink keeps every result alive.
+            System.out.println("(checksum " + sink + ")");
+        }
+    }
+
+    /**
+     * Headless perft driver: counts the leaf nodes of the legal move tree to a fixed depth.
+     * Usage: perft <depth> [fen], perft divide <depth> [fen], perft suite [maxDepth].
+     */
+    private static final class Perft {
+        private static final String START_FEN = "rnbqkbnr/pppppppp/8/8/8/8/PPPPPPPP/RNBQKBNR w KQkq - 0 1";
+
+        // Standard reference positions with their known node counts from depth 1 upwards.
+        private static final String[] SUITE_FENS = {
+            START_FEN,
+            "r3k2r/p1ppqpb1/bn2pnp1/3PN3/1p2P3/2N2Q1p/PPPBBPPP/R3K2R w KQkq - 0 1",
+            "8/2p5/3p4/KP5r/1R3p1k/8/4P1P1/8 w - - 0 1",
+            "r3k2r/Pppp1ppp/1b3nbN/nP6/BBP1P3/q4N2/Pp1P2PP/R2Q1RK1 w kq - 0 1",
+            "rnbq1k1r/pp1Pbppp/2p5/8/2B5/8/PPP1NnPP/RNBQK2R w KQ - 1 8",
+            "r4rk1/1pp1qppp/p1np1n2/2b1p1B1/2B1P1b1/P1NP1N2/1PP1QPPP/R4RK1 w - - 0 10"
+        };
+        private static final long[][] SUITE_COUNTS = {
+            {20, 400, 8902, 197281, 4865609},
+            {48, 2039, 97862, 4085603},
+            {14, 191, 2812, 43238, 674624},
+            {6, 264, 9467, 422333},
+            {44, 1486, 62379, 2103487},
+            {46, 2079, 89890, 3894594}
+        };
+
+        private Perft() {
+        }
+
+        static void run(String[] args) {
+            if (args.length >= 2 && args[1].equals("suite")) {
+                int maxDepth = args.length >= 3 ? Integer.parseInt(args[2]) : 3;
+                boolean passed = runSuite(maxDepth);
+                System.exit(passed ? 0 : 1);
+            }
+            boolean divide = args.length >= 2 && args[1].equals("divide");
+            int depthArg = divide ? 2 : 1;
+            if (args.length <= depthArg) {
+                System.err.println("Usage: ChessGame perft [divide] <depth> [fen] | ChessGame perft suite [maxDepth]");
+                System.exit(2);
+            }
+            int depth = Integer.parseInt(args[depthArg]);
+            String fen = args.length > depthArg + 1
+                    ? String.join(" ", java.util.Arrays.copyOfRange(args, depthArg + 1, args.length))
+                    : START_FEN;
+            Board board = new Board(fen);
+
+            long start = System.nanoTime();
+            long nodes = divide ? divide(board, depth) : perft(board, depth);
+            report(nodes, System.nanoTime() - start);
+        }
+
+        /**
+         * Runs every reference position up to maxDepth and reports whether the counts match.
+         */
+        static boolean runSuite(int maxDepth) {
+            boolean passed = true;
+            for (int i = 0; i < SUITE_FENS.length; i++) {
+                System.out.println(SUITE_FENS[i]);
+                Board board = new Board(SUITE_FENS[i]);
+                for (int depth = 1; depth <= Math.min(maxDepth, SUITE_COUNTS[i].length); depth++) {
+                    long start = System.nanoTime();
+                    long nodes = perft(board, depth);
+                    long elapsed = System.nanoTime() - start;
+                    long expected = SUITE_COUNTS[i][depth - 1];
+                    boolean ok = nodes == expected;
+                    passed &= ok;
+                    System.out.printf("  depth %d: %,d nodes (expected %,d) %s  %.3fs  %,d nodes/s%n",
+                            depth, nodes, expected, ok ? "OK" : "FAIL",
+                            elapsed / 1e9, nodesPerSecond(nodes, elapsed));
+                }
+            }
+            System.out.println(passed ? "All perft counts match." : "Perft mismatch found.");
+            return passed;
+        }
+
+        /**
+         * Counts the leaf nodes of the legal move tree below the given board.
+         */
+        static long perft(Board board, int depth) {
+            return perft(board, depth, new int[Math.max(depth, 1)][Move.MAX_MOVES]);
+        }
+
+        private static long perft(Board board, int depth, int[][] moveStack) {
+            if (depth == 0) {
+                return 1;
+            }
+            int[] moves = moveStack[depth - 1];
+            int count = board.generateLegalMoves(moves);
+            if (depth == 1) {
+                return count;
+            }
+            long nodes = 0;
+            for (int i = 0; i < count; i++) {
+                board.makeMove(moves[i]);
+                nodes += perft(board, depth - 1, moveStack);
+                board.unmakeMove();
+            }
+            return nodes;
+        }
+
+        /**
+         * Like perft, but prints the count below each root move.
+         */
+        static long divide(Board board, int depth) {
+            int[][] moveStack = new int[Math.max(depth, 1)][Move.MAX_MOVES];
+            int[] moves = new int[Move.MAX_MOVES];
+            int count = board.generateLegalMoves(moves);
+            long nodes = 0;
+            for (int i = 0; i < count; i++) {
+                board.makeMove(moves[i]);
+                long leaves = depth <= 1 ? 1 : perft(board, depth - 1, moveStack);
+                board.unmakeMove();
+                System.out.println(Move.toString(moves[i]) + ": " + leaves);
+                nodes += leaves;
+            }
+            return nodes;
+        }
+
+        private static long nodesPerSecond(long nodes, long nanos) {
+            return nanos == 0 ? 0 : nodes * 1_000_000_000L / nanos;
+        }
+
+        private static void report(long nodes, long nanos) {
+            System.out.printf("Nodes: %,d  Time: %.3fs  %,d nodes/s%n", nodes, nanos / 1e9, nodesPerSecond(nodes, nanos));
         }
     }
 
     public static void main(String[] args) {
+        if (args.length > 0 && args[0].equals("perft")) {
+            Perft.run(args);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("search")) {
+            LazySmp.run(args);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("book")) {
+            PolyglotBook.run(args);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("pgn")) {
+            PgnReader.run(args);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("analyze")) {
+            BatchAnalyzer.run(args);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("uci")) {
+            Uci.run(args);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("selfplay")) {
+            Tournament.run(args);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("archive")) {
+            GameArchive.run(args);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("mate")) {
+            MateSolver.run(args);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("bench")) {
+            Bench.run(args);
+            return;
+        }
         SwingUtilities.invokeLater(() -> new ChessGame());
     }
 }